@@ -0,0 +1,47 @@
+package com.example.android.bookstoreapp;
+
+/**
+ * A book as shown in the inventory list. Instances are immutable, so a list of them can be
+ * built on a background thread and handed to the UI.
+ */
+public class Book {
+
+    private final long mId;
+    private final String mName;
+    private final long mPrice;
+    private final int mQuantity;
+
+    /**
+     * Constructs a new {@link Book}
+     *
+     * @param id       The _ID of the book.
+     * @param name     The name of the book.
+     * @param price    The price of the book, in cents.
+     * @param quantity The quantity in stock.
+     */
+    public Book(long id, String name, long price, int quantity) {
+        mId = id;
+        mName = name;
+        mPrice = price;
+        mQuantity = quantity;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the price of the book, in cents.
+     */
+    public long getPrice() {
+        return mPrice;
+    }
+
+    public int getQuantity() {
+        return mQuantity;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.bookstoreapp;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.bookstoreapp.data.PriceFormatter;
+import com.example.android.bookstoreapp.data.StockWriteQueue;
+
+import java.util.List;
+
+/**
+ * Adapter for a RecyclerView that uses the pages of books loaded by {@link BookPagingLoader}
+ * as its data source.
+ * <p>
+ * New lists are compared with the current one on a background thread, and only the rows that
+ * were added, removed or changed are updated. A change that only touches the quantity rebinds
+ * just the quantity of that row.
+ */
+public class BookAdapter extends RecyclerView.Adapter<BookAdapter.ViewHolder> {
+
+    /**
+     * Change payload for a row whose quantity is the only attribute that changed
+     */
+    private static final Object PAYLOAD_QUANTITY = new Object();
+
+    /**
+     * Decides which books are the same item and whether their contents changed
+     */
+    private static final DiffUtil.ItemCallback<Book> DIFF_CALLBACK = new DiffUtil.ItemCallback<Book>() {
+        @Override
+        public boolean areItemsTheSame(Book oldBook, Book newBook) {
+            return oldBook.getId() == newBook.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(Book oldBook, Book newBook) {
+            return oldBook.getQuantity() == newBook.getQuantity() && sameDetails(oldBook, newBook);
+        }
+
+        @Nullable
+        @Override
+        public Object getChangePayload(Book oldBook, Book newBook) {
+            return sameDetails(oldBook, newBook) ? PAYLOAD_QUANTITY : null;
+        }
+
+        private boolean sameDetails(Book oldBook, Book newBook) {
+            return oldBook.getPrice() == newBook.getPrice()
+                    && TextUtils.equals(oldBook.getName(), newBook.getName());
+        }
+    };
+
+    /**
+     * Callback for clicks on a book in the list
+     */
+    public interface OnBookClickListener {
+        void onBookClick(long id);
+    }
+
+    private final AsyncListDiffer<Book> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private final OnBookClickListener mListener;
+
+    /**
+     * Queue that writes the sales made from the list
+     */
+    private final StockWriteQueue mStockQueue;
+
+    /**
+     * Constructs a new {@link BookAdapter}
+     *
+     * @param context  The context.
+     * @param listener Callback for clicks on a book.
+     */
+    public BookAdapter(Context context, OnBookClickListener listener) {
+        mListener = listener;
+        mStockQueue = StockWriteQueue.getInstance(context);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replaces the books shown in the list. The difference with the current books is worked
+     * out on a background thread and then applied to the list.
+     *
+     * @param books The new books, or null to clear the list.
+     */
+    public void setBooks(@Nullable List<Book> books) {
+        mDiffer.submitList(books);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDiffer.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mDiffer.getCurrentList().get(position).getId();
+    }
+
+    /**
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view
+     * @return a holder for the newly created list item view
+     */
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    /**
+     * This method binds the book data to the given list item
+     *
+     * @param holder   Holder of the list item views
+     * @param position Position of the book in the list
+     */
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Book book = mDiffer.getCurrentList().get(position);
+
+        //Update the TextViews with the attributes for the current book
+        holder.nameTextView.setText(book.getName());
+        // The price is written into the holder's own buffer, which the TextView keeps using
+        int priceLength = PriceFormatter.getInstance().format(book.getPrice(), holder.priceChars);
+        holder.priceTextView.setText(holder.priceChars, 0, priceLength);
+        holder.quantityTextView.setText(String.valueOf(getAvailableQuantity(book)));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        // Only the quantity changed, leave the other views alone
+        Book book = mDiffer.getCurrentList().get(position);
+        holder.quantityTextView.setText(String.valueOf(getAvailableQuantity(book)));
+    }
+
+    /**
+     * Returns the quantity of the book once the sales still in the queue are written.
+     */
+    private int getAvailableQuantity(Book book) {
+        return Math.max(0, book.getQuantity() + mStockQueue.getPendingDelta(book.getId()));
+    }
+
+    /**
+     * Views of one list item, looked up once when the item is created
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final Button saleButton;
+        final char[] priceChars = new char[PriceFormatter.MAX_LENGTH];
+
+        ViewHolder(View view) {
+            super(view);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            priceTextView = (TextView) view.findViewById(R.id.price);
+            quantityTextView = (TextView) view.findViewById(R.id.quantity);
+            saleButton = (Button) view.findViewById(R.id.sale_button);
+
+            //Set listeners on the list item and its sale button
+            view.setOnClickListener(this);
+            saleButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            // Ignore clicks on a row that is being removed
+            if (getAdapterPosition() == RecyclerView.NO_POSITION) {
+                return;
+            }
+
+            if (view == saleButton) {
+                sellOne(view);
+            } else {
+                mListener.onBookClick(getItemId());
+            }
+        }
+
+        /**
+         * Sells one copy of the book bound to this list item
+         */
+        private void sellOne(View view) {
+            Book book = mDiffer.getCurrentList().get(getAdapterPosition());
+            int available = getAvailableQuantity(book);
+            // If there is nothing left to sell, display a toast
+            if (available == 0) {
+                Toast.makeText(view.getContext(), R.string.sold_out, Toast.LENGTH_LONG).show();
+            } else {
+                // Else, queue the sale and display the quantity that is left
+                mStockQueue.sell(book.getId());
+                quantityTextView.setText(String.valueOf(available - 1));
+            }
+        }
+    }
+}
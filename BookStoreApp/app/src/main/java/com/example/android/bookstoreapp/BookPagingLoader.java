@@ -0,0 +1,457 @@
+package com.example.android.bookstoreapp;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the inventory list one page at a time.
+ * <p>
+ * The first load reads only the first {@link #PAGE_SIZE} books. Every call to
+ * {@link #loadMore()} reads the next page, asking the provider for the books after the last
+ * loaded _ID, so the cost of a page does not depend on how many books are in the store.
+ * <p>
+ * When a single book changes, only that book is read again and patched into the loaded pages.
+ * Changes that only touch columns the list doesn't show are ignored. When many books change
+ * at once, the pages loaded so far are read again, one after the other.
+ */
+public class BookPagingLoader extends AsyncTaskLoader<List<Book>> {
+
+    /**
+     * Number of books read by one query
+     */
+    public static final int PAGE_SIZE = 50;
+
+    /**
+     * How close to the end of the loaded books the list may scroll before the next page is
+     * requested
+     */
+    public static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /**
+     * Columns shown in the inventory list
+     */
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY
+    };
+
+    /**
+     * Observer that patches or reloads the pages when the books change
+     */
+    private final BookObserver mObserver = new BookObserver();
+    private boolean mObserverRegistered;
+
+    /**
+     * Books that changed since the last load, with what happened to them. Guarded by itself.
+     */
+    private final LongSparseArray<String> mChangedBooks = new LongSparseArray<>();
+
+    /**
+     * Pages read so far. Only touched by loadInBackground(), which never runs concurrently.
+     */
+    private final List<List<Book>> mPages = new ArrayList<>();
+
+    /* Number of pages the list wants */
+    private volatile int mRequestedPages = 1;
+    /* Whether the loaded pages must be read again because the books changed */
+    private volatile boolean mStale;
+    /* Whether the last page has been read */
+    private volatile boolean mExhausted;
+    /* Whether a page requested by loadMore() hasn't been delivered yet */
+    private boolean mLoadingMore;
+
+    /* Last result delivered to the list */
+    private List<Book> mBooks;
+
+    /* Signal of the load running in the background, if any. Guarded by this. */
+    private CancellationSignal mCancellationSignal;
+
+    public BookPagingLoader(Context context) {
+        super(context);
+    }
+
+    /**
+     * Requests the next page, unless one is already on its way or there are no more books.
+     */
+    public void loadMore() {
+        if (mExhausted || mLoadingMore) {
+            return;
+        }
+        mLoadingMore = true;
+        mRequestedPages++;
+        forceLoad();
+    }
+
+    /**
+     * Makes the next load read every page that is left. Used by the benchmarks to time a load
+     * of the whole list.
+     */
+    @VisibleForTesting
+    void requestAllPages() {
+        mRequestedPages = Integer.MAX_VALUE;
+    }
+
+    @Override
+    public List<Book> loadInBackground() {
+        // From Jelly Bean on, cancelling the load stops the query it is running, see
+        // cancelLoadInBackground()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                mCancellationSignal = new CancellationSignal();
+            }
+        }
+        try {
+            return loadPages();
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Brings the loaded pages up to date and reads the pages the list wants that aren't
+     * loaded yet.
+     */
+    private List<Book> loadPages() {
+        // After a change of many books, every page has to be read again from the start
+        if (mStale) {
+            mStale = false;
+            mPages.clear();
+            synchronized (mChangedBooks) {
+                mChangedBooks.clear();
+            }
+        } else {
+            patchChangedBooks();
+        }
+
+        // Patches change the size of the pages, so whether the last page was reached is
+        // remembered rather than worked out from the size of the last page
+        int requestedPages = mRequestedPages;
+        boolean exhausted = mExhausted && !mPages.isEmpty();
+        while (mPages.size() < requestedPages && !exhausted) {
+            long afterId = 0;
+            if (!mPages.isEmpty()) {
+                afterId = lastId(mPages.get(mPages.size() - 1));
+            }
+
+            List<Book> page = loadPage(afterId);
+            if (!page.isEmpty()) {
+                mPages.add(page);
+            }
+            exhausted = page.size() < PAGE_SIZE;
+        }
+        mExhausted = exhausted;
+
+        List<Book> books = new ArrayList<>(mPages.size() * PAGE_SIZE);
+        for (List<Book> page : mPages) {
+            books.addAll(page);
+        }
+        return books;
+    }
+
+    /**
+     * Brings the loaded pages up to date with the books that changed one by one, reading
+     * only those books.
+     */
+    private void patchChangedBooks() {
+        LongSparseArray<String> changedBooks;
+        synchronized (mChangedBooks) {
+            if (mChangedBooks.size() == 0) {
+                return;
+            }
+            changedBooks = mChangedBooks.clone();
+            mChangedBooks.clear();
+        }
+
+        // A load cancelled half way through the patches leaves the pages to be read again
+        boolean patched = false;
+        try {
+            patchBooks(changedBooks);
+            patched = true;
+        } finally {
+            if (!patched) {
+                mStale = true;
+            }
+        }
+    }
+
+    /**
+     * Patches the given changes into the loaded pages, see {@link #patchChangedBooks()}.
+     */
+    private void patchBooks(LongSparseArray<String> changedBooks) {
+        for (int i = 0; i < changedBooks.size(); i++) {
+            long id = changedBooks.keyAt(i);
+            String operation = changedBooks.valueAt(i);
+
+            // Find the page that holds the _ID, the pages are ordered by _ID
+            int pageIndex = 0;
+            while (pageIndex < mPages.size() && lastId(mPages.get(pageIndex)) < id) {
+                pageIndex++;
+            }
+            boolean pastLoadedPages = pageIndex == mPages.size();
+
+            // A new book after the loaded pages turns up with the next page, unless all
+            // books are loaded already
+            if (pastLoadedPages && !mExhausted) {
+                continue;
+            }
+
+            Book book = null;
+            if (!BookContract.OPERATION_DELETE.equals(operation)) {
+                List<Book> books = loadBooks(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id), 1);
+                if (!books.isEmpty()) {
+                    book = books.get(0);
+                }
+            }
+
+            if (pastLoadedPages) {
+                // Append the new book to the last page
+                if (book != null) {
+                    if (mPages.isEmpty()) {
+                        mPages.add(new ArrayList<Book>(PAGE_SIZE));
+                    }
+                    mPages.get(mPages.size() - 1).add(book);
+                }
+                continue;
+            }
+
+            List<Book> page = mPages.get(pageIndex);
+            int position = findBook(page, id);
+            if (position >= 0 && book != null) {
+                page.set(position, book);
+            } else if (position >= 0) {
+                page.remove(position);
+                if (page.isEmpty()) {
+                    mPages.remove(pageIndex);
+                }
+            } else if (book != null) {
+                page.add(-position - 1, book);
+            }
+        }
+    }
+
+    private static long lastId(List<Book> page) {
+        return page.get(page.size() - 1).getId();
+    }
+
+    /**
+     * Returns the position of the book with the given _ID in a page ordered by _ID, or
+     * (-(insertion point) - 1) if it isn't there.
+     */
+    private static int findBook(List<Book> page, long id) {
+        int low = 0;
+        int high = page.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = page.get(middle).getId();
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Reads the page of books that follows the given _ID.
+     */
+    private List<Book> loadPage(long afterId) {
+        Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                .build();
+        return loadBooks(uri, PAGE_SIZE);
+    }
+
+    /**
+     * Reads the books at the given URI.
+     */
+    private List<Book> loadBooks(Uri uri, int expectedCount) {
+        List<Book> page = new ArrayList<>(expectedCount);
+        // The signal is only set by this thread, while the load runs
+        CancellationSignal cancellationSignal = mCancellationSignal;
+        Cursor cursor = cancellationSignal == null
+                ? getContext().getContentResolver().query(uri, PROJECTION, null, null, null)
+                : getContext().getContentResolver().query(uri, PROJECTION, null, null, null, cancellationSignal);
+        if (cursor == null) {
+            return page;
+        }
+        try {
+            // Find the columns once for the whole page
+            int idColumnIndex = cursor.getColumnIndexOrThrow(BookEntry._ID);
+            int nameColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_NAME);
+            int priceColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_PRICE);
+            int quantityColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_QUANTITY);
+
+            while (cursor.moveToNext()) {
+                page.add(new Book(cursor.getLong(idColumnIndex),
+                        cursor.getString(nameColumnIndex),
+                        cursor.getLong(priceColumnIndex),
+                        cursor.getInt(quantityColumnIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return page;
+    }
+
+    @Override
+    public void onContentChanged() {
+        mStale = true;
+        super.onContentChanged();
+    }
+
+    /**
+     * Called when a single book changed, to patch it into the loaded pages on the next load.
+     */
+    private void onBookChanged(long id, String operation) {
+        synchronized (mChangedBooks) {
+            // An insert followed by an update is still new to the pages
+            String previous = mChangedBooks.get(id);
+            if (!BookContract.OPERATION_INSERT.equals(previous)
+                    || BookContract.OPERATION_DELETE.equals(operation)) {
+                mChangedBooks.put(id, operation);
+            }
+        }
+        // Load again without dropping the pages
+        super.onContentChanged();
+    }
+
+    /**
+     * Sorts the change notifications of the books table into changes of single books and
+     * changes of the whole table.
+     */
+    private class BookObserver extends ContentObserver {
+
+        BookObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        /**
+         * Called before Jelly Bean, where the changed URI isn't known.
+         */
+        @Override
+        public void onChange(boolean selfChange) {
+            onContentChanged();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            String operation = uri == null ? null
+                    : uri.getQueryParameter(BookContract.QUERY_PARAMETER_OPERATION);
+            if (operation == null) {
+                onContentChanged();
+                return;
+            }
+
+            // Updates of columns the list doesn't show don't matter
+            if (BookContract.OPERATION_UPDATE.equals(operation) && !showsAnyColumn(
+                    uri.getQueryParameter(BookContract.QUERY_PARAMETER_COLUMNS))) {
+                return;
+            }
+            onBookChanged(ContentUris.parseId(uri), operation);
+        }
+
+        /**
+         * Returns whether any of the comma separated columns is shown in the list.
+         */
+        private boolean showsAnyColumn(String columns) {
+            if (columns == null) {
+                return true;
+            }
+            for (String column : columns.split(",")) {
+                for (String shownColumn : PROJECTION) {
+                    if (shownColumn.equals(column)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void deliverResult(List<Book> books) {
+        if (isReset()) {
+            return;
+        }
+        mBooks = books;
+        mLoadingMore = false;
+        if (isStarted()) {
+            super.deliverResult(books);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(BookEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        // A page request that was cancelled when loading stopped has to be restarted
+        boolean pageRequested = mLoadingMore;
+        if (mBooks != null) {
+            deliverResult(mBooks);
+        }
+        if (takeContentChanged() || mBooks == null || pageRequested) {
+            mLoadingMore = pageRequested;
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mBooks = null;
+    }
+}
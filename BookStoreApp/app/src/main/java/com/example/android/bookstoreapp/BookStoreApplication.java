@@ -0,0 +1,38 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+import com.example.android.bookstoreapp.data.ReorderEngine;
+
+/**
+ * Application class of the book store.
+ */
+public class BookStoreApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // In debug builds, log every disk or network access made on the main thread and every
+        // cursor or stream that is never closed. Database work belongs on a background thread,
+        // in a loader or in BookRepository.
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+
+        // Follow the stock levels from the start, so low stock is noticed even before the
+        // inventory is opened
+        ReorderEngine.getInstance(this);
+    }
+}
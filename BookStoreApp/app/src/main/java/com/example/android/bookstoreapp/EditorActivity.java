@@ -2,6 +2,7 @@ package com.example.android.bookstoreapp;
 
 import android.Manifest;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -28,6 +29,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookRepository;
+import com.example.android.bookstoreapp.data.PriceFormatter;
 
 
 /**
@@ -55,6 +58,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      * EditText field to enter the book's price
      */
     private EditText mPriceEditText;
+    /**
+     * EditText field to enter the quantity at which the book should be reordered
+     */
+    private EditText mReorderLevelEditText;
     /**
      * Quantity of the book, which is initially 1
      */
@@ -121,6 +128,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText = (EditText) findViewById(R.id.edit_book_name);
         mAuthorEditText = (EditText) findViewById(R.id.edit_book_author);
         mPriceEditText = (EditText) findViewById(R.id.edit_book_price);
+        mReorderLevelEditText = (EditText) findViewById(R.id.edit_book_reorder_level);
         mQuantityTextView = (TextView) findViewById(R.id.quantity_text_view);
         mSupplierEditText = (EditText) findViewById(R.id.edit_book_supplier);
         mPhoneNumberEditText = (EditText) findViewById(R.id.edit_book_phone_number);
@@ -164,6 +172,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setOnTouchListener(mTouchListener);
         mAuthorEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
+        mReorderLevelEditText.setOnTouchListener(mTouchListener);
         incrementButton.setOnTouchListener(mTouchListener);
         decrementButton.setOnTouchListener(mTouchListener);
         mSupplierEditText.setOnTouchListener(mTouchListener);
@@ -179,9 +188,25 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String nameString = mNameEditText.getText().toString().trim();
         String authorString = mAuthorEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
-        float priceFloat = 0;
+        long priceCents = 0;
         if (priceString.length() != 0) {
-            priceFloat = Float.parseFloat(priceString);
+            try {
+                priceCents = PriceFormatter.parseCents(priceString);
+            } catch (NumberFormatException e) {
+                // Fractions of a cent are rejected below, like any other invalid price
+                priceCents = -1;
+            }
+        }
+        // The reorder level is optional, without one the book is reordered once sold out
+        String reorderLevelString = mReorderLevelEditText.getText().toString().trim();
+        int reorderLevelInt = 0;
+        if (reorderLevelString.length() != 0) {
+            try {
+                reorderLevelInt = Integer.parseInt(reorderLevelString);
+            } catch (NumberFormatException e) {
+                // Too large to be a quantity, the provider refuses it
+                reorderLevelInt = -1;
+            }
         }
         String supplierString = mSupplierEditText.getText().toString().trim();
         String phoneNumberString = mPhoneNumberEditText.getText().toString().trim();
@@ -191,8 +216,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         ContentValues values = new ContentValues();
         values.put(BookEntry.COLUMN_BOOK_NAME, nameString);
         values.put(BookEntry.COLUMN_AUTHOR_NAME, authorString);
-        values.put(BookEntry.COLUMN_BOOK_PRICE, priceFloat);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, priceCents);
         values.put(BookEntry.COLUMN_BOOK_QUANTITY, mQuantityInt);
+        values.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, reorderLevelInt);
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER, supplierString);
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER, phoneNumberString);
 
@@ -201,36 +227,46 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             Toast.makeText(EditorActivity.this, R.string.fill_out_fields, Toast.LENGTH_SHORT).show();
         } else {
             // Verify if the price is valid
-            if (priceFloat <= 0) {
+            if (priceCents <= 0) {
                 Toast.makeText(EditorActivity.this, R.string.invalid_price, Toast.LENGTH_SHORT).show();
             } else {
+                // The toasts are shown with the application context, because this activity
+                // is already finished when the write completes
+                final Context appContext = getApplicationContext();
                 if (mCurrentBookUri == null) {
-                    // Insert a new row for book in the database, returning the ID of that new row.
-                    Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
-
-                    // Show a toast message depending on whether or not the insertion was successful
-                    if (newUri == null) {
-                        // If the new content URI is null, then there was an error with insertion.
-                        Toast.makeText(this, getString(R.string.editor_insert_book_failed),
-                                Toast.LENGTH_SHORT).show();
-                    } else {
-                        // Otherwise, the insertion was successful and we can display a toast.
-                        Toast.makeText(this, getString(R.string.editor_insert_book_successful),
-                                Toast.LENGTH_SHORT).show();
-                    }
+                    // Insert a new row for book in the database on a background thread
+                    BookRepository.getInstance(this).insert(BookEntry.CONTENT_URI, values, new BookRepository.Callback<Uri>() {
+                        @Override
+                        public void onResult(Uri newUri) {
+                            // Show a toast message depending on whether or not the insertion was successful
+                            if (newUri == null) {
+                                // If the new content URI is null, then there was an error with insertion.
+                                Toast.makeText(appContext, R.string.editor_insert_book_failed,
+                                        Toast.LENGTH_SHORT).show();
+                            } else {
+                                // Otherwise, the insertion was successful and we can display a toast.
+                                Toast.makeText(appContext, R.string.editor_insert_book_successful,
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    });
                     //Exit activity
                     finish();
                 } else {
-                    // Update the book
-                    int rowsUpdated = getContentResolver().update(mCurrentBookUri, values, null, null);
-                    //Show a toast message depending on whether or not the update was successful
-                    if (rowsUpdated == 0) {
-                        // If no row was updated, then there was an error with the update.
-                        Toast.makeText(this, R.string.editor_edit_book_failed, Toast.LENGTH_SHORT).show();
-                    } else {
-                        // Otherwise, the update was successful and we can display a toast.
-                        Toast.makeText(this, R.string.editor_edit_book_successful, Toast.LENGTH_SHORT).show();
-                    }
+                    // Update the book on a background thread
+                    BookRepository.getInstance(this).update(mCurrentBookUri, values, new BookRepository.Callback<Integer>() {
+                        @Override
+                        public void onResult(Integer rowsUpdated) {
+                            //Show a toast message depending on whether or not the update was successful
+                            if (rowsUpdated == null || rowsUpdated == 0) {
+                                // If no row was updated, then there was an error with the update.
+                                Toast.makeText(appContext, R.string.editor_edit_book_failed, Toast.LENGTH_SHORT).show();
+                            } else {
+                                // Otherwise, the update was successful and we can display a toast.
+                                Toast.makeText(appContext, R.string.editor_edit_book_successful, Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    });
                     //Exit activity
                     finish();
                 }
@@ -309,6 +345,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 BookEntry.COLUMN_AUTHOR_NAME,
                 BookEntry.COLUMN_BOOK_PRICE,
                 BookEntry.COLUMN_BOOK_QUANTITY,
+                BookEntry.COLUMN_BOOK_REORDER_LEVEL,
                 BookEntry.COLUMN_BOOK_SUPPLIER,
                 BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
         };
@@ -324,14 +361,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int authorColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_AUTHOR_NAME);
             int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_QUANTITY);
+            int reorderLevelColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_REORDER_LEVEL);
             int supplierColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_SUPPLIER);
             int phoneColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
             String author = cursor.getString(authorColumnIndex);
-            float price = cursor.getFloat(priceColumnIndex);
+            long price = cursor.getLong(priceColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
+            int reorderLevel = cursor.getInt(reorderLevelColumnIndex);
             String supplier = cursor.getString(supplierColumnIndex);
             String phoneNumber = cursor.getString(phoneColumnIndex);
 
@@ -341,8 +380,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
             mAuthorEditText.setText(author);
-            mPriceEditText.setText(Float.toString(price));
+            mPriceEditText.setText(PriceFormatter.toPlainString(price));
             mQuantityTextView.setText(Integer.toString(quantity));
+            mReorderLevelEditText.setText(Integer.toString(reorderLevel));
             mSupplierEditText.setText(supplier);
             mPhoneNumberEditText.setText(phoneNumber);
         }
@@ -355,6 +395,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mAuthorEditText.setText("");
         mPhoneNumberEditText.setText("");
         mQuantityTextView.setText("");
+        mReorderLevelEditText.setText("");
         mSupplierEditText.setText("");
         mPhoneNumberEditText.setText("");
     }
@@ -434,18 +475,23 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private void deleteBook() {
         // Only perform the delete if this is an existing book.
         if (mCurrentBookUri != null) {
-            // Call the ContentResolver to delete the book at the given content URI.
-            int rowsDeleted = getContentResolver().delete(mCurrentBookUri, null, null);
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, getString(R.string.editor_delete_book_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_delete_book_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // Delete the book at the given content URI on a background thread
+            final Context appContext = getApplicationContext();
+            BookRepository.getInstance(this).delete(mCurrentBookUri, new BookRepository.Callback<Integer>() {
+                @Override
+                public void onResult(Integer rowsDeleted) {
+                    // Show a toast message depending on whether or not the delete was successful.
+                    if (rowsDeleted == null || rowsDeleted == 0) {
+                        // If no rows were deleted, then there was an error with the delete.
+                        Toast.makeText(appContext, R.string.editor_delete_book_failed,
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        // Otherwise, the delete was successful and we can display a toast.
+                        Toast.makeText(appContext, R.string.editor_delete_book_successful,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
             // Close the activity
             finish();
         }
@@ -3,33 +3,69 @@ package com.example.android.bookstoreapp;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
+import android.support.v4.util.LongSparseArray;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.Toast;
 
 import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookRepository;
+import com.example.android.bookstoreapp.data.ReorderEngine;
+import com.example.android.bookstoreapp.data.StockWriteQueue;
+
+import java.util.List;
 
 /**
  * Displays list of books that were entered and stored in the app.
  */
-public class InventoryActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class InventoryActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Book>> {
 
     /**
      * Identifier for the book data loader
      */
     private static final int BOOK_LOADER = 0;
 
-    BookCursorAdapter mCursorAdapter;
+    BookAdapter mAdapter;
+
+    /**
+     * View shown instead of the list when there are no books
+     */
+    private View mEmptyView;
+
+    /**
+     * Alerts the user while the list is shown when books reach their reorder level
+     */
+    private final ReorderEngine.Listener mReorderListener = new ReorderEngine.Listener() {
+        @Override
+        public void onSuggestionsChanged(LongSparseArray<List<ReorderEngine.Suggestion>> suggestions, int newlyLow) {
+            if (newlyLow > 0) {
+                Toast.makeText(InventoryActivity.this, getResources().getQuantityString(
+                        R.plurals.reorder_alert, newlyLow, newlyLow), Toast.LENGTH_LONG).show();
+            }
+        }
+    };
+
+    /**
+     * Tells the user when sales from the list turn out to exceed the stock
+     */
+    private final StockWriteQueue.Listener mSalesListener = new StockWriteQueue.Listener() {
+        @Override
+        public void onSalesRejected(long[] ids) {
+            Toast.makeText(InventoryActivity.this, getResources().getQuantityString(
+                    R.plurals.sales_rejected, ids.length, ids.length), Toast.LENGTH_LONG).show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,22 +82,20 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
             }
         });
 
-        // Find the ListView which will be populated with the book data
-        final ListView bookListView = (ListView) findViewById(R.id.list);
-
-        //Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        bookListView.setEmptyView(emptyView);
+        // Find the RecyclerView which will be populated with the book data
+        final RecyclerView bookListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        bookListView.setLayoutManager(layoutManager);
+        bookListView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
 
-        // Setup an Adapter to create a list item for each row of book data in the Cursor
-        // There is no data yet (until the loader finishes) so pass in null for the Cursor
-        mCursorAdapter = new BookCursorAdapter(this, null);
-        bookListView.setAdapter(mCursorAdapter);
+        //Find the empty view, which is only shown when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup item click listener
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an Adapter to create a list item for each loaded book
+        // There is no data yet (until the loader finishes)
+        mAdapter = new BookAdapter(this, new BookAdapter.OnBookClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onBookClick(long id) {
                 //Create new intent to go to EditorActivity
                 Intent intent = new Intent(InventoryActivity.this, EditorActivity.class);
 
@@ -75,11 +109,41 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
                 startActivity(intent);
             }
         });
+        bookListView.setAdapter(mAdapter);
+
+        // Ask for the next page of books before the list scrolls to the end of the loaded ones
+        bookListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = layoutManager.getItemCount();
+                if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                        + BookPagingLoader.PREFETCH_DISTANCE >= totalItemCount) {
+                    Loader<List<Book>> loader = getLoaderManager().getLoader(BOOK_LOADER);
+                    if (loader != null) {
+                        ((BookPagingLoader) loader).loadMore();
+                    }
+                }
+            }
+        });
 
         // Kick off the loader
         getLoaderManager().initLoader(BOOK_LOADER, null, this);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        ReorderEngine.getInstance(this).setListener(mReorderListener);
+        StockWriteQueue.getInstance(this).setListener(mSalesListener);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        ReorderEngine.getInstance(this).setListener(null);
+        StockWriteQueue.getInstance(this).setListener(null);
+    }
+
     /**
      * Helper method to insert hardcoded book data into the database.
      */
@@ -89,13 +153,13 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
         ContentValues values = new ContentValues();
         values.put(BookEntry.COLUMN_BOOK_NAME, "Romeo and Juliet");
         values.put(BookEntry.COLUMN_AUTHOR_NAME, "William Shakespeare");
-        values.put(BookEntry.COLUMN_BOOK_PRICE, 12.5);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 1250);
         values.put(BookEntry.COLUMN_BOOK_QUANTITY, 30);
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER, "BookExpress");
         values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER, "0723345444");
 
-        // Insert the book into the database
-        Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
+        // Insert the book into the database on a background thread
+        BookRepository.getInstance(this).insert(BookEntry.CONTENT_URI, values, null);
     }
 
     @Override
@@ -123,35 +187,47 @@ public class InventoryActivity extends AppCompatActivity implements LoaderManage
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_BOOK_NAME,
-                BookEntry.COLUMN_BOOK_PRICE,
-                BookEntry.COLUMN_BOOK_QUANTITY
-        };
-        // This loader will execute the ContentProvider's query method on a background thread.
-        return new CursorLoader(this, BookEntry.CONTENT_URI, projection, null, null, null);
+    public Loader<List<Book>> onCreateLoader(int id, Bundle args) {
+        // This loader will read the books page by page on a background thread.
+        return new BookPagingLoader(this);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        // Update BookCursorAdapter with this new cursor containing updated book data
-        mCursorAdapter.swapCursor(cursor);
+    public void onLoadFinished(Loader<List<Book>> loader, List<Book> books) {
+        // Update BookAdapter with the books loaded so far
+        mAdapter.setBooks(books);
+        mEmptyView.setVisibility(books.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<List<Book>> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mAdapter.setBooks(null);
     }
 
     /**
      * Helper method to delete all books in the database.
      */
     private void deleteAllBooks() {
-        int rowsDeleted = getContentResolver().delete(BookEntry.CONTENT_URI, null, null);
+        // Delete the books on a background thread, the list reloads once they are gone. For a
+        // while they can still be brought back.
+        BookRepository.getInstance(this).delete(BookEntry.CONTENT_URI, new BookRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer rowsDeleted) {
+                if (rowsDeleted == null || rowsDeleted == 0 || isFinishing()) {
+                    return;
+                }
+                Snackbar.make(findViewById(R.id.list), getResources().getQuantityString(
+                        R.plurals.books_deleted, rowsDeleted, rowsDeleted), Snackbar.LENGTH_LONG)
+                        .setAction(R.string.action_undo, new View.OnClickListener() {
+                            @Override
+                            public void onClick(View view) {
+                                BookRepository.getInstance(InventoryActivity.this).undoDelete(null);
+                            }
+                        })
+                        .show();
+            }
+        });
     }
 
 }
@@ -0,0 +1,344 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.ChangeEntry;
+import com.example.android.bookstoreapp.data.BookContract.SupplierEntry;
+
+import java.util.Arrays;
+
+/**
+ * Moves the books that no longer sell out of the books table, into the archive database, in
+ * the background.
+ * <p>
+ * A book is cold once it has nothing in stock, here or on the sync server, hasn't sold for
+ * {@link BookEntry#ARCHIVE_AFTER_MS} and has no change waiting in the change log. Once a day,
+ * the archiver walks the books table in _ID order and moves the cold books in chunks of at
+ * most {@link #CHUNK_SIZE}, so the books table and its indexes only hold the books that are
+ * being sold, however large the catalog grows.
+ * <p>
+ * A book moves in two steps, each of which writes a single database: it is copied into the
+ * archive, then removed from the books table if it is still the same as its copy. Writes to
+ * two databases are only atomic per database in write-ahead logging mode, so a crash in
+ * between can leave a book in both, but never in neither. The copy left behind is hidden
+ * and dropped by the next run. Books are brought back the same way, see
+ * {@link #restore(String, String[])}.
+ */
+class BookArchiver {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookArchiver.class.getSimpleName();
+
+    /**
+     * Largest number of books moved in one step
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Time after the provider starts before the first run
+     */
+    private static final long STARTUP_DELAY_MS = 60 * 1000;
+
+    /**
+     * Time between two runs
+     */
+    private static final long ARCHIVE_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Largest number of books restored by one statement, below the 999 arguments SQLite
+     * takes at most
+     */
+    private static final int MAX_RESTORE_ARGS = 500;
+
+    /**
+     * Books table as seen from the connection to the archive
+     */
+    private static final String BOOKS = BookDbHelper.MAIN_SCHEMA + "." + BookEntry.TABLE_NAME;
+
+    /**
+     * Selection of the cold books sold at or before the time bound after the _ID range
+     */
+    private static final String COLD_SELECTION = BookEntry.COLUMN_BOOK_QUANTITY + " = 0 AND "
+            + BookEntry.COLUMN_BOOK_SYNCED_QUANTITY + " = 0 AND "
+            + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL AND "
+            + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " <= ? AND "
+            + BookEntry._ID + " NOT IN (SELECT " + ChangeEntry.COLUMN_BOOK_ID + " FROM "
+            + BookDbHelper.MAIN_SCHEMA + "." + ChangeEntry.TABLE_NAME + ")";
+
+    /**
+     * Finds the last _ID of the next chunk of books to move
+     */
+    private static final String SQL_CHUNK_END = "SELECT IFNULL(MAX(" + BookEntry._ID + "), 0) FROM (SELECT "
+            + BookEntry._ID + " FROM " + BOOKS + " WHERE " + BookEntry._ID + " > ? AND " + COLD_SELECTION
+            + " ORDER BY " + BookEntry._ID + " LIMIT " + CHUNK_SIZE + ")";
+
+    /**
+     * Drops the archived books that are back in the books table, or were taken over by a book
+     * there
+     */
+    private static final String SQL_DROP_TAKEN_OVER = "DELETE FROM " + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME
+            + " WHERE " + BookDbHelper.takenOver(BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME, BOOKS);
+
+    private final BookDbHelper mDbHelper;
+    private final Runnable mOnArchived;
+    private final Handler mHandler;
+
+    private final Runnable mDropTakenOver = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mDbHelper.getArchiveDatabase().execSQL(SQL_DROP_TAKEN_OVER);
+            } catch (SQLiteException e) {
+                // The next run drops them
+                Log.e(LOG_TAG, "Failed to drop restored books", e);
+            }
+        }
+    };
+
+    private final Runnable mArchive = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                archive();
+            } catch (SQLiteException e) {
+                // Try again in the next run
+                Log.e(LOG_TAG, "Failed to archive books", e);
+            }
+            mHandler.postDelayed(this, ARCHIVE_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * @param onArchived Run after books were moved to the archive, on the thread that moved
+     *                   them.
+     */
+    BookArchiver(BookDbHelper dbHelper, Runnable onArchived) {
+        mDbHelper = dbHelper;
+        mOnArchived = onArchived;
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.postDelayed(mArchive, STARTUP_DELAY_MS);
+    }
+
+    /**
+     * Moves the cold books to the archive.
+     *
+     * @return the number of books moved
+     */
+    synchronized int archive() {
+        SQLiteDatabase db = mDbHelper.getArchiveDatabase();
+
+        // Copies left behind by a run or a restore that didn't finish
+        db.execSQL(SQL_DROP_TAKEN_OVER);
+
+        String[] columns = BookDbHelper.getColumns(db, BookDbHelper.MAIN_SCHEMA, BookEntry.TABLE_NAME);
+        String columnList = TextUtils.join(", ", columns);
+        SQLiteStatement copy = db.compileStatement("INSERT OR REPLACE INTO "
+                + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME + "(" + columnList + ") SELECT " + columnList
+                + " FROM " + BOOKS + " WHERE " + BookEntry._ID + " > ? AND " + BookEntry._ID + " <= ? AND "
+                + COLD_SELECTION);
+        SQLiteStatement remove = db.compileStatement("DELETE FROM " + BOOKS + " WHERE "
+                + BookEntry._ID + " > ? AND " + BookEntry._ID + " <= ? AND " + sameAsCopy(columns));
+        String[] chunkArgs = new String[2];
+        String soldBefore = String.valueOf(System.currentTimeMillis() - BookEntry.ARCHIVE_AFTER_MS);
+
+        int archived = 0;
+        long lastId = 0;
+        try {
+            while (true) {
+                chunkArgs[0] = String.valueOf(lastId);
+                chunkArgs[1] = soldBefore;
+                long chunkEnd = DatabaseUtils.longForQuery(db, SQL_CHUNK_END, chunkArgs);
+                if (chunkEnd == 0) {
+                    break;
+                }
+
+                // Each statement is a transaction of its own, on a single database
+                copy.bindLong(1, lastId);
+                copy.bindLong(2, chunkEnd);
+                copy.bindString(3, soldBefore);
+                copy.executeUpdateDelete();
+                remove.bindLong(1, lastId);
+                remove.bindLong(2, chunkEnd);
+                archived += remove.executeUpdateDelete();
+                lastId = chunkEnd;
+            }
+        } finally {
+            copy.close();
+            remove.close();
+        }
+
+        if (archived > 0) {
+            Log.i(LOG_TAG, "Archived " + archived + " books");
+            mOnArchived.run();
+        }
+        return archived;
+    }
+
+    /**
+     * Moves the archived books with the given values of a column back into the books table,
+     * with the same _ID. The column must be indexed in the archive: {@link BookEntry#_ID},
+     * {@link BookEntry#COLUMN_BOOK_GLOBAL_ID} or {@link BookEntry#COLUMN_BOOK_ISBN}. Books whose
+     * global ID or ISBN a book of the books table has taken over are dropped instead. This
+     * writes the books table from another connection, so it must not be called inside a
+     * transaction of the books table.
+     *
+     * @return the number of books restored
+     */
+    int restore(String column, String[] values) {
+        if (values.length == 0 || !mDbHelper.hasArchive()) {
+            return 0;
+        }
+        SQLiteDatabase db = mDbHelper.getArchiveDatabase();
+
+        // A book whose supplier was deleted while it was archived comes back without one
+        String[] columns = BookDbHelper.getColumns(db, BookDbHelper.MAIN_SCHEMA, BookEntry.TABLE_NAME);
+        String[] selected = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            selected[i] = !BookEntry.COLUMN_BOOK_SUPPLIER_ID.equals(columns[i]) ? columns[i]
+                    : "(SELECT " + SupplierEntry._ID + " FROM " + BookDbHelper.MAIN_SCHEMA + "."
+                    + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry._ID + " = "
+                    + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME + "." + columns[i] + ")";
+        }
+
+        int restored = 0;
+        for (int start = 0; start < values.length; start += MAX_RESTORE_ARGS) {
+            String[] args = Arrays.copyOfRange(values, start, Math.min(values.length, start + MAX_RESTORE_ARGS));
+            String[] placeholders = new String[args.length];
+            Arrays.fill(placeholders, "?");
+            String selection = column + " IN (" + TextUtils.join(", ", placeholders) + ")";
+
+            // Same two steps as archiving, the other way round
+            SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + BOOKS + "("
+                    + TextUtils.join(", ", columns) + ") SELECT " + TextUtils.join(", ", selected) + " FROM "
+                    + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME + " WHERE " + selection);
+            SQLiteStatement drop = db.compileStatement("DELETE FROM " + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME
+                    + " WHERE " + selection + " AND "
+                    + BookDbHelper.takenOver(BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME, BOOKS));
+            try {
+                insert.bindAllArgsAsStrings(args);
+                restored += insert.executeUpdateDelete();
+                drop.bindAllArgsAsStrings(args);
+                drop.executeUpdateDelete();
+            } finally {
+                insert.close();
+                drop.close();
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Copies the archived books with the given values of a column back into the books table,
+     * with the same _ID, through the given connection to the main database. Unlike
+     * {@link #restore(String, String[])}, this may be called inside a transaction of the books
+     * table: the books come back when it commits, and not at all if it is rolled back. Their
+     * copies in the archive are hidden from then on, and dropped in the background once the
+     * transaction is committed, or by the next run.
+     *
+     * @return the number of books copied back
+     */
+    int restoreInTransaction(SQLiteDatabase db, String column, String[] values) {
+        if (values.length == 0 || !mDbHelper.hasArchive()) {
+            return 0;
+        }
+        SQLiteDatabase archive = mDbHelper.getArchiveDatabase();
+        String[] columns = BookDbHelper.getColumns(db, "main", BookEntry.TABLE_NAME);
+        String columnList = TextUtils.join(", ", columns);
+
+        int restored = 0;
+        for (int start = 0; start < values.length; start += MAX_RESTORE_ARGS) {
+            String[] args = Arrays.copyOfRange(values, start, Math.min(values.length, start + MAX_RESTORE_ARGS));
+            String[] placeholders = new String[args.length];
+            Arrays.fill(placeholders, "?");
+
+            // The archive is read from its own connection, which doesn't touch the books table
+            Cursor cursor = archive.rawQuery("SELECT " + columnList + " FROM "
+                    + BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME + " WHERE " + column + " IN ("
+                    + TextUtils.join(", ", placeholders) + ")", args);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues book = readBook(cursor);
+
+                    // A book whose supplier was deleted while it was archived comes back
+                    // without one
+                    Long supplierId = book.getAsLong(BookEntry.COLUMN_BOOK_SUPPLIER_ID);
+                    if (supplierId != null && DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME,
+                            SupplierEntry._ID + " = ?", new String[]{String.valueOf(supplierId)}) == 0) {
+                        book.putNull(BookEntry.COLUMN_BOOK_SUPPLIER_ID);
+                    }
+
+                    // A book that took over the _ID, global ID or ISBN keeps it
+                    if (db.insertWithOnConflict(BookEntry.TABLE_NAME, null, book,
+                            SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                        restored++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (restored > 0) {
+            mHandler.post(mDropTakenOver);
+        }
+        return restored;
+    }
+
+    /**
+     * Returns the columns of the cursor's row with their SQLite types.
+     */
+    private static ContentValues readBook(Cursor cursor) {
+        ContentValues book = new ContentValues(cursor.getColumnCount());
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            String column = cursor.getColumnName(i);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    book.putNull(column);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    book.put(column, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    book.put(column, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    book.put(column, cursor.getBlob(i));
+                    break;
+                default:
+                    book.put(column, cursor.getString(i));
+                    break;
+            }
+        }
+        return book;
+    }
+
+    /**
+     * Returns the condition that the book of the books table in a DELETE has a copy in the
+     * archive with the same values in every column.
+     */
+    private static String sameAsCopy(String[] columns) {
+        StringBuilder condition = new StringBuilder("EXISTS (SELECT 1 FROM ")
+                .append(BookDbHelper.ARCHIVED_BOOKS_TABLE_NAME).append(" a WHERE a.").append(BookEntry._ID)
+                .append(" = ").append(BOOKS).append('.').append(BookEntry._ID);
+        for (String column : columns) {
+            if (!BookEntry._ID.equals(column)) {
+                condition.append(" AND a.").append(column).append(" IS ").append(BOOKS).append('.').append(column);
+            }
+        }
+        return condition.append(')').toString();
+    }
+}
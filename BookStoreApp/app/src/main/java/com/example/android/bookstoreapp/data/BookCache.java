@@ -0,0 +1,162 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-through cache of single books for {@link BookProvider}, keyed by _ID.
+ * <p>
+ * A cached book holds the values of {@link #COLUMNS}, the columns the editor reads. Lookups
+ * that ask for a subset of them can be answered without SQLite. The provider removes a book
+ * after every write to it, and empties the cache after writes whose rows it doesn't know.
+ * <p>
+ * A lookup that reads a book from the database may race with a write to the same book. To
+ * keep the old row out of the cache, every invalidation bumps a generation counter, and a
+ * row is only stored if no invalidation happened since its lookup started.
+ */
+class BookCache {
+
+    /**
+     * Columns held for every cached book
+     */
+    static final String[] COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_AUTHOR_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+    };
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    private final LruCache<Long, Object[]> mRows;
+
+    /* Number of invalidations so far. Guarded by this. */
+    private long mGeneration;
+
+    /**
+     * @param maxBooks Number of books kept before the least recently used one is dropped.
+     */
+    BookCache(int maxBooks) {
+        mRows = new LruCache<>(maxBooks);
+    }
+
+    /**
+     * Returns whether a lookup with the given projection can be answered from the cache.
+     */
+    static boolean canServe(String[] projection) {
+        // A null projection means every column of the table, which may be more than COLUMNS
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!COLUMN_LIST.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached values of a book, or null if it isn't cached.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the row is read.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the values of a book, unless the cache was invalidated after the lookup began.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drops the given book.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drops every book.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int evictionCount() {
+        return mRows.evictionCount();
+    }
+
+    /**
+     * Reads the current row of a cursor over {@link #COLUMNS} into an array of values.
+     */
+    static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Builds a cursor with the given columns of a cached row, or an empty cursor if the row
+     * is null.
+     */
+    static Cursor toCursor(String[] projection, Object[] row) {
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[COLUMN_LIST.indexOf(projection[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+/**
+ * Removes deleted books for good, in the background.
+ * <p>
+ * {@link BookProvider} deletes a book by setting its deleted_at time, which hides it at once
+ * and keeps it restorable for {@link BookEntry#UNDO_DELETE_WINDOW_MS}. Once that has passed,
+ * the compactor removes the book in transactions of at most {@link #CHUNK_SIZE} books, so
+ * other writes never wait long behind a large delete. The books are walked in _ID order, so
+ * each chunk picks up where the last one stopped and the table is read only once.
+ * <p>
+ * The database is in incremental auto-vacuum mode, see {@link BookDbHelper}. Every
+ * {@link #VACUUM_INTERVAL_MS}, and right after books were removed, the compactor hands free
+ * pages back to the file system, {@link #VACUUM_PAGES} per step with a pause between steps, so
+ * the file never stays locked for long.
+ */
+class BookCompactor {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookCompactor.class.getSimpleName();
+
+    /**
+     * Largest number of books removed in one transaction
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Largest number of pages freed by one incremental vacuum step
+     */
+    private static final int VACUUM_PAGES = 256;
+
+    /**
+     * Pause between two incremental vacuum steps, for the writes waiting behind them
+     */
+    private static final long VACUUM_STEP_DELAY_MS = 100;
+
+    /**
+     * Time between two checks for free pages
+     */
+    private static final long VACUUM_INTERVAL_MS = 15 * 60 * 1000;
+
+    /**
+     * Time after the provider starts before books deleted in an earlier run are removed
+     */
+    private static final long STARTUP_DELAY_MS = 30000;
+
+    /**
+     * Finds the last _ID of the next chunk of books to remove
+     */
+    private static final String SQL_CHUNK_END = "SELECT IFNULL(MAX(" + BookEntry._ID + "), 0) FROM (SELECT "
+            + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + " > ? AND "
+            + BookEntry.COLUMN_BOOK_DELETED_AT + " <= ? ORDER BY " + BookEntry._ID + " LIMIT " + CHUNK_SIZE + ")";
+
+    private final BookDbHelper mDbHelper;
+    private final Handler mHandler;
+
+    private final Runnable mCompact = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    private final Runnable mVacuum = new Runnable() {
+        @Override
+        public void run() {
+            vacuumStep();
+        }
+    };
+
+    BookCompactor(BookDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Books deleted just before the app was last closed are still waiting
+        mHandler.postDelayed(mCompact, STARTUP_DELAY_MS);
+        mHandler.postDelayed(mVacuum, STARTUP_DELAY_MS);
+    }
+
+    /**
+     * Schedules the removal of the books deleted just now, once they can't be brought back
+     * anymore. Each call pushes back the removal, so a series of deletes is removed in one go.
+     */
+    void schedule() {
+        mHandler.removeCallbacks(mCompact);
+        mHandler.postDelayed(mCompact, BookEntry.UNDO_DELETE_WINDOW_MS);
+    }
+
+    /**
+     * Removes the books deleted before the undo window, then starts freeing their pages.
+     */
+    private void compact() {
+        try {
+            int removed = removeDeletedBooks(System.currentTimeMillis() - BookEntry.UNDO_DELETE_WINDOW_MS);
+            if (removed > 0) {
+                Log.i(LOG_TAG, "Removed " + removed + " deleted books");
+                mHandler.removeCallbacks(mVacuum);
+                mHandler.post(mVacuum);
+            }
+        } catch (SQLiteException e) {
+            // Try again with the next delete, or in the next run
+            Log.e(LOG_TAG, "Failed to remove deleted books", e);
+        }
+    }
+
+    /**
+     * Removes the books deleted at or before the given time, one chunk per transaction.
+     *
+     * @return the number of books removed
+     */
+    private int removeDeletedBooks(long deletedBefore) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String[] chunkArgs = new String[2];
+        String[] deleteArgs = new String[3];
+        String deletedBeforeArg = String.valueOf(deletedBefore);
+
+        int removed = 0;
+        long lastId = 0;
+        while (true) {
+            db.beginTransaction();
+            try {
+                chunkArgs[0] = String.valueOf(lastId);
+                chunkArgs[1] = deletedBeforeArg;
+                long chunkEnd = DatabaseUtils.longForQuery(db, SQL_CHUNK_END, chunkArgs);
+                if (chunkEnd == 0) {
+                    db.setTransactionSuccessful();
+                    return removed;
+                }
+
+                deleteArgs[0] = String.valueOf(lastId);
+                deleteArgs[1] = String.valueOf(chunkEnd);
+                deleteArgs[2] = deletedBeforeArg;
+                removed += db.delete(BookEntry.TABLE_NAME, BookEntry._ID + " > ? AND " + BookEntry._ID + " <= ? AND "
+                        + BookEntry.COLUMN_BOOK_DELETED_AT + " <= ?", deleteArgs);
+                db.setTransactionSuccessful();
+                lastId = chunkEnd;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Hands up to {@link #VACUUM_PAGES} free pages back to the file system, then schedules
+     * the next step, or the next check once no free pages are left. Each step is a
+     * transaction of its own, so other writes get in between.
+     */
+    private void vacuumStep() {
+        long delay = VACUUM_INTERVAL_MS;
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == BookDbHelper.AUTO_VACUUM_INCREMENTAL) {
+                long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                if (freePages > 0) {
+                    BookDbHelper.incrementalVacuum(db, VACUUM_PAGES);
+                    if (freePages > VACUUM_PAGES) {
+                        delay = VACUUM_STEP_DELAY_MS;
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            // Try again at the next check
+            Log.e(LOG_TAG, "Failed to free pages", e);
+        }
+        mHandler.postDelayed(mVacuum, delay);
+    }
+}
@@ -15,6 +15,433 @@ public class BookContract {
 
     public static final String PATH_BOOKS = "books";
 
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PATH_STATS = "stats";
+
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    public static final String PATH_CHANGES = "changes";
+
+    public static final String PATH_ISBN = "isbn";
+
+    /**
+     * Name of the meta-data of the provider that selects the SQLite settings, see
+     * {@link TuningProfile#forName(String)}. Read once, when the provider is created.
+     * Type: TEXT
+     */
+    public static final String META_DATA_TUNING_PROFILE = "com.example.android.bookstoreapp.TUNING_PROFILE";
+
+    /**
+     * Query parameter that limits the number of rows returned.
+     * Type: INTEGER
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter of the books URI that returns only the books whose _ID is greater than
+     * the given one, ordered by _ID. Together with {@link #QUERY_PARAMETER_LIMIT} it reads
+     * the table one page at a time.
+     * Type: INTEGER
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter of the changes URI that returns only the changes with a sequence number
+     * greater than the given one.
+     * Type: INTEGER
+     */
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    /**
+     * Query parameter of the books URI for insert() and bulkInsert(). When true, a book with
+     * the ISBN of a book already in the table updates that book instead of being added, so
+     * loading the same feed twice leaves the table as it was after the first time.
+     * Type: BOOLEAN
+     */
+    public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+    /**
+     * Query parameter of the books URI, and of the URIs of a single book, for query(). When
+     * true, the books moved to the archive are returned too. By default only the books of the
+     * main table are returned, which stays small however many books the archive holds.
+     * Type: BOOLEAN
+     */
+    public static final String QUERY_PARAMETER_INCLUDE_ARCHIVED = "include_archived";
+
+    /**
+     * Query parameter of the books URI for bulkInsert(), naming the catalog feed the books come
+     * from. Together with {@link #QUERY_PARAMETER_IMPORT_FINGERPRINT} and
+     * {@link #QUERY_PARAMETER_IMPORT_OFFSET} it stores where the import of the feed stopped, in
+     * the same transaction as the books, see {@link #METHOD_IMPORT_CHECKPOINT}.
+     * Type: TEXT
+     */
+    public static final String QUERY_PARAMETER_IMPORT_SOURCE = "import_source";
+
+    /**
+     * Query parameter of the book URIs for insert(), update() and delete(). When true, the
+     * write applies a change of the sync server, and its changes are logged as
+     * {@link ChangeEntry#COLUMN_REMOTE}, so they aren't sent back to the server.
+     * Type: BOOLEAN
+     */
+    public static final String QUERY_PARAMETER_REMOTE = "remote";
+
+    /**
+     * Query parameter telling the version of the feed named by
+     * {@link #QUERY_PARAMETER_IMPORT_SOURCE}, so a checkpoint isn't used for another version.
+     * Type: TEXT
+     */
+    public static final String QUERY_PARAMETER_IMPORT_FINGERPRINT = "import_fingerprint";
+
+    /**
+     * Query parameter with the byte offset of the feed named by
+     * {@link #QUERY_PARAMETER_IMPORT_SOURCE} at which the import goes on after these books.
+     * Type: INTEGER
+     */
+    public static final String QUERY_PARAMETER_IMPORT_OFFSET = "import_offset";
+
+    /**
+     * Query parameter of a change notification for a single book, telling what happened to
+     * it: {@link #OPERATION_INSERT}, {@link #OPERATION_UPDATE} or {@link #OPERATION_DELETE}.
+     * Notifications without it are about any number of books.
+     */
+    public static final String QUERY_PARAMETER_OPERATION = "op";
+
+    /**
+     * Query parameter of an update notification, listing the columns that were written,
+     * separated by commas.
+     */
+    public static final String QUERY_PARAMETER_COLUMNS = "columns";
+
+    public static final String OPERATION_INSERT = "insert";
+    public static final String OPERATION_UPDATE = "update";
+    public static final String OPERATION_DELETE = "delete";
+
+    /**
+     * Provider method that sells copies of a book in a single atomic step. Call it through
+     * {@link ContentResolver#call} with the _ID of the book as the argument and, optionally,
+     * the number of copies in {@link #EXTRA_AMOUNT} (1 by default). Nothing is sold unless
+     * enough copies are in stock. The result holds {@link #EXTRA_SOLD} and
+     * {@link #EXTRA_QUANTITY}.
+     */
+    public static final String METHOD_SELL = "sell";
+
+    /**
+     * Number of copies to sell.
+     * Type: int
+     */
+    public static final String EXTRA_AMOUNT = "amount";
+
+    /**
+     * Whether the copies were sold.
+     * Type: boolean
+     */
+    public static final String EXTRA_SOLD = "sold";
+
+    /**
+     * Quantity in stock after the call, or -1 if there is no such book.
+     * Type: int
+     */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /**
+     * Provider method that adds quantity changes to several books in one transaction. The
+     * books go in {@link #EXTRA_IDS}, the changes in {@link #EXTRA_DELTAS} and the sequence
+     * number of the batch in {@link #EXTRA_SEQUENCE}. A batch whose sequence number is not
+     * greater than the last applied one is refused with an {@link IllegalArgumentException},
+     * so a batch is never applied twice; a sender that doesn't know whether its batch went in
+     * compares its number with the last applied one first. A change that would take a quantity below 0 is not applied, like a sale without enough
+     * copies; the _IDs of such books, and of books that no longer exist, are returned in
+     * {@link #EXTRA_REJECTED_IDS}. The result also holds the last applied sequence number in
+     * {@link #EXTRA_SEQUENCE}; calling the method without books just returns it.
+     */
+    public static final String METHOD_ADJUST_STOCK = "adjust_stock";
+
+    /**
+     * _IDs of the books to change.
+     * Type: long[]
+     */
+    public static final String EXTRA_IDS = "ids";
+
+    /**
+     * Quantity changes, one per book.
+     * Type: int[]
+     */
+    public static final String EXTRA_DELTAS = "deltas";
+
+    /**
+     * Sequence number of a batch of stock changes.
+     * Type: long
+     */
+    public static final String EXTRA_SEQUENCE = "sequence";
+
+    /**
+     * _IDs of the books whose stock change was not applied.
+     * Type: long[]
+     */
+    public static final String EXTRA_REJECTED_IDS = "rejected_ids";
+
+    /**
+     * Provider method that copies the write-ahead log back into the database, to call once
+     * a large batch of writes is done.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Provider method that returns the counters of the single-book cache in
+     * {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES} and {@link #EXTRA_CACHE_EVICTIONS}.
+     */
+    public static final String METHOD_CACHE_STATS = "cache_stats";
+
+    /**
+     * Number of single-book lookups answered from the cache.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    /**
+     * Number of single-book lookups that had to read the database.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /**
+     * Number of books dropped from the cache to make room for others.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+
+    /**
+     * Provider method that works out the inventory statistics from the books table and
+     * compares them with the ones kept in {@link StatsEntry#TABLE_NAME}. The number of
+     * statistics rows that differ is returned in {@link #EXTRA_MISMATCHES}. If
+     * {@link #EXTRA_REBUILD} is true, the statistics are then replaced with the computed ones.
+     */
+    public static final String METHOD_VERIFY_STATS = "verify_stats";
+
+    /**
+     * Whether to rebuild the statistics after checking them.
+     * Type: boolean
+     */
+    public static final String EXTRA_REBUILD = "rebuild";
+
+    /**
+     * Number of statistics rows that didn't match the books.
+     * Type: int
+     */
+    public static final String EXTRA_MISMATCHES = "mismatches";
+
+    /**
+     * Provider method that brings back the books removed by the last delete, if it happened
+     * less than {@link BookEntry#UNDO_DELETE_WINDOW_MS} ago. The number of books restored is
+     * returned in {@link #EXTRA_RESTORED}.
+     */
+    public static final String METHOD_UNDO_DELETE = "undo_delete";
+
+    /**
+     * Number of books brought back.
+     * Type: int
+     */
+    public static final String EXTRA_RESTORED = "restored";
+
+    /**
+     * Provider method that moves the books that haven't sold for
+     * {@link BookEntry#ARCHIVE_AFTER_MS} and have nothing left in stock to the archive now,
+     * instead of waiting for the daily run in the background. The number of books moved is
+     * returned in {@link #EXTRA_ARCHIVED}.
+     */
+    public static final String METHOD_ARCHIVE = "archive";
+
+    /**
+     * Number of books moved to the archive.
+     * Type: int
+     */
+    public static final String EXTRA_ARCHIVED = "archived";
+
+    /**
+     * Provider method that moves archived books back into the main table, with the same
+     * _ID. The books go in {@link #EXTRA_IDS}, by _ID, or in {@link #EXTRA_GLOBAL_IDS}. The
+     * number of books brought back is returned in {@link #EXTRA_RESTORED}. Books that aren't
+     * archived are skipped.
+     */
+    public static final String METHOD_RESTORE_ARCHIVED = "restore_archived";
+
+    /**
+     * {@link BookEntry#COLUMN_BOOK_GLOBAL_ID}s of the books to restore.
+     * Type: String[]
+     */
+    public static final String EXTRA_GLOBAL_IDS = "global_ids";
+
+    /**
+     * Provider method that registers a consumer of the change log, named by the argument.
+     * From then on, changes of the books are kept in {@link ChangeEntry#TABLE_NAME} until the
+     * consumer acknowledges them. The result holds in {@link #EXTRA_SEQUENCE} the sequence
+     * number to read the changes after: the last change logged for a new consumer, the last
+     * acknowledged change for a known one. A new consumer should register first and read the
+     * books second, then follow the changes after the returned number.
+     */
+    public static final String METHOD_REGISTER_CHANGE_CONSUMER = "register_change_consumer";
+
+    /**
+     * Provider method that tells that the consumer named by the argument has processed the
+     * changes up to the sequence number in {@link #EXTRA_SEQUENCE}. Changes acknowledged by
+     * every consumer are removed from the log.
+     */
+    public static final String METHOD_ACKNOWLEDGE_CHANGES = "acknowledge_changes";
+
+    /**
+     * Provider method that forgets the consumer of the change log named by the argument. Once
+     * there are no consumers left, changes are no longer logged.
+     */
+    public static final String METHOD_UNREGISTER_CHANGE_CONSUMER = "unregister_change_consumer";
+
+    /**
+     * Provider method that returns where the import of the catalog feed named by the argument
+     * stopped. The version of the feed goes in {@link #EXTRA_FINGERPRINT}. The result holds in
+     * {@link #EXTRA_OFFSET} the byte offset to go on from, 0 if the feed has no checkpoint or
+     * the checkpoint is of another version.
+     */
+    public static final String METHOD_IMPORT_CHECKPOINT = "import_checkpoint";
+
+    /**
+     * Provider method that forgets the checkpoint of the catalog feed named by the argument.
+     */
+    public static final String METHOD_CLEAR_IMPORT_CHECKPOINT = "clear_import_checkpoint";
+
+    /**
+     * Version of a catalog feed, see {@link #QUERY_PARAMETER_IMPORT_FINGERPRINT}.
+     * Type: String
+     */
+    public static final String EXTRA_FINGERPRINT = "fingerprint";
+
+    /**
+     * Byte offset in a catalog feed.
+     * Type: long
+     */
+    public static final String EXTRA_OFFSET = "offset";
+
+    /**
+     * Provider method that returns the counters of the queries, inserts, bulk inserts,
+     * updates and deletes served since the provider started, or since the last reset. A query
+     * is counted once its cursor is closed, and its time includes the first read of the
+     * cursor, when SQLite runs it. Queries are only counted from the first call of this
+     * method on, so their cursors come without the wrapper that times them until then.
+     * {@link #EXTRA_METRICS} holds one bundle per operation and URI pattern called, and
+     * {@link #EXTRA_HISTOGRAM_BOUNDS_US} the bounds of their latency histograms. If
+     * {@link #EXTRA_INCLUDE_SLOW_CALLS} is true, the most recent calls that took 50 ms or more
+     * are added in {@link #EXTRA_SLOW_CALLS}. If {@link #EXTRA_RESET} is true, the counters
+     * are cleared once read.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    /**
+     * Whether to add the slow calls to the metrics.
+     * Type: boolean
+     */
+    public static final String EXTRA_INCLUDE_SLOW_CALLS = "include_slow_calls";
+
+    /**
+     * Whether to clear the metrics after reading them.
+     * Type: boolean
+     */
+    public static final String EXTRA_RESET = "reset";
+
+    /**
+     * Metrics of each operation and URI pattern, with {@link #EXTRA_OPERATION},
+     * {@link #EXTRA_URI}, {@link #EXTRA_COUNT}, {@link #EXTRA_ERRORS}, {@link #EXTRA_ROWS},
+     * {@link #EXTRA_TOTAL_US}, {@link #EXTRA_MAX_US} and {@link #EXTRA_HISTOGRAM}.
+     * Type: ArrayList&lt;Bundle&gt;
+     */
+    public static final String EXTRA_METRICS = "metrics";
+
+    /**
+     * Upper bound of each histogram bucket, in microseconds. A bucket counts the calls that
+     * took less than its bound and at least the bound of the bucket before.
+     * Type: long[]
+     */
+    public static final String EXTRA_HISTOGRAM_BOUNDS_US = "histogram_bounds_us";
+
+    /**
+     * Most recent slow calls, newest first, with {@link #EXTRA_OPERATION}, {@link #EXTRA_URI},
+     * {@link #EXTRA_SELECTION}, {@link #EXTRA_SORT_ORDER}, {@link #EXTRA_DURATION_US} and
+     * {@link #EXTRA_TIME}. Selection arguments are left out, as they may hold user data.
+     * Type: ArrayList&lt;Bundle&gt;
+     */
+    public static final String EXTRA_SLOW_CALLS = "slow_calls";
+
+    /**
+     * Operation: "query", "insert", "bulk_insert", "update" or "delete".
+     * Type: String
+     */
+    public static final String EXTRA_OPERATION = "operation";
+
+    /**
+     * URI pattern of the metrics, such as "books/#", or the URI of a slow call.
+     * Type: String
+     */
+    public static final String EXTRA_URI = "uri";
+
+    /**
+     * Number of calls.
+     * Type: long
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Number of calls that threw.
+     * Type: long
+     */
+    public static final String EXTRA_ERRORS = "errors";
+
+    /**
+     * Rows returned, inserted, updated or deleted by the calls that succeeded. A query whose
+     * cursor was closed without being read returns no rows.
+     * Type: long
+     */
+    public static final String EXTRA_ROWS = "rows";
+
+    /**
+     * Time taken by all the calls, in microseconds.
+     * Type: long
+     */
+    public static final String EXTRA_TOTAL_US = "total_us";
+
+    /**
+     * Time taken by the slowest call, in microseconds.
+     * Type: long
+     */
+    public static final String EXTRA_MAX_US = "max_us";
+
+    /**
+     * Number of calls in each bucket of {@link #EXTRA_HISTOGRAM_BOUNDS_US}.
+     * Type: long[]
+     */
+    public static final String EXTRA_HISTOGRAM = "histogram";
+
+    /**
+     * Selection of a slow call, with its ? placeholders.
+     * Type: String
+     */
+    public static final String EXTRA_SELECTION = "selection";
+
+    /**
+     * Sort order of a slow call.
+     * Type: String
+     */
+    public static final String EXTRA_SORT_ORDER = "sort_order";
+
+    /**
+     * Time a slow call took, in microseconds.
+     * Type: long
+     */
+    public static final String EXTRA_DURATION_US = "duration_us";
+
+    /**
+     * Wall clock time at which a slow call finished, in milliseconds since the epoch.
+     * Type: long
+     */
+    public static final String EXTRA_TIME = "time";
+
     /**
      * Empty constructor
      */
@@ -32,11 +459,29 @@ public class BookContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BOOKS);
 
+        /**
+         * The content URI to search books by name and author. Append the search text as the
+         * last path segment. Every word is matched as a prefix, books whose name starts with
+         * the first word come first, and the result can be capped with
+         * {@link #QUERY_PARAMETER_LIMIT}.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI to look up a book by ISBN, given as the last path segment. Hyphens
+         * and spaces in the ISBN are ignored.
+         */
+        public static final Uri CONTENT_ISBN_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ISBN);
+
         /**
          * Name of database table for books
          */
         public static final String TABLE_NAME = "books";
 
+        /**
+         * Name of the full-text index over the book names and authors
+         */
+        public static final String SEARCH_TABLE_NAME = "books_fts";
 
         /**
          * Unique ID number for the book (only for use in the database table).
@@ -57,8 +502,8 @@ public class BookContract {
         public static final String COLUMN_AUTHOR_NAME = "author";
 
         /**
-         * Price of the book.
-         * Type: REAL
+         * Price of the book, in cents of {@link PriceFormatter#CURRENCY}.
+         * Type: INTEGER
          */
         public static final String COLUMN_BOOK_PRICE = "price";
 
@@ -69,17 +514,103 @@ public class BookContract {
         public static final String COLUMN_BOOK_QUANTITY = "quantity";
 
         /**
-         * Supplier of the book.
+         * Quantity at or below which the book should be reordered. 0 means the book is only
+         * reordered once it is sold out.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_REORDER_LEVEL = "reorder_level";
+
+        /**
+         * Selection of the books at or below their reorder level. Queries with exactly this
+         * condition are answered from an index that only holds these books.
+         */
+        public static final String LOW_STOCK_SELECTION = COLUMN_BOOK_QUANTITY + " <= " + COLUMN_BOOK_REORDER_LEVEL;
+
+        /**
+         * _ID of the supplier of the book in {@link SupplierEntry#TABLE_NAME}, or null.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Name of the supplier of the book. Suppliers are stored in their own table; when a
+         * book is written with a supplier name, the supplier is looked up by name and created
+         * if it doesn't exist yet.
          * Type: TEXT
          */
         public static final String COLUMN_BOOK_SUPPLIER = "supplier";
 
         /**
-         * Supplier's phone number.
+         * Supplier's phone number. It is shared by all the books of the supplier, so writing
+         * it changes it for all of them. It can only be written together with
+         * {@link #COLUMN_BOOK_SUPPLIER}.
          * Type: TEXT
          */
         public static final String COLUMN_BOOK_SUPPLIER_PHONE_NUMBER = "phone_number";
 
+        /**
+         * Time the book was deleted, in milliseconds since the epoch, or null. Deleting a book
+         * only sets this time; the book is left out of every query from then on and removed
+         * for good in the background once {@link #UNDO_DELETE_WINDOW_MS} has passed. It can't
+         * be written by clients.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_DELETED_AT = "deleted_at";
+
+        /**
+         * Time during which the last delete can be undone with
+         * {@link BookContract#METHOD_UNDO_DELETE}
+         */
+        public static final long UNDO_DELETE_WINDOW_MS = 10000;
+
+        /**
+         * Identifier of the book shared by every store, given to each new book. Unique.
+         * Type: TEXT
+         */
+        public static final String COLUMN_BOOK_GLOBAL_ID = "global_id";
+
+        /**
+         * ISBN of the book, without hyphens or spaces, or null. Unique.
+         * Type: TEXT
+         */
+        public static final String COLUMN_BOOK_ISBN = "isbn";
+
+        /**
+         * Version of the book on the sync server when it was last synchronized, or null if
+         * it never was. Only the sync engine writes it, through URIs with
+         * {@link BookContract#QUERY_PARAMETER_REMOTE}.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_SERVER_VERSION = "server_version";
+
+        /**
+         * Quantity of the book on the sync server when it was last synchronized. The
+         * difference with {@link #COLUMN_BOOK_QUANTITY} is the stock change not sent yet.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_SYNCED_QUANTITY = "synced_quantity";
+
+        /**
+         * Total stock change of this store for the book that the sync server has accepted.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_SYNCED_DELTA = "synced_delta";
+
+        /**
+         * Time the book was last sold, or its stock last went down, in milliseconds since the
+         * epoch. A book that was never sold has the time it was added.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_LAST_SOLD_AT = "last_sold_at";
+
+        /**
+         * Time without a sale after which a book with nothing in stock is moved to the
+         * archive. Archived books are left out of every query, unless
+         * {@link BookContract#QUERY_PARAMETER_INCLUDE_ARCHIVED} is set, and brought back with
+         * {@link BookContract#METHOD_RESTORE_ARCHIVED}.
+         */
+        public static final long ARCHIVE_AFTER_MS = 90L * 24 * 60 * 60 * 1000;
+
         /**
          * The MIME type for a list of books.
          */
@@ -92,4 +623,189 @@ public class BookContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS;
     }
+
+    /**
+     * Inner class that defines constant values for the inventory statistics table. The
+     * statistics are kept up to date by the database on every change of the books, so reading
+     * them never scans the books table. There is one row for the whole inventory and one row
+     * per supplier. Archived books aren't counted.
+     */
+    public static abstract class StatsEntry implements BaseColumns {
+
+        /**
+         * The content URI to read the statistics
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BookEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * Name of database table for the statistics
+         */
+        public static final String TABLE_NAME = "books_stats";
+
+        /**
+         * What the row covers, {@link #SCOPE_ALL} or {@link #SCOPE_SUPPLIER}.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SCOPE = "scope";
+
+        /**
+         * _ID of the supplier the row covers. 0 for the whole inventory, and for the books
+         * without a supplier.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Number of books.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_COUNT = "book_count";
+
+        /**
+         * Number of copies on hand, the sum of the quantities.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_UNITS = "units";
+
+        /**
+         * Value of the stock in cents, the sum of price times quantity.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Number of books with a quantity of 0.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_OUT_OF_STOCK = "out_of_stock";
+
+        /**
+         * Scope of the row that covers the whole inventory
+         */
+        public static final int SCOPE_ALL = 0;
+
+        /**
+         * Scope of the rows that cover one supplier
+         */
+        public static final int SCOPE_SUPPLIER = 1;
+
+        /**
+         * The MIME type for the statistics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+    }
+
+    /**
+     * Inner class that defines constant values for the suppliers database table.
+     * Each entry in the table represents a single supplier, shared by all its books.
+     */
+    public static abstract class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the supplier data in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * Name of database table for suppliers
+         */
+        public static final String TABLE_NAME = "suppliers";
+
+        /**
+         * Name of the supplier, unique among suppliers.
+         * Type: TEXT
+         */
+        public static final String COLUMN_SUPPLIER_NAME = "name";
+
+        /**
+         * Supplier's phone number.
+         * Type: TEXT
+         */
+        public static final String COLUMN_SUPPLIER_PHONE_NUMBER = "phone_number";
+
+        /**
+         * The MIME type for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * The MIME type for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+    }
+
+    /**
+     * Inner class that defines constant values for the change log. Every insert, update and
+     * delete of a book adds a row in the same transaction, while at least one consumer is
+     * registered with {@link BookContract#METHOD_REGISTER_CHANGE_CONSUMER}. Read it through
+     * {@link #CONTENT_URI} with {@link BookContract#QUERY_PARAMETER_SINCE}, and optionally
+     * {@link BookContract#QUERY_PARAMETER_LIMIT}, to get the changes in the order they were
+     * made. The log changes whenever a book does, so observe {@link BookEntry#CONTENT_URI}.
+     * <p>
+     * A book moved to the archive is logged as deleted, and as inserted when it is restored.
+     */
+    public static abstract class ChangeEntry implements BaseColumns {
+
+        /**
+         * The content URI to read the change log
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * Name of database table for the change log
+         */
+        public static final String TABLE_NAME = "book_changes";
+
+        /**
+         * Sequence number of the change. Later changes have greater numbers, and numbers are
+         * never reused.
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * _ID of the book that changed.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * What happened to the book: {@link BookContract#OPERATION_INSERT},
+         * {@link BookContract#OPERATION_UPDATE} or {@link BookContract#OPERATION_DELETE}. A
+         * book brought back by {@link BookContract#METHOD_UNDO_DELETE} is inserted again.
+         * Type: TEXT
+         */
+        public static final String COLUMN_OPERATION = "operation";
+
+        /**
+         * Time of the change, in milliseconds since the epoch.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_CHANGED_AT = "changed_at";
+
+        /**
+         * {@link BookEntry#COLUMN_BOOK_GLOBAL_ID} of the book that changed, so deletes can
+         * still be told apart once the book is gone.
+         * Type: TEXT
+         */
+        public static final String COLUMN_GLOBAL_ID = "global_id";
+
+        /**
+         * 1 if the change was made by the sync engine applying the changes of the server, see
+         * {@link BookContract#QUERY_PARAMETER_REMOTE}, or is a book moving to the archive, 0 if
+         * it was made in this store. A book restored from the archive is logged as remote once
+         * the server knows it.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_REMOTE = "remote";
+
+        /**
+         * The MIME type for a list of changes.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+    }
 }
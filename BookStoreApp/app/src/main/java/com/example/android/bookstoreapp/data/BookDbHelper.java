@@ -1,30 +1,703 @@
 package com.example.android.bookstoreapp.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
 import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.ChangeEntry;
+import com.example.android.bookstoreapp.data.BookContract.StatsEntry;
+import com.example.android.bookstoreapp.data.BookContract.SupplierEntry;
+
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Database helper for BookStoreApp. Manages database creation and version management.
+ * <p>
+ * The database runs in write-ahead logging mode, so the inventory list can be read while a
+ * sale or an import is being written. Android then keeps a pool of connections, one for
+ * writing and several for reading. The settings of a {@link TuningProfile} are applied to
+ * the writing connection when the database is opened.
  */
 public class BookDbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookDbHelper.class.getSimpleName();
+
+    private static final int DATABASE_VERSION = 14;
+
+    /**
+     * Value of PRAGMA auto_vacuum in incremental mode
+     */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
 
     private static final String DATABASE_NAME = "inventory.db";
 
+    /**
+     * Database holding the archived books, see {@link #getArchiveDatabase()}
+     */
+    private static final String ARCHIVE_DATABASE_NAME = "inventory_archive.db";
+
+    /**
+     * Name of the main database on the connection to the archive
+     */
+    static final String MAIN_SCHEMA = "inventory";
+
+    /**
+     * Table of the archive holding the archived books, with the columns of the books table
+     */
+    static final String ARCHIVED_BOOKS_TABLE_NAME = "archived_books";
+
+    /**
+     * Temporary view of the connection to the archive with the books of the main database and
+     * of the archive, under the columns of {@link #BOOKS_VIEW_NAME}. A book found in both, as
+     * it is between the two steps of a move, is only taken from the main database. So is an
+     * archived book whose global ID or ISBN a book of the main database has taken over.
+     */
+    static final String ALL_BOOKS_VIEW_NAME = "all_books_view";
+
+    /**
+     * Single-row table holding the sequence number of the last stock batch applied by
+     * {@link BookContract#METHOD_ADJUST_STOCK}
+     */
+    static final String STOCK_QUEUE_TABLE_NAME = "stock_queue";
+
+    static final String COLUMN_LAST_SEQUENCE = "last_sequence";
+
+    /**
+     * Consumers of the change log registered with
+     * {@link BookContract#METHOD_REGISTER_CHANGE_CONSUMER}, with the last change each of them
+     * acknowledged
+     */
+    static final String CHANGE_CONSUMERS_TABLE_NAME = "change_consumers";
+
+    static final String COLUMN_CONSUMER_NAME = "name";
+
+    static final String COLUMN_ACKNOWLEDGED = "acknowledged";
+
+    /**
+     * Where each catalog import stopped, written by {@link BookProvider#bulkInsert} in the
+     * transaction of the books it describes, see {@link BookContract#QUERY_PARAMETER_IMPORT_SOURCE}
+     */
+    static final String IMPORT_CHECKPOINTS_TABLE_NAME = "import_checkpoints";
+
+    static final String COLUMN_IMPORT_SOURCE = "source";
+
+    static final String COLUMN_IMPORT_FINGERPRINT = "fingerprint";
+
+    static final String COLUMN_IMPORT_OFFSET = "byte_offset";
+
+    /**
+     * View of the books with the name and phone number of their supplier, under the column
+     * names of {@link BookEntry}. All reads of books go through it.
+     */
+    static final String BOOKS_VIEW_NAME = "books_view";
+
+    /**
+     * SQL expression of a new {@link BookEntry#COLUMN_BOOK_GLOBAL_ID}: 32 random hex digits,
+     * the same form as {@link BookProvider} gives new books
+     */
+    static final String SQL_NEW_GLOBAL_ID = "lower(hex(randomblob(16)))";
+
+    /**
+     * SQL expression of the current time in milliseconds since the epoch
+     */
+    static final String SQL_NOW = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /**
+     * How the statistics of schema version 5 grouped books: by supplier name
+     */
+    private static final StatsKey STATS_KEY_V5 = new StatsKey(
+            BookEntry.COLUMN_BOOK_SUPPLIER, BookEntry.COLUMN_BOOK_SUPPLIER, "''", null);
+
+    /**
+     * How the statistics of schema versions 6 to 8 grouped books: by supplier _ID
+     */
+    private static final StatsKey STATS_KEY_V6 = new StatsKey(
+            StatsEntry.COLUMN_SUPPLIER_ID, BookEntry.COLUMN_BOOK_SUPPLIER_ID, "0", null);
+
+    /**
+     * How the statistics group books: by supplier _ID, leaving out deleted books
+     */
+    private static final StatsKey STATS_KEY = new StatsKey(
+            StatsEntry.COLUMN_SUPPLIER_ID, BookEntry.COLUMN_BOOK_SUPPLIER_ID, "0", BookEntry.COLUMN_BOOK_DELETED_AT);
+
+    /**
+     * Works out the rows of the statistics table from the books table: the whole inventory
+     * first, then one row per supplier. Books without a supplier count under 0, deleted
+     * books don't count.
+     */
+    static final String SQL_COMPUTE_STATS = computeStatsSql(STATS_KEY);
+
+    /**
+     * Schema migrations, ordered by the version they upgrade to. New databases are created
+     * at version 1 and then go through every migration, so a fresh install and an upgraded
+     * install always end up with the same schema.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // Version 2: covering index for the inventory list (name, price, quantity and the
+            // implicit _id) and indexes for author and supplier lookups.
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX books_list_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_NAME + ", "
+                            + BookEntry.COLUMN_BOOK_PRICE + ", "
+                            + BookEntry.COLUMN_BOOK_QUANTITY + ");");
+                    db.execSQL("CREATE INDEX books_author_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_AUTHOR_NAME + ");");
+                    db.execSQL("CREATE INDEX books_supplier_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_SUPPLIER + ");");
+                }
+            },
+            // Version 3: full-text index over name and author, kept in sync by triggers.
+            // The index row of a book uses the book's _id as its docid.
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + BookEntry.SEARCH_TABLE_NAME + " USING fts4("
+                            + BookEntry.COLUMN_BOOK_NAME + ", "
+                            + BookEntry.COLUMN_AUTHOR_NAME + ");");
+                    db.execSQL("INSERT INTO " + BookEntry.SEARCH_TABLE_NAME + "(docid, "
+                            + BookEntry.COLUMN_BOOK_NAME + ", " + BookEntry.COLUMN_AUTHOR_NAME + ") "
+                            + "SELECT " + BookEntry._ID + ", "
+                            + BookEntry.COLUMN_BOOK_NAME + ", " + BookEntry.COLUMN_AUTHOR_NAME
+                            + " FROM " + BookEntry.TABLE_NAME + ";");
+                    createSearchTriggers(db);
+                }
+            },
+            // Version 4: position of the stock write queue, so replayed batches are skipped
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + STOCK_QUEUE_TABLE_NAME + "("
+                            + COLUMN_LAST_SEQUENCE + " INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO " + STOCK_QUEUE_TABLE_NAME + " VALUES (0);");
+                }
+            },
+            // Version 5: inventory statistics, overall and per supplier, kept up to date by
+            // triggers
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createStatsTable(db, STATS_KEY_V5, "TEXT", "REAL");
+                    rebuildStats(db, STATS_KEY_V5);
+                    createStatsTriggers(db, STATS_KEY_V5);
+                }
+            },
+            // Version 6: suppliers move to their own table, books point to them by _ID. Books
+            // are read through a view that brings back the supplier name and phone number.
+            // Statistics are grouped by supplier _ID.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Books of the same supplier with different phone numbers keep one of them
+                    db.execSQL("CREATE TABLE " + SupplierEntry.TABLE_NAME + "("
+                            + SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + SupplierEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL UNIQUE, "
+                            + SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER + " TEXT);");
+                    db.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + "("
+                            + SupplierEntry.COLUMN_SUPPLIER_NAME + ", " + SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER
+                            + ") SELECT " + BookEntry.COLUMN_BOOK_SUPPLIER + ", MAX("
+                            + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER + ") FROM " + BookEntry.TABLE_NAME
+                            + " WHERE " + BookEntry.COLUMN_BOOK_SUPPLIER + " IS NOT NULL AND "
+                            + BookEntry.COLUMN_BOOK_SUPPLIER + " != '' GROUP BY " + BookEntry.COLUMN_BOOK_SUPPLIER + ";");
+
+                    rebuildBooksTable(db, BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                                    + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
+                                    + BookEntry.COLUMN_AUTHOR_NAME + " TEXT NOT NULL DEFAULT 'Anonymous', "
+                                    + BookEntry.COLUMN_BOOK_PRICE + " REAL NOT NULL, "
+                                    + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL, "
+                                    + BookEntry.COLUMN_BOOK_SUPPLIER_ID + " INTEGER REFERENCES "
+                                    + SupplierEntry.TABLE_NAME + "(" + SupplierEntry._ID + ") ON DELETE SET NULL",
+                            "SELECT b." + BookEntry._ID + ", b." + BookEntry.COLUMN_BOOK_NAME + ", b."
+                                    + BookEntry.COLUMN_AUTHOR_NAME + ", b." + BookEntry.COLUMN_BOOK_PRICE + ", b."
+                                    + BookEntry.COLUMN_BOOK_QUANTITY + ", s." + SupplierEntry._ID
+                                    + " FROM " + BookEntry.TABLE_NAME + " b LEFT JOIN " + SupplierEntry.TABLE_NAME
+                                    + " s ON s." + SupplierEntry.COLUMN_SUPPLIER_NAME + " = b."
+                                    + BookEntry.COLUMN_BOOK_SUPPLIER);
+
+                    db.execSQL("DROP TABLE " + StatsEntry.TABLE_NAME + ";");
+                    createStatsTable(db, STATS_KEY_V6, "INTEGER", "REAL");
+                    rebuildStats(db, STATS_KEY_V6);
+
+                    // Dropping the old table dropped its indexes and triggers
+                    db.execSQL("CREATE INDEX books_list_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_NAME + ", "
+                            + BookEntry.COLUMN_BOOK_PRICE + ", "
+                            + BookEntry.COLUMN_BOOK_QUANTITY + ");");
+                    db.execSQL("CREATE INDEX books_author_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_AUTHOR_NAME + ");");
+                    db.execSQL("CREATE INDEX books_supplier_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_SUPPLIER_ID + ");");
+                    createSearchTriggers(db);
+                    createStatsTriggers(db, STATS_KEY_V6);
+                    createBooksView(db, false);
+                }
+            },
+            // Version 7: prices are stored as a whole number of cents, so sums of prices are
+            // exact. The stock value of the statistics is in cents too.
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    rebuildBooksTable(db, BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                                    + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
+                                    + BookEntry.COLUMN_AUTHOR_NAME + " TEXT NOT NULL DEFAULT 'Anonymous', "
+                                    + BookEntry.COLUMN_BOOK_PRICE + " INTEGER NOT NULL, "
+                                    + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL, "
+                                    + BookEntry.COLUMN_BOOK_SUPPLIER_ID + " INTEGER REFERENCES "
+                                    + SupplierEntry.TABLE_NAME + "(" + SupplierEntry._ID + ") ON DELETE SET NULL",
+                            "SELECT " + BookEntry._ID + ", " + BookEntry.COLUMN_BOOK_NAME + ", "
+                                    + BookEntry.COLUMN_AUTHOR_NAME + ", CAST(ROUND("
+                                    + BookEntry.COLUMN_BOOK_PRICE + " * 100) AS INTEGER), "
+                                    + BookEntry.COLUMN_BOOK_QUANTITY + ", " + BookEntry.COLUMN_BOOK_SUPPLIER_ID
+                                    + " FROM " + BookEntry.TABLE_NAME);
+
+                    db.execSQL("DROP TABLE " + StatsEntry.TABLE_NAME + ";");
+                    createStatsTable(db, STATS_KEY_V6, "INTEGER", "INTEGER");
+                    rebuildStats(db, STATS_KEY_V6);
+
+                    // Dropping the old table dropped its indexes and triggers
+                    db.execSQL("CREATE INDEX books_list_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_NAME + ", "
+                            + BookEntry.COLUMN_BOOK_PRICE + ", "
+                            + BookEntry.COLUMN_BOOK_QUANTITY + ");");
+                    db.execSQL("CREATE INDEX books_author_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_AUTHOR_NAME + ");");
+                    db.execSQL("CREATE INDEX books_supplier_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_SUPPLIER_ID + ");");
+                    createSearchTriggers(db);
+                    createStatsTriggers(db, STATS_KEY_V6);
+                    createBooksView(db, false);
+                }
+            },
+            // Version 8: per-book reorder level, and an index of the books at or below it for
+            // the reorder engine
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT 0;");
+                    // The view lists the columns of the books table as they were when it was
+                    // created
+                    db.execSQL("DROP VIEW " + BOOKS_VIEW_NAME + ";");
+                    createBooksView(db, false);
+
+                    createLowStockIndex(db);
+                }
+            },
+            // Version 9: deleting a book only sets its deleted_at time, BookCompactor removes
+            // it for good later. Deleted books are left out of the view and the statistics.
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_DELETED_AT + " INTEGER;");
+                    db.execSQL("DROP VIEW " + BOOKS_VIEW_NAME + ";");
+                    createBooksView(db, true);
+
+                    // No book is deleted yet, so the statistics stay as they are
+                    db.execSQL("DROP TRIGGER books_stats_insert;");
+                    db.execSQL("DROP TRIGGER books_stats_update;");
+                    db.execSQL("DROP TRIGGER books_stats_delete;");
+                    createStatsTriggers(db, STATS_KEY);
+                }
+            },
+            // Version 10: change log of the books, written by triggers while it has consumers
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ChangeEntry.TABLE_NAME + "("
+                            + ChangeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + ChangeEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                            + ChangeEntry.COLUMN_OPERATION + " TEXT NOT NULL, "
+                            + ChangeEntry.COLUMN_CHANGED_AT + " INTEGER NOT NULL);");
+                    db.execSQL("CREATE TABLE " + CHANGE_CONSUMERS_TABLE_NAME + "("
+                            + COLUMN_CONSUMER_NAME + " TEXT PRIMARY KEY, "
+                            + COLUMN_ACKNOWLEDGED + " INTEGER NOT NULL);");
+                    createChangeTriggers(db, false, false);
+                }
+            },
+            // Version 11: books get the identifiers and stock counts of the sync server, and
+            // the change log tells the changes of the server apart
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_GLOBAL_ID + " TEXT;");
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_SERVER_VERSION + " INTEGER;");
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_SYNCED_QUANTITY + " INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_SYNCED_DELTA + " INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_BOOK_GLOBAL_ID
+                            + " = " + SQL_NEW_GLOBAL_ID + ";");
+                    db.execSQL("CREATE UNIQUE INDEX books_global_id_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_GLOBAL_ID + ");");
+                    // The view lists the columns of the books table as they were when it was
+                    // created
+                    db.execSQL("DROP VIEW " + BOOKS_VIEW_NAME + ";");
+                    createBooksView(db, true);
+
+                    // Changes logged so far were all made in this store
+                    db.execSQL("ALTER TABLE " + ChangeEntry.TABLE_NAME + " ADD COLUMN "
+                            + ChangeEntry.COLUMN_GLOBAL_ID + " TEXT;");
+                    db.execSQL("ALTER TABLE " + ChangeEntry.TABLE_NAME + " ADD COLUMN "
+                            + ChangeEntry.COLUMN_REMOTE + " INTEGER NOT NULL DEFAULT 0;");
+                    db.execSQL("DROP TRIGGER books_changes_insert;");
+                    db.execSQL("DROP TRIGGER books_changes_update;");
+                    db.execSQL("DROP TRIGGER books_changes_delete;");
+                    createChangeTriggers(db, true, false);
+                }
+            },
+            // Version 12: books can have an ISBN, unique among all books, deleted ones included
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_ISBN + " TEXT;");
+                    db.execSQL("CREATE UNIQUE INDEX books_isbn_index ON " + BookEntry.TABLE_NAME + "("
+                            + BookEntry.COLUMN_BOOK_ISBN + ");");
+                    // The view lists the columns of the books table as they were when it was
+                    // created
+                    db.execSQL("DROP VIEW " + BOOKS_VIEW_NAME + ";");
+                    createBooksView(db, true);
+                }
+            },
+            // Version 13: time of the last sale of each book, for the archive. Removing a
+            // book that isn't deleted now only happens when it moves to the archive.
+            new Migration(13) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The change log would take setting the time for an update of every book
+                    db.execSQL("DROP TRIGGER books_changes_insert;");
+                    db.execSQL("DROP TRIGGER books_changes_update;");
+                    db.execSQL("DROP TRIGGER books_changes_delete;");
+
+                    // Books never sold so far count from now on
+                    db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                            + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " INTEGER;");
+                    db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_BOOK_LAST_SOLD_AT
+                            + " = " + SQL_NOW + ";");
+                    // The view lists the columns of the books table as they were when it was
+                    // created
+                    db.execSQL("DROP VIEW " + BOOKS_VIEW_NAME + ";");
+                    createBooksView(db, true);
+                    createChangeTriggers(db, true, true);
+                }
+            },
+            // Version 14: checkpoints of the catalog imports, committed with their books
+            new Migration(14) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + IMPORT_CHECKPOINTS_TABLE_NAME + "("
+                            + COLUMN_IMPORT_SOURCE + " TEXT PRIMARY KEY, "
+                            + COLUMN_IMPORT_FINGERPRINT + " TEXT NOT NULL, "
+                            + COLUMN_IMPORT_OFFSET + " INTEGER NOT NULL);");
+                }
+            }
+    };
+
+    private final Context mContext;
+    private final TuningProfile mTuningProfile;
+
+    /**
+     * Connection to the archive, opened on first use
+     */
+    private SQLiteDatabase mArchiveDb;
+
     /**
      * Constructs a new instance of {@link BookDbHelper}.
      */
     public BookDbHelper(Context context) {
+        this(context, TuningProfile.DEFAULT);
+    }
+
+    /**
+     * Constructs a new instance of {@link BookDbHelper} with the given SQLite settings.
+     */
+    public BookDbHelper(Context context, TuningProfile tuningProfile) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        mTuningProfile = tuningProfile;
+        // Before Jelly Bean the helper can't open the database in WAL mode, see onOpen()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Called before the database is created or upgraded, from Jelly Bean on.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Clears the supplier of books whose supplier is deleted
+        db.setForeignKeyConstraintsEnabled(true);
+        if (!db.isReadOnly()) {
+            // The helper opens the file in WAL mode, which fixes the page size even of a new
+            // database. Before the tables are created, the empty file is rebuilt in rollback
+            // journal mode with the page size of the profile.
+            boolean created = db.getVersion() == 0;
+            if (created) {
+                db.disableWriteAheadLogging();
+                executePragma(db, "PRAGMA page_size = " + mTuningProfile.pageSize);
+            }
+            enableIncrementalVacuum(db);
+            if (created) {
+                db.enableWriteAheadLogging();
+            }
+        }
+        applyTuning(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Older versions don't call onConfigure(), so the settings are applied here. The tables
+        // of a new database exist at this point, so it keeps the default page size.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            enableIncrementalVacuum(db);
+            db.enableWriteAheadLogging();
+            applyTuning(db);
+        }
+        // A system update may have brought a SQLite that supports the low-stock index since
+        // the database was created
+        if (!db.isReadOnly()) {
+            createLowStockIndex(db);
+        }
+    }
+
+    /**
+     * Creates the partial index of the books at or below their reorder level, unless it
+     * exists. Partial indexes need SQLite 3.8, so this depends on the SQLite of the device
+     * rather than on the schema version. Without the index the low-stock books are found
+     * with a full scan.
+     */
+    private static void createLowStockIndex(SQLiteDatabase db) {
+        if (!supportsPartialIndexes(db)) {
+            return;
+        }
+        db.execSQL("CREATE INDEX IF NOT EXISTS books_low_stock_index ON " + BookEntry.TABLE_NAME + "("
+                + BookEntry.COLUMN_BOOK_SUPPLIER_ID + ", "
+                + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookEntry.COLUMN_BOOK_REORDER_LEVEL + ") WHERE "
+                + BookEntry.LOW_STOCK_SELECTION + ";");
+    }
+
+    /**
+     * Returns whether the SQLite library behind the connection is 3.8.0 or later.
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return major > 3 || (major == 3 && minor >= 8);
+    }
+
+    /**
+     * Applies the settings of the tuning profile to the writing connection.
+     */
+    private void applyTuning(SQLiteDatabase db) {
+        executePragma(db, "PRAGMA synchronous = " + mTuningProfile.synchronous);
+        // A negative cache size is in KiB instead of pages
+        executePragma(db, "PRAGMA cache_size = -" + mTuningProfile.cacheSizeKb);
+        executePragma(db, "PRAGMA wal_autocheckpoint = " + mTuningProfile.walAutoCheckpointPages);
+    }
+
+    /**
+     * Puts the database in incremental auto-vacuum mode, so {@link BookCompactor} can hand
+     * free pages back to the file system a few at a time. Switching a database that has
+     * tables rewrites the whole file with a VACUUM, which can't run in the transaction of
+     * {@link #onUpgrade}. It is done once, as the database is opened, before the migrations
+     * run. If it fails, for lack of space for example, it is tried again on the next open.
+     */
+    private static void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+        executePragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        try {
+            db.execSQL("VACUUM;");
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Failed to switch to incremental auto-vacuum", e);
+        }
+    }
+
+    /**
+     * Copies the write-ahead log back into the database and empties it. Readers keep running,
+     * pages they still use are left for a later checkpoint.
+     */
+    static void checkpoint(SQLiteDatabase db) {
+        executePragma(db, "PRAGMA wal_checkpoint(PASSIVE)");
+    }
+
+    /**
+     * Hands up to the given number of free pages back to the file system. Only works once the
+     * database is in incremental auto-vacuum mode.
+     */
+    static void incrementalVacuum(SQLiteDatabase db, int pages) {
+        // The pragma returns a row for each page it frees and stops when its rows are no
+        // longer read, so all of them have to be read
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs a PRAGMA. Some of them return a row, which execSQL() refuses, so they are run as
+     * a query whose result is dropped.
+     */
+    private static void executePragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the connection to the archive database, with the main database attached as
+     * {@link #MAIN_SCHEMA}, so books can be moved between both in SQL and read together
+     * through {@link #ALL_BOOKS_VIEW_NAME}. The archive is created on first use.
+     * <p>
+     * The main database is attached to the archive rather than the other way round: attaching
+     * a database turns write-ahead logging off on that connection pool, which the main
+     * database needs. The archive has a single connection, and every read of it goes through
+     * it.
+     */
+    synchronized SQLiteDatabase getArchiveDatabase() {
+        if (mArchiveDb != null && mArchiveDb.isOpen()) {
+            return mArchiveDb;
+        }
+
+        // The archive follows the books table, which has to be at the current version first
+        getWritableDatabase();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(ARCHIVE_DATABASE_NAME), null);
+        try {
+            db.execSQL("ATTACH DATABASE ? AS " + MAIN_SCHEMA + ";",
+                    new Object[]{mContext.getDatabasePath(DATABASE_NAME).getPath()});
+            db.beginTransaction();
+            try {
+                createArchive(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        mArchiveDb = db;
+        return db;
+    }
+
+    /**
+     * Returns true if the archive database exists, so there may be archived books.
+     */
+    boolean hasArchive() {
+        return mContext.getDatabasePath(ARCHIVE_DATABASE_NAME).exists();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mArchiveDb != null) {
+            mArchiveDb.close();
+            mArchiveDb = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Brings the archived books table up to the columns of the books table, and creates the
+     * view of all the books on the connection to the archive. The archive has no migrations of
+     * its own: columns added to the books table are added to it when it is next opened.
+     */
+    private static void createArchive(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ARCHIVED_BOOKS_TABLE_NAME + "("
+                + BookEntry._ID + " INTEGER PRIMARY KEY);");
+        List<String> archived = Arrays.asList(getColumns(db, "main", ARCHIVED_BOOKS_TABLE_NAME));
+
+        // The view lists the archived books in the order of the columns of the books table,
+        // then the supplier columns the books view adds
+        StringBuilder archivedColumns = new StringBuilder();
+        Cursor cursor = db.rawQuery("PRAGMA " + MAIN_SCHEMA + ".table_info(" + BookEntry.TABLE_NAME + ")", null);
+        try {
+            int name = cursor.getColumnIndexOrThrow("name");
+            int type = cursor.getColumnIndexOrThrow("type");
+            while (cursor.moveToNext()) {
+                String column = cursor.getString(name);
+                if (!archived.contains(column)) {
+                    db.execSQL("ALTER TABLE " + ARCHIVED_BOOKS_TABLE_NAME + " ADD COLUMN " + column + " "
+                            + cursor.getString(type) + ";");
+                }
+                archivedColumns.append("a.").append(column).append(", ");
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // For restoring books and finding the ones taken over in the main database
+        db.execSQL("CREATE INDEX IF NOT EXISTS archived_books_global_id_index ON "
+                + ARCHIVED_BOOKS_TABLE_NAME + "(" + BookEntry.COLUMN_BOOK_GLOBAL_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS archived_books_isbn_index ON "
+                + ARCHIVED_BOOKS_TABLE_NAME + "(" + BookEntry.COLUMN_BOOK_ISBN + ");");
+
+        String books = MAIN_SCHEMA + "." + BookEntry.TABLE_NAME;
+        db.execSQL("DROP VIEW IF EXISTS temp." + ALL_BOOKS_VIEW_NAME + ";");
+        db.execSQL("CREATE TEMP VIEW " + ALL_BOOKS_VIEW_NAME + " AS SELECT * FROM " + MAIN_SCHEMA + "."
+                + BOOKS_VIEW_NAME + " UNION ALL SELECT " + archivedColumns
+                + "s." + SupplierEntry.COLUMN_SUPPLIER_NAME + " AS " + BookEntry.COLUMN_BOOK_SUPPLIER + ", "
+                + "s." + SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER + " AS " + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+                + " FROM " + ARCHIVED_BOOKS_TABLE_NAME + " a LEFT JOIN " + MAIN_SCHEMA + "." + SupplierEntry.TABLE_NAME
+                + " s ON a." + BookEntry.COLUMN_BOOK_SUPPLIER_ID + " = s." + SupplierEntry._ID
+                + " WHERE NOT " + takenOver("a", books) + ";");
+    }
+
+    /**
+     * Returns the condition that the archived book with the given alias has a copy in the given
+     * books table, or that a book of that table has taken over its global ID or ISBN.
+     */
+    static String takenOver(String alias, String books) {
+        return "EXISTS (SELECT 1 FROM " + books + " b WHERE b." + BookEntry._ID + " = " + alias + "." + BookEntry._ID
+                + " OR b." + BookEntry.COLUMN_BOOK_GLOBAL_ID + " = " + alias + "." + BookEntry.COLUMN_BOOK_GLOBAL_ID
+                + " OR b." + BookEntry.COLUMN_BOOK_ISBN + " = " + alias + "." + BookEntry.COLUMN_BOOK_ISBN + ")";
+    }
+
+    /**
+     * Returns the names of the columns of a table, in order.
+     */
+    static String[] getColumns(SQLiteDatabase db, String schema, String table) {
+        Cursor cursor = db.rawQuery("PRAGMA " + schema + ".table_info(" + table + ")", null);
+        try {
+            String[] columns = new String[cursor.getCount()];
+            int name = cursor.getColumnIndexOrThrow("name");
+            for (int i = 0; cursor.moveToNext(); i++) {
+                columns[i] = cursor.getString(name);
+            }
+            return columns;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create a String that contains the SQL statement to create the books table.
+        // Create a String that contains the SQL statement to create the version 1 books table.
         String SQL_CREATE_BOOKS_TABLE = "CREATE TABLE " + BookEntry.TABLE_NAME + "("
                 + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
@@ -36,10 +709,328 @@ public class BookDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_BOOKS_TABLE);
+
+        // Bring the new database up to the current version
+        migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Runs, in order, every migration that upgrades a schema at oldVersion to newVersion.
+     * This is called inside the transaction opened by {@link SQLiteOpenHelper}, so a failing
+     * migration leaves the database at oldVersion.
+     */
+    private static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+
+    /**
+     * Creates the triggers that copy name and author changes of the books table into the
+     * full-text index.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER books_fts_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + BookEntry.SEARCH_TABLE_NAME + "(docid, "
+                + BookEntry.COLUMN_BOOK_NAME + ", " + BookEntry.COLUMN_AUTHOR_NAME + ") VALUES (new."
+                + BookEntry._ID + ", new." + BookEntry.COLUMN_BOOK_NAME + ", new."
+                + BookEntry.COLUMN_AUTHOR_NAME + "); END;");
+        db.execSQL("CREATE TRIGGER books_fts_update AFTER UPDATE OF "
+                + BookEntry.COLUMN_BOOK_NAME + ", " + BookEntry.COLUMN_AUTHOR_NAME
+                + " ON " + BookEntry.TABLE_NAME
+                + " BEGIN UPDATE " + BookEntry.SEARCH_TABLE_NAME + " SET "
+                + BookEntry.COLUMN_BOOK_NAME + " = new." + BookEntry.COLUMN_BOOK_NAME + ", "
+                + BookEntry.COLUMN_AUTHOR_NAME + " = new." + BookEntry.COLUMN_AUTHOR_NAME
+                + " WHERE docid = new." + BookEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER books_fts_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + BookEntry.SEARCH_TABLE_NAME
+                + " WHERE docid = old." + BookEntry._ID + "; END;");
+    }
+
+    /**
+     * Creates the triggers that log the changes of the books table, while the log has at
+     * least one consumer. Marking a book as deleted logs a delete and bringing it back logs
+     * an insert. Removing a deleted book for good, or changing it, logs nothing.
+     *
+     * @param syncColumns Whether the log has the {@link ChangeEntry#COLUMN_GLOBAL_ID} and
+     *                    {@link ChangeEntry#COLUMN_REMOTE} columns yet. Writes that set a
+     *                    new server version come from the sync engine and are logged as remote.
+     * @param archive     Whether removing a book that isn't deleted moves it to the archive.
+     *                    The server doesn't need to know, so it is logged as remote.
+     */
+    private static void createChangeTriggers(SQLiteDatabase db, boolean syncColumns, boolean archive) {
+        String hasConsumers = "EXISTS (SELECT 1 FROM " + CHANGE_CONSUMERS_TABLE_NAME + ")";
+        db.execSQL("CREATE TRIGGER books_changes_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                + " WHEN new." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL AND " + hasConsumers
+                + " BEGIN " + logChange("new", "'" + BookContract.OPERATION_INSERT + "'", !syncColumns ? null
+                : "new." + BookEntry.COLUMN_BOOK_SERVER_VERSION + " IS NOT NULL") + " END;");
+        db.execSQL("CREATE TRIGGER books_changes_update AFTER UPDATE ON " + BookEntry.TABLE_NAME
+                + " WHEN (old." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL OR new."
+                + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL) AND " + hasConsumers
+                + " BEGIN " + logChange("new", "CASE"
+                + " WHEN new." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NOT NULL THEN '" + BookContract.OPERATION_DELETE + "'"
+                + " WHEN old." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NOT NULL THEN '" + BookContract.OPERATION_INSERT + "'"
+                + " ELSE '" + BookContract.OPERATION_UPDATE + "' END", !syncColumns ? null
+                : "new." + BookEntry.COLUMN_BOOK_SERVER_VERSION + " IS NOT old." + BookEntry.COLUMN_BOOK_SERVER_VERSION)
+                + " END;");
+        db.execSQL("CREATE TRIGGER books_changes_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                + " WHEN old." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL AND " + hasConsumers
+                + " BEGIN " + logChange("old", "'" + BookContract.OPERATION_DELETE + "'",
+                !syncColumns ? null : archive ? "1" : "0")
+                + " END;");
+    }
+
+    /**
+     * Trigger statement that adds the book of a trigger row to the change log, with the given
+     * SQL for the operation.
+     *
+     * @param remote SQL telling whether the change is remote, or null if the log doesn't
+     *               have the sync columns yet.
+     */
+    private static String logChange(String row, String operation, String remote) {
+        return "INSERT INTO " + ChangeEntry.TABLE_NAME + "("
+                + ChangeEntry.COLUMN_BOOK_ID + ", " + ChangeEntry.COLUMN_OPERATION + ", "
+                + ChangeEntry.COLUMN_CHANGED_AT
+                + (remote == null ? "" : ", " + ChangeEntry.COLUMN_GLOBAL_ID + ", " + ChangeEntry.COLUMN_REMOTE)
+                + ") VALUES (" + row + "." + BookEntry._ID + ", " + operation
+                + ", " + SQL_NOW
+                + (remote == null ? "" : ", " + row + "." + BookEntry.COLUMN_BOOK_GLOBAL_ID + ", " + remote)
+                + ");";
+    }
+
+    /**
+     * Creates a table under a new name with the given columns, copies the books into it with
+     * the given SELECT and swaps it in for the books table. The _ID sequence carries over,
+     * so the _IDs of deleted books are never reused. Indexes, triggers and the books view are
+     * dropped on the way and have to be created again.
+     */
+    private static void rebuildBooksTable(SQLiteDatabase db, String columns, String select) {
+        long sequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT seq FROM sqlite_sequence"
+                + " WHERE name = '" + BookEntry.TABLE_NAME + "'), 0)", null);
+
+        db.execSQL("DROP VIEW IF EXISTS " + BOOKS_VIEW_NAME + ";");
+        db.execSQL("CREATE TABLE books_new(" + columns + ");");
+        db.execSQL("INSERT INTO books_new " + select + ";");
+        db.execSQL("DROP TABLE " + BookEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE books_new RENAME TO " + BookEntry.TABLE_NAME + ";");
+
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + BookEntry.TABLE_NAME + "';");
+        db.execSQL("INSERT INTO sqlite_sequence(name, seq) VALUES ('" + BookEntry.TABLE_NAME + "', "
+                + "MAX(?, IFNULL((SELECT MAX(" + BookEntry._ID + ") FROM " + BookEntry.TABLE_NAME + "), 0)));",
+                new Object[]{sequence});
+    }
+
+    /**
+     * Creates the view of the books with their supplier's name and phone number.
+     *
+     * @param skipDeleted Whether to leave out deleted books, once the books table has the
+     *                    {@link BookEntry#COLUMN_BOOK_DELETED_AT} column.
+     */
+    private static void createBooksView(SQLiteDatabase db, boolean skipDeleted) {
+        db.execSQL("CREATE VIEW " + BOOKS_VIEW_NAME + " AS SELECT " + BookEntry.TABLE_NAME + ".*, "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry.COLUMN_SUPPLIER_NAME + " AS "
+                + BookEntry.COLUMN_BOOK_SUPPLIER + ", "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER + " AS "
+                + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+                + " FROM " + BookEntry.TABLE_NAME + " LEFT JOIN " + SupplierEntry.TABLE_NAME
+                + " ON " + BookEntry.TABLE_NAME + "." + BookEntry.COLUMN_BOOK_SUPPLIER_ID + " = "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry._ID
+                + (skipDeleted ? " WHERE " + BookEntry.TABLE_NAME + "." + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL" : "")
+                + ";");
+    }
+
+    /**
+     * Creates the statistics table, with the supplier column of the given key and the given
+     * types for it and for the stock value.
+     */
+    private static void createStatsTable(SQLiteDatabase db, StatsKey key, String supplierType,
+                                         String stockValueType) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + "("
+                + StatsEntry._ID + " INTEGER PRIMARY KEY, "
+                + StatsEntry.COLUMN_SCOPE + " INTEGER NOT NULL, "
+                + key.statsColumn + " " + supplierType + " NOT NULL, "
+                + StatsEntry.COLUMN_BOOK_COUNT + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_UNITS + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_STOCK_VALUE + " " + stockValueType + " NOT NULL, "
+                + StatsEntry.COLUMN_OUT_OF_STOCK + " INTEGER NOT NULL, "
+                + "UNIQUE (" + StatsEntry.COLUMN_SCOPE + ", " + key.statsColumn + "));");
+    }
+
+    /**
+     * Returns the SELECT that works out the statistics rows from the books table.
+     */
+    private static String computeStatsSql(StatsKey key) {
+        String supplier = "IFNULL(" + key.bookColumn + ", " + key.noSupplier + ")";
+        String where = key.deletedColumn == null ? "" : " WHERE " + key.deletedColumn + " IS NULL";
+        return "SELECT "
+                + StatsEntry.SCOPE_ALL + " AS " + StatsEntry.COLUMN_SCOPE + ", "
+                + key.noSupplier + " AS " + key.statsColumn + ", "
+                + "COUNT(*) AS " + StatsEntry.COLUMN_BOOK_COUNT + ", "
+                + "IFNULL(SUM(" + BookEntry.COLUMN_BOOK_QUANTITY + "), 0) AS " + StatsEntry.COLUMN_UNITS + ", "
+                + "IFNULL(SUM(" + BookEntry.COLUMN_BOOK_PRICE + " * " + BookEntry.COLUMN_BOOK_QUANTITY + "), 0) AS "
+                + StatsEntry.COLUMN_STOCK_VALUE + ", "
+                + "IFNULL(SUM(" + BookEntry.COLUMN_BOOK_QUANTITY + " = 0), 0) AS " + StatsEntry.COLUMN_OUT_OF_STOCK
+                + " FROM " + BookEntry.TABLE_NAME + where
+                + " UNION ALL SELECT "
+                + StatsEntry.SCOPE_SUPPLIER + ", "
+                + supplier + ", "
+                + "COUNT(*), "
+                + "SUM(" + BookEntry.COLUMN_BOOK_QUANTITY + "), "
+                + "SUM(" + BookEntry.COLUMN_BOOK_PRICE + " * " + BookEntry.COLUMN_BOOK_QUANTITY + "), "
+                + "SUM(" + BookEntry.COLUMN_BOOK_QUANTITY + " = 0)"
+                + " FROM " + BookEntry.TABLE_NAME + where
+                + " GROUP BY " + supplier;
+    }
+
+    /**
+     * Replaces the rows of the statistics table with ones worked out from the books table.
+     */
+    static void rebuildStats(SQLiteDatabase db) {
+        rebuildStats(db, STATS_KEY);
+    }
+
+    private static void rebuildStats(SQLiteDatabase db, StatsKey key) {
+        db.execSQL("DELETE FROM " + StatsEntry.TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + "("
+                + StatsEntry.COLUMN_SCOPE + ", " + key.statsColumn + ", "
+                + StatsEntry.COLUMN_BOOK_COUNT + ", " + StatsEntry.COLUMN_UNITS + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + ", " + StatsEntry.COLUMN_OUT_OF_STOCK + ") "
+                + computeStatsSql(key) + ";");
+    }
+
+    /**
+     * Creates the triggers that keep the statistics table up to date. Each change of a book
+     * takes the old book out of its totals and adds the new one, so the cost of a write
+     * doesn't depend on the number of books. Deleting a book takes it out when its deleted_at
+     * time is set, so removing it for good later leaves the statistics alone.
+     */
+    private static void createStatsTriggers(SQLiteDatabase db, StatsKey key) {
+        String deletedColumn = key.deletedColumn == null ? "" : ", " + key.deletedColumn;
+        db.execSQL("CREATE TRIGGER books_stats_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                + notDeleted(" WHEN ", "new", key)
+                + " BEGIN " + addSupplierStats("new", key) + addToStats("new", key, "+") + " END;");
+        db.execSQL("CREATE TRIGGER books_stats_update AFTER UPDATE OF "
+                + BookEntry.COLUMN_BOOK_PRICE + ", " + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + key.bookColumn + deletedColumn + " ON " + BookEntry.TABLE_NAME
+                + " BEGIN " + addSupplierStats("new", key) + addToStats("old", key, "-")
+                + addToStats("new", key, "+") + dropEmptySupplierStats(key) + " END;");
+        db.execSQL("CREATE TRIGGER books_stats_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                + notDeleted(" WHEN ", "old", key)
+                + " BEGIN " + addToStats("old", key, "-") + dropEmptySupplierStats(key) + " END;");
+    }
+
+    /**
+     * Returns the condition that the book in a trigger row isn't deleted, after the given
+     * keyword, or nothing if the schema of the key has no deleted books.
+     */
+    private static String notDeleted(String keyword, String row, StatsKey key) {
+        if (key.deletedColumn == null) {
+            return "";
+        }
+        return keyword + row + "." + key.deletedColumn + " IS NULL";
+    }
+
+    /**
+     * Trigger statement that creates an empty statistics row for the supplier of a book, if
+     * there is none yet. This checks for the row instead of using INSERT OR IGNORE, because
+     * the ABORT of the foreign key action that clears the supplier of a book overrides it.
+     */
+    private static String addSupplierStats(String row, StatsKey key) {
+        String supplier = "IFNULL(" + row + "." + key.bookColumn + ", " + key.noSupplier + ")";
+        return "INSERT INTO " + StatsEntry.TABLE_NAME + "("
+                + StatsEntry.COLUMN_SCOPE + ", " + key.statsColumn + ", "
+                + StatsEntry.COLUMN_BOOK_COUNT + ", " + StatsEntry.COLUMN_UNITS + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + ", " + StatsEntry.COLUMN_OUT_OF_STOCK + ") SELECT "
+                + StatsEntry.SCOPE_SUPPLIER + ", " + supplier + ", 0, 0, 0, 0 WHERE NOT EXISTS (SELECT 1 FROM "
+                + StatsEntry.TABLE_NAME + " WHERE " + StatsEntry.COLUMN_SCOPE + " = " + StatsEntry.SCOPE_SUPPLIER
+                + " AND " + key.statsColumn + " = " + supplier + ")" + notDeleted(" AND ", row, key) + ";";
+    }
+
+    /**
+     * Trigger statement that adds ("+") or takes out ("-") a book in the overall statistics
+     * and in the statistics of its supplier. Deleted books are skipped.
+     */
+    private static String addToStats(String row, StatsKey key, String sign) {
+        String quantity = row + "." + BookEntry.COLUMN_BOOK_QUANTITY;
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_BOOK_COUNT + " = " + StatsEntry.COLUMN_BOOK_COUNT + " " + sign + " 1, "
+                + StatsEntry.COLUMN_UNITS + " = " + StatsEntry.COLUMN_UNITS + " " + sign + " " + quantity + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + " = " + StatsEntry.COLUMN_STOCK_VALUE + " " + sign + " "
+                + row + "." + BookEntry.COLUMN_BOOK_PRICE + " * " + quantity + ", "
+                + StatsEntry.COLUMN_OUT_OF_STOCK + " = " + StatsEntry.COLUMN_OUT_OF_STOCK + " " + sign
+                + " (" + quantity + " = 0)"
+                + " WHERE (" + StatsEntry.COLUMN_SCOPE + " = " + StatsEntry.SCOPE_ALL
+                + " OR (" + StatsEntry.COLUMN_SCOPE + " = " + StatsEntry.SCOPE_SUPPLIER
+                + " AND " + key.statsColumn + " = IFNULL(" + row + "." + key.bookColumn + ", "
+                + key.noSupplier + ")))" + notDeleted(" AND ", row, key) + ";";
+    }
+
+    /**
+     * Trigger statement that drops the statistics of suppliers that have no books left.
+     */
+    private static String dropEmptySupplierStats(StatsKey key) {
+        return "DELETE FROM " + StatsEntry.TABLE_NAME + " WHERE " + StatsEntry.COLUMN_SCOPE + " = "
+                + StatsEntry.SCOPE_SUPPLIER + " AND " + StatsEntry.COLUMN_BOOK_COUNT + " = 0;";
+    }
+
+    /**
+     * How the statistics group books by supplier in one version of the schema.
+     */
+    private static class StatsKey {
+
+        /**
+         * Supplier column of the statistics table
+         */
+        final String statsColumn;
+
+        /**
+         * Supplier column of the books table
+         */
+        final String bookColumn;
+
+        /**
+         * SQL value that stands for the whole inventory and for books without a supplier
+         */
+        final String noSupplier;
+
+        /**
+         * Column of the books table set on deleted books, which the statistics leave out, or
+         * null if books are removed right away
+         */
+        final String deletedColumn;
+
+        StatsKey(String statsColumn, String bookColumn, String noSupplier, String deletedColumn) {
+            this.statsColumn = statsColumn;
+            this.bookColumn = bookColumn;
+            this.noSupplier = noSupplier;
+            this.deletedColumn = deletedColumn;
+        }
+    }
+
+    /**
+     * One step of the schema history.
+     */
+    private abstract static class Migration {
+
+        /**
+         * Version of the schema after this migration has run
+         */
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
 
+        /**
+         * Upgrades the schema from version - 1 to version.
+         */
+        abstract void migrate(SQLiteDatabase db);
     }
 }
@@ -1,17 +1,42 @@
 package com.example.android.bookstoreapp.data;
 
+import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.ChangeEntry;
+import com.example.android.bookstoreapp.data.BookContract.StatsEntry;
+import com.example.android.bookstoreapp.data.BookContract.SupplierEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.UUID;
 
 public class BookProvider extends ContentProvider {
 
@@ -27,6 +52,30 @@ public class BookProvider extends ContentProvider {
      * URI matcher code for the content URI for a single book in the books table
      */
     private static final int BOOK_ID = 101;
+    /**
+     * URI matcher code for the content URI for a full-text search over the books table
+     */
+    private static final int BOOK_SEARCH = 102;
+    /**
+     * URI matcher code for the content URI for the inventory statistics
+     */
+    private static final int BOOK_STATS = 103;
+    /**
+     * URI matcher code for the content URI for a single book looked up by ISBN
+     */
+    private static final int BOOK_ISBN = 104;
+    /**
+     * URI matcher code for the content URI for the suppliers table
+     */
+    private static final int SUPPLIERS = 200;
+    /**
+     * URI matcher code for the content URI for a single supplier in the suppliers table
+     */
+    private static final int SUPPLIER_ID = 201;
+    /**
+     * URI matcher code for the content URI for the change log
+     */
+    private static final int CHANGES = 300;
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      */
@@ -36,16 +85,267 @@ public class BookProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS, BOOKS);
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#", BOOK_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_SEARCH + "/*", BOOK_SEARCH);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_STATS, BOOK_STATS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_ISBN + "/*", BOOK_ISBN);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS + "/#", SUPPLIER_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_CHANGES, CHANGES);
+    }
+
+    /**
+     * Selection of the books of the books table that aren't deleted
+     */
+    private static final String NOT_DELETED = BookEntry.COLUMN_BOOK_DELETED_AT + " IS NULL";
+
+    /**
+     * Selection of a book of the books table by _ID, unless it is deleted
+     */
+    private static final String BOOK_ID_SELECTION = BookEntry._ID + "=? AND " + NOT_DELETED;
+
+    /**
+     * Selection of a book of the books table by ISBN, unless it is deleted
+     */
+    private static final String BOOK_ISBN_SELECTION = BookEntry.COLUMN_BOOK_ISBN + "=? AND " + NOT_DELETED;
+
+    /**
+     * Removes the deleted book with an ISBN, so a new book can take the ISBN over
+     */
+    private static final String SQL_PURGE_DELETED_ISBN = "DELETE FROM " + BookEntry.TABLE_NAME
+            + " WHERE " + BookEntry.COLUMN_BOOK_ISBN + " = ? AND " + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NOT NULL";
+
+    /**
+     * Takes copies out of stock, but only if there are enough of them, and records the time
+     * of the sale
+     */
+    private static final String SQL_SELL = "UPDATE " + BookEntry.TABLE_NAME
+            + " SET " + BookEntry.COLUMN_BOOK_QUANTITY + " = " + BookEntry.COLUMN_BOOK_QUANTITY + " - ?, "
+            + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " = ?"
+            + " WHERE " + BookEntry._ID + " = ? AND " + BookEntry.COLUMN_BOOK_QUANTITY + " >= ?"
+            + " AND " + NOT_DELETED;
+
+    /**
+     * Columns compared by the statistics check, in the order of
+     * {@link BookDbHelper#SQL_COMPUTE_STATS}
+     */
+    private static final String[] STATS_COLUMNS = {
+            StatsEntry.COLUMN_SCOPE,
+            StatsEntry.COLUMN_SUPPLIER_ID,
+            StatsEntry.COLUMN_BOOK_COUNT,
+            StatsEntry.COLUMN_UNITS,
+            StatsEntry.COLUMN_STOCK_VALUE,
+            StatsEntry.COLUMN_OUT_OF_STOCK
+    };
+
+    /**
+     * Columns written by a sale or a stock adjustment
+     */
+    private static final Set<String> QUANTITY_COLUMNS = Collections.singleton(BookEntry.COLUMN_BOOK_QUANTITY);
+
+    /**
+     * Adds a quantity change to one book, but only if the quantity doesn't go below 0, and
+     * sets the time of the last sale unless it is bound to null
+     */
+    private static final String SQL_ADJUST_STOCK = "UPDATE " + BookEntry.TABLE_NAME
+            + " SET " + BookEntry.COLUMN_BOOK_QUANTITY + " = " + BookEntry.COLUMN_BOOK_QUANTITY + " + ?, "
+            + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " = IFNULL(?, " + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + ")"
+            + " WHERE " + BookEntry._ID + " = ? AND " + BookEntry.COLUMN_BOOK_QUANTITY + " + ? >= 0"
+            + " AND " + NOT_DELETED;
+
+    /**
+     * Reads the quantity of one book
+     */
+    private static final String SQL_QUANTITY = "SELECT " + BookEntry.COLUMN_BOOK_QUANTITY
+            + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BOOK_ID_SELECTION;
+
+    /**
+     * Sets the quantity of one book, and the time of the last sale to the second time bound
+     * if the quantity goes down
+     */
+    private static final String SQL_UPDATE_QUANTITY = "UPDATE " + BookEntry.TABLE_NAME
+            + " SET " + BookEntry.COLUMN_BOOK_QUANTITY + " = ?, "
+            + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " = CASE WHEN ? < " + BookEntry.COLUMN_BOOK_QUANTITY
+            + " THEN ? ELSE " + BookEntry.COLUMN_BOOK_LAST_SOLD_AT + " END"
+            + " WHERE " + BOOK_ID_SELECTION;
+
+    /**
+     * Marks one book as deleted
+     */
+    private static final String SQL_DELETE_BOOK = "UPDATE " + BookEntry.TABLE_NAME
+            + " SET " + BookEntry.COLUMN_BOOK_DELETED_AT + " = ?"
+            + " WHERE " + BOOK_ID_SELECTION;
+
+    /**
+     * Reads the columns of one book kept by the single-book cache
+     */
+    private static final String SQL_QUERY_CACHED_BOOK = SQLiteQueryBuilder.buildQueryString(false,
+            BookDbHelper.BOOKS_VIEW_NAME, BookCache.COLUMNS, BookEntry._ID + "=?", null, null, null, null);
+
+    /**
+     * Moves the acknowledged position of a change consumer forward
+     */
+    private static final String SQL_ACKNOWLEDGE_CHANGES = "UPDATE " + BookDbHelper.CHANGE_CONSUMERS_TABLE_NAME
+            + " SET " + BookDbHelper.COLUMN_ACKNOWLEDGED + " = MAX(" + BookDbHelper.COLUMN_ACKNOWLEDGED + ", ?)"
+            + " WHERE " + BookDbHelper.COLUMN_CONSUMER_NAME + " = ?";
+
+    /**
+     * Removes the changes acknowledged by every consumer, or all of them if there are no
+     * consumers left
+     */
+    private static final String SQL_TRUNCATE_CHANGES = "DELETE FROM " + ChangeEntry.TABLE_NAME
+            + " WHERE " + ChangeEntry._ID + " <= IFNULL((SELECT MIN(" + BookDbHelper.COLUMN_ACKNOWLEDGED
+            + ") FROM " + BookDbHelper.CHANGE_CONSUMERS_TABLE_NAME + "), (SELECT MAX(" + ChangeEntry._ID
+            + ") FROM " + ChangeEntry.TABLE_NAME + "))";
+
+    /* Indexes of the statements in mStatements */
+    private static final int STATEMENT_SELL = 0;
+    private static final int STATEMENT_ADJUST_STOCK = 1;
+    private static final int STATEMENT_QUANTITY = 2;
+    private static final int STATEMENT_UPDATE_QUANTITY = 3;
+    private static final int STATEMENT_DELETE_BOOK = 4;
+    private static final int STATEMENT_ACKNOWLEDGE_CHANGES = 5;
+    private static final int STATEMENT_TRUNCATE_CHANGES = 6;
+
+    /**
+     * Tables joined for a search: each book with its row in the full-text index.
+     */
+    private static final String SEARCH_TABLES = BookDbHelper.BOOKS_VIEW_NAME + " JOIN "
+            + BookEntry.SEARCH_TABLE_NAME + " ON " + BookDbHelper.BOOKS_VIEW_NAME + "." + BookEntry._ID
+            + " = " + BookEntry.SEARCH_TABLE_NAME + ".docid";
+
+    /**
+     * Maps the book columns onto the books view for a search, since name and author exist
+     * in both joined tables.
+     */
+    private static final HashMap<String, String> sSearchProjectionMap = new HashMap<>();
+
+    static {
+        String[] columns = {
+                BookEntry._ID,
+                BookEntry.COLUMN_BOOK_NAME,
+                BookEntry.COLUMN_AUTHOR_NAME,
+                BookEntry.COLUMN_BOOK_PRICE,
+                BookEntry.COLUMN_BOOK_QUANTITY,
+                BookEntry.COLUMN_BOOK_SUPPLIER_ID,
+                BookEntry.COLUMN_BOOK_SUPPLIER,
+                BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+        };
+        for (String column : columns) {
+            sSearchProjectionMap.put(column, BookDbHelper.BOOKS_VIEW_NAME + "." + column + " AS " + column);
+        }
     }
 
+    /**
+     * Most rows a write announces one by one. A write touching more rows announces a change
+     * of the whole table instead.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 50;
+
+    /**
+     * Number of books kept by the single-book cache
+     */
+    private static final int BOOK_CACHE_SIZE = 64;
+
     /**
      * Database helper object
      */
     private BookDbHelper mDbHelper;
 
+    /**
+     * Cache of single-book lookups, see {@link BookCache}
+     */
+    private final BookCache mBookCache = new BookCache(BOOK_CACHE_SIZE);
+
+    /**
+     * Batch (bulkInsert / applyBatch) running on the current thread, if any. While a batch is
+     * open, change notifications are held back and sent once when its transaction commits.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    /**
+     * Compiled statements of the writes to a single book and to the change log
+     */
+    private final StatementCache mStatements = new StatementCache(
+            SQL_SELL, SQL_ADJUST_STOCK, SQL_QUANTITY, SQL_UPDATE_QUANTITY, SQL_DELETE_BOOK,
+            SQL_ACKNOWLEDGE_CHANGES, SQL_TRUNCATE_CHANGES);
+
+    /**
+     * Removes deleted books for good once they can't be brought back anymore
+     */
+    private BookCompactor mCompactor;
+
+    /**
+     * Moves the books that no longer sell to the archive
+     */
+    private BookArchiver mArchiver;
+
+    /**
+     * Deleted_at time of the last delete. Every delete gets a later time than the one
+     * before, so the books of the last delete can be told apart.
+     */
+    private long mLastDeletedAt;
+
+    /**
+     * Counters of the calls served, see {@link BookContract#METHOD_METRICS}
+     */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(
+            new int[]{BOOKS, BOOK_ID, BOOK_SEARCH, BOOK_STATS, BOOK_ISBN, SUPPLIERS, SUPPLIER_ID, CHANGES},
+            new String[]{
+                    BookContract.PATH_BOOKS,
+                    BookContract.PATH_BOOKS + "/#",
+                    BookContract.PATH_BOOKS + "/" + BookContract.PATH_SEARCH + "/*",
+                    BookContract.PATH_BOOKS + "/" + BookContract.PATH_STATS,
+                    BookContract.PATH_BOOKS + "/" + BookContract.PATH_ISBN + "/*",
+                    BookContract.PATH_SUPPLIERS,
+                    BookContract.PATH_SUPPLIERS + "/#",
+                    BookContract.PATH_CHANGES});
+
+    /**
+     * SQLite settings picked by the meta-data of the provider
+     */
+    private TuningProfile mTuningProfile = TuningProfile.DEFAULT;
+
+    @Override
+    public void attachInfo(Context context, ProviderInfo info) {
+        // The profile has to be known before onCreate() opens the database
+        mTuningProfile = TuningProfile.forName(readTuningProfileName(context, info));
+        super.attachInfo(context, info);
+    }
+
+    /**
+     * Returns the profile named by {@link BookContract#META_DATA_TUNING_PROFILE}, or null if
+     * the provider has none.
+     */
+    @Nullable
+    private String readTuningProfileName(Context context, @Nullable ProviderInfo info) {
+        Bundle metaData = info != null ? info.metaData : null;
+        if (metaData == null) {
+            // The info handed to a provider of the app usually comes without its meta-data
+            try {
+                metaData = context.getPackageManager().getProviderInfo(
+                        new ComponentName(context, getClass()), PackageManager.GET_META_DATA).metaData;
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(LOG_TAG, "No provider info for " + getClass().getName(), e);
+            }
+        }
+        return metaData != null ? metaData.getString(BookContract.META_DATA_TUNING_PROFILE) : null;
+    }
+
     @Override
     public boolean onCreate() {
-        mDbHelper = new BookDbHelper(getContext());
+        mDbHelper = new BookDbHelper(getContext(), mTuningProfile);
+        mCompactor = new BookCompactor(mDbHelper);
+        mArchiver = new BookArchiver(mDbHelper, new Runnable() {
+            @Override
+            public void run() {
+                // Archived books leave the cache and every list of books
+                mBookCache.invalidateAll();
+                notifyChange(BookEntry.CONTENT_URI);
+            }
+        });
         return true;
     }
 
@@ -53,28 +353,158 @@ public class BookProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs,
                         @Nullable String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Queries the given URI. From Jelly Bean on, the content resolver hands in the signal of
+     * the caller, a loader that was cancelled for example. Cancelling it stops SQLite in the
+     * middle of the scan, and the query throws an {@link android.os.OperationCanceledException}.
+     */
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder,
+                        @Nullable CancellationSignal cancellationSignal) {
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            // Lookups the cache answers don't reach SQLite, so check the signal here as well
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+            failed = false;
+            // SQLite runs the query when the cursor is first read, so the query is recorded
+            // once the caller closes the cursor, with the rows it loaded. Counting the rows
+            // here would load all of them, also for pages and for loads cancelled half way.
+            return mMetrics.recordOnClose(cursor, match, start, uri, selection, sortOrder);
+        } finally {
+            if (failed) {
+                mMetrics.record(ProviderMetrics.OPERATION_QUERY, match, System.nanoTime() - start, 0, true,
+                        uri, selection, sortOrder);
+            }
+        }
+    }
+
+    /**
+     * Queries the table behind the given URI matcher code.
+     */
+    private Cursor query(int match, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder, CancellationSignal cancellationSignal) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 // For the BOOKS code, query the books table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the books table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // If the URI asks for the books after a given ID, read the next page by _ID.
+                String afterId = uri.getQueryParameter(BookContract.QUERY_PARAMETER_AFTER_ID);
+                if (afterId != null) {
+                    try {
+                        afterId = String.valueOf(Long.parseLong(afterId));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid after_id in " + uri);
+                    }
+                    selection = DatabaseUtils.concatenateWhere(selection, BookEntry._ID + ">?");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{afterId});
+                    if (sortOrder == null) {
+                        sortOrder = BookEntry._ID;
+                    }
+                }
+                if (includeArchived(uri)) {
+                    cursor = queryTable(mDbHelper.getArchiveDatabase(), BookDbHelper.ALL_BOOKS_VIEW_NAME, projection,
+                            selection, selectionArgs, sortOrder, getLimit(uri), cancellationSignal);
+                    break;
+                }
+                cursor = queryTable(database, BookDbHelper.BOOKS_VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, getLimit(uri), cancellationSignal);
                 break;
             case BOOK_ID:
                 // For the BOOK_ID code, extract out the ID from the URI.
+                long id = ContentUris.parseId(uri);
+                boolean archived = includeArchived(uri);
+                // Plain lookups of cached columns go through the cache, which only holds
+                // books of the main table
+                if (selection == null && !archived && BookCache.canServe(projection)) {
+                    cursor = queryCachedBook(database, id, projection, cancellationSignal);
+                    break;
+                }
                 selection = BookEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(id)};
+                cursor = archived
+                        ? queryTable(mDbHelper.getArchiveDatabase(), BookDbHelper.ALL_BOOKS_VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal)
+                        : queryTable(database, BookDbHelper.BOOKS_VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
+                break;
+            case BOOK_SEARCH:
+                // For the BOOK_SEARCH code, match the search text against the full-text index.
+                // The results change whenever any book changes, so watch the whole table.
+                cursor = searchBooks(database, uri, projection,
+                        selection, selectionArgs, sortOrder, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), BookEntry.CONTENT_URI);
+                return cursor;
+            case BOOK_STATS:
+                // For the BOOK_STATS code, read the statistics table, which holds one row per
+                // supplier and one for the whole inventory. It changes with any book.
+                if (sortOrder == null) {
+                    sortOrder = StatsEntry.COLUMN_SCOPE + ", " + StatsEntry.COLUMN_SUPPLIER_ID;
+                }
+                cursor = queryTable(database, StatsEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), BookEntry.CONTENT_URI);
+                return cursor;
+            case BOOK_ISBN:
+                // For the BOOK_ISBN code, look the book up through the unique index of the
+                // ISBNs. Another book may take the ISBN over, so watch the whole table.
+                selection = BOOK_ISBN_SELECTION;
+                selectionArgs = new String[]{String.valueOf(normalizeIsbn(uri.getLastPathSegment()))};
+                cursor = includeArchived(uri)
+                        ? queryTable(mDbHelper.getArchiveDatabase(), BookDbHelper.ALL_BOOKS_VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal)
+                        : queryTable(database, BookDbHelper.BOOKS_VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), BookEntry.CONTENT_URI);
+                return cursor;
+            case SUPPLIERS:
+                cursor = queryTable(database, SupplierEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
+                break;
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryTable(database, SupplierEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
                 break;
+            case CHANGES:
+                // For the CHANGES code, read the change log after the given sequence number,
+                // oldest change first. It changes with any book.
+                String since = uri.getQueryParameter(BookContract.QUERY_PARAMETER_SINCE);
+                if (since != null) {
+                    try {
+                        since = String.valueOf(Long.parseLong(since));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid since in " + uri);
+                    }
+                    selection = DatabaseUtils.concatenateWhere(selection, ChangeEntry._ID + ">?");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{since});
+                }
+                if (sortOrder == null) {
+                    sortOrder = ChangeEntry._ID;
+                }
+                cursor = queryTable(database, ChangeEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, getLimit(uri), cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), BookEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -84,13 +514,156 @@ public class BookProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Returns whether a query of books asks for the archived books too, and there are any.
+     * Those are read through the connection to the archive, which sees both databases.
+     */
+    private boolean includeArchived(Uri uri) {
+        return uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_INCLUDE_ARCHIVED, false)
+                && mDbHelper.hasArchive();
+    }
+
+    /**
+     * Returns the given columns of a book from the cache, reading the book into the cache
+     * first if it isn't there.
+     */
+    private Cursor queryCachedBook(SQLiteDatabase database, long id, String[] projection,
+                                   CancellationSignal cancellationSignal) {
+        Object[] row = mBookCache.get(id);
+        if (row == null) {
+            long generation = mBookCache.getGeneration();
+            String[] selectionArgs = {String.valueOf(id)};
+            Cursor cursor = cancellationSignal == null
+                    ? database.rawQuery(SQL_QUERY_CACHED_BOOK, selectionArgs)
+                    : database.rawQuery(SQL_QUERY_CACHED_BOOK, selectionArgs, cancellationSignal);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = BookCache.readRow(cursor);
+                    mBookCache.put(id, row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return BookCache.toCursor(projection, row);
+    }
+
+    /**
+     * Searches the book names and authors for the text in the last path segment of the URI.
+     * Every word of the text is matched as a prefix of a word in the name or author. Unless
+     * a sort order is given, books whose name starts with the first word come first and the
+     * rest follow by name.
+     */
+    private Cursor searchBooks(SQLiteDatabase database, Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        // Keep only letters and digits of each word, so the text can't inject FTS operators
+        String text = uri.getLastPathSegment();
+        StringBuilder match = new StringBuilder();
+        String firstWord = null;
+        for (String word : text.split("\\s+")) {
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    token.append(c);
+                }
+            }
+            if (token.length() == 0) {
+                continue;
+            }
+            if (firstWord == null) {
+                firstWord = token.toString();
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(token).append('*');
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(SEARCH_TABLES);
+        builder.setProjectionMap(sSearchProjectionMap);
+        if (firstWord == null) {
+            // Nothing searchable was typed, so nothing matches
+            builder.appendWhere("0");
+        } else {
+            builder.appendWhere(BookEntry.SEARCH_TABLE_NAME + " MATCH ");
+            builder.appendWhereEscapeString(match.toString());
+        }
+
+        if (sortOrder == null && firstWord != null) {
+            sortOrder = "CASE WHEN " + BookDbHelper.BOOKS_VIEW_NAME + "." + BookEntry.COLUMN_BOOK_NAME
+                    + " LIKE " + DatabaseUtils.sqlEscapeString(firstWord + "%") + " THEN 0 ELSE 1 END, "
+                    + BookDbHelper.BOOKS_VIEW_NAME + "." + BookEntry.COLUMN_BOOK_NAME;
+        }
+
+        if (cancellationSignal == null) {
+            return builder.query(database, projection, selection, selectionArgs, null, null, sortOrder,
+                    getLimit(uri));
+        }
+        return builder.query(database, projection, selection, selectionArgs, null, null, sortOrder,
+                getLimit(uri), cancellationSignal);
+    }
+
+    /**
+     * Queries a table or view. The cancellation signal, if there is one, goes to SQLite;
+     * there is none before Jelly Bean, where SQLite doesn't take it.
+     */
+    private static Cursor queryTable(SQLiteDatabase database, String table, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder, String limit,
+                                     @Nullable CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null) {
+            return database.query(table, projection, selection, selectionArgs, null, null, sortOrder, limit);
+        }
+        return database.query(false, table, projection, selection, selectionArgs, null, null, sortOrder, limit,
+                cancellationSignal);
+    }
+
+    /**
+     * Returns the value of the limit query parameter of the URI, or null if there is none.
+     */
+    @Nullable
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(BookContract.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            if (Integer.parseInt(limit) < 0) {
+                throw new IllegalArgumentException("Invalid limit in " + uri);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+        return limit;
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        Uri newUri = null;
+        boolean failed = true;
+        try {
+            newUri = insert(match, uri, contentValues);
+            failed = false;
+            return newUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.OPERATION_INSERT, match, System.nanoTime() - start,
+                    newUri == null ? 0 : 1, failed, uri, null, null);
+        }
+    }
+
+    /**
+     * Inserts a row into the table behind the given URI matcher code.
+     */
+    private Uri insert(int match, Uri uri, ContentValues contentValues) {
         switch (match) {
             case BOOKS:
                 return insertBook(uri, contentValues);
+            case SUPPLIERS:
+                return insertSupplier(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -100,12 +673,64 @@ public class BookProvider extends ContentProvider {
      * Insert a pet into the database with the given content values.
      */
     private Uri insertBook(Uri uri, ContentValues values) {
+        validateNewBook(values);
+
+        values = normalizeIsbn(values);
+        String isbn = values.getAsString(BookEntry.COLUMN_BOOK_ISBN);
+        boolean upsert = isbn != null && uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_UPSERT, false);
+        boolean remote = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, false);
 
         // Get writeable database
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        // Insert the new book with the given values
-        long id = db.insert(BookEntry.TABLE_NAME, null, values);
+        // Insert the new book with the given values, together with its supplier if the
+        // supplier is new. When upserting, a book with the same ISBN is updated instead.
+        long id;
+        boolean updated = false;
+        db.beginTransaction();
+        try {
+            long lastChange = remote ? lastChange(db) : 0;
+
+            // An archived book with the ISBN comes back to be updated, keeping its identity,
+            // in this transaction. A batch may have written the books table already.
+            if (upsert) {
+                mArchiver.restoreInTransaction(db, BookEntry.COLUMN_BOOK_ISBN, new String[]{isbn});
+            }
+            // The inserts of a batch share their supplier lookups
+            Batch batch = mBatch.get();
+            ContentValues resolved = resolveSupplier(db, values, batch != null ? batch.suppliers : null);
+            long[] existing = upsert ? queryIds(db, BOOK_ISBN_SELECTION, new String[]{isbn}) : null;
+            if (existing != null && existing.length == 1) {
+                id = existing[0];
+                db.update(BookEntry.TABLE_NAME, resolved, BOOK_ID_SELECTION, new String[]{String.valueOf(id)});
+                updated = true;
+            } else {
+                // A deleted book keeps its ISBN until it is removed, the new book takes it over
+                if (isbn != null) {
+                    db.execSQL(SQL_PURGE_DELETED_ISBN, new Object[]{isbn});
+                }
+
+                // Every book gets an identifier shared with the other stores when it is created
+                if (resolved.getAsString(BookEntry.COLUMN_BOOK_GLOBAL_ID) == null) {
+                    resolved = new ContentValues(resolved);
+                    resolved.put(BookEntry.COLUMN_BOOK_GLOBAL_ID, newGlobalId());
+                }
+                // A new book counts as just sold, so it isn't archived before it had a chance
+                if (resolved.getAsLong(BookEntry.COLUMN_BOOK_LAST_SOLD_AT) == null) {
+                    resolved = new ContentValues(resolved);
+                    resolved.put(BookEntry.COLUMN_BOOK_LAST_SOLD_AT, System.currentTimeMillis());
+                }
+                id = db.insert(BookEntry.TABLE_NAME, null, resolved);
+            }
+            if (id != -1) {
+                if (remote) {
+                    markRemoteChanges(db, lastChange);
+                }
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
 
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
@@ -113,11 +738,16 @@ public class BookProvider extends ContentProvider {
             return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        mBookCache.invalidate(id);
+        if (updated) {
+            notifyRowChange(id, BookContract.OPERATION_UPDATE, values.keySet());
+        } else {
+            notifyRowChange(id, BookContract.OPERATION_INSERT, null);
+        }
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
     }
 
     /**
@@ -126,18 +756,85 @@ public class BookProvider extends ContentProvider {
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues contentValues, @Nullable String selection, @Nullable String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = update(match, uri, contentValues, selection, selectionArgs);
+            failed = false;
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OPERATION_UPDATE, match, System.nanoTime() - start, rows, failed,
+                    uri, selection, null);
+        }
+    }
+
+    /**
+     * Updates the rows of the table behind the given URI matcher code.
+     */
+    private int update(int match, Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
         switch (match) {
             case BOOKS:
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                return updateBook(uri, contentValues, booksSelection(selection), selectionArgs);
             case BOOK_ID:
-                selection = BookEntry._ID + "=?";
+                // Quantity changes of a single book, the most common write, have a shortcut
+                if (contentValues != null && contentValues.size() == 1
+                        && contentValues.containsKey(BookEntry.COLUMN_BOOK_QUANTITY)) {
+                    return updateQuantity(uri, ContentUris.parseId(uri), contentValues);
+                }
+                selection = BOOK_ID_SELECTION;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 return updateBook(uri, contentValues, selection, selectionArgs);
+            case SUPPLIERS:
+                return updateSupplier(contentValues, selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateSupplier(contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
+    /**
+     * Sets the quantity of one book through a compiled statement.
+     */
+    private int updateQuantity(Uri uri, long id, ContentValues values) {
+        // Check that the quantity is not null and positive
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Book requires valid quantity");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        boolean remote = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, false);
+        int rowsUpdated;
+        db.beginTransaction();
+        try {
+            long lastChange = remote ? lastChange(db) : 0;
+            SQLiteStatement update = mStatements.get(db, STATEMENT_UPDATE_QUANTITY);
+            update.bindLong(1, quantity);
+            update.bindLong(2, quantity);
+            update.bindLong(3, System.currentTimeMillis());
+            update.bindLong(4, id);
+            rowsUpdated = update.executeUpdateDelete();
+            if (remote) {
+                markRemoteChanges(db, lastChange);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowsUpdated != 0) {
+            mBookCache.invalidate(id);
+            notifyRowChange(id, BookContract.OPERATION_UPDATE, QUANTITY_COLUMNS);
+        }
+        return rowsUpdated;
+    }
+
     /**
      * Update books in the database with the given content values.
      */
@@ -147,6 +844,11 @@ public class BookProvider extends ContentProvider {
             return 0;
         }
 
+        // Books are only deleted and restored through delete() and METHOD_UNDO_DELETE
+        if (values.containsKey(BookEntry.COLUMN_BOOK_DELETED_AT)) {
+            throw new IllegalArgumentException("Book deletion time can't be written");
+        }
+
         // If the name key is present, check that the name value is not null
         if (values.containsKey(BookEntry.COLUMN_BOOK_NAME)) {
             String name = values.getAsString(BookEntry.COLUMN_BOOK_NAME);
@@ -159,7 +861,7 @@ public class BookProvider extends ContentProvider {
 
         // If the price key is present, check that the price is not null and positive
         if (values.containsKey(BookEntry.COLUMN_BOOK_PRICE)) {
-            Float price = values.getAsFloat(BookEntry.COLUMN_BOOK_PRICE);
+            Long price = getPriceCents(values);
             if (price == null || price <= 0) {
                 throw new IllegalArgumentException("Book requires valid price");
             }
@@ -173,20 +875,49 @@ public class BookProvider extends ContentProvider {
             }
         }
 
+        // If the reorder level key is present, check that the level is not null and positive
+        if (values.containsKey(BookEntry.COLUMN_BOOK_REORDER_LEVEL)) {
+            Integer reorderLevel = values.getAsInteger(BookEntry.COLUMN_BOOK_REORDER_LEVEL);
+            if (reorderLevel == null || reorderLevel < 0) {
+                throw new IllegalArgumentException("Book requires valid reorder level");
+            }
+        }
+
         // No need to check the supplier name, any value is valid (including null).
 
         // No need to check the supplier's phone number, any value is valid (including null).
 
+        // Any ISBN is valid, but only one book can have it
+        values = normalizeIsbn(values);
+
         // Get writeable database
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = db.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. The books
+        // matching the selection are looked up in the same transaction, so each of them can
+        // be announced on its own.
+        boolean remote = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, false);
+        int rowsUpdated;
+        long[] ids;
+        db.beginTransaction();
+        try {
+            long lastChange = remote ? lastChange(db) : 0;
+            ids = queryIds(db, selection, selectionArgs);
+            rowsUpdated = db.update(BookEntry.TABLE_NAME, resolveSupplier(db, values, null),
+                    selection, selectionArgs);
+            if (remote) {
+                markRemoteChanges(db, lastChange);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // If 1 or more rows were updated, then notify all listeners that the data of these
+        // books has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            invalidateCache(ids);
+            notifyRowsChanged(ids, BookContract.OPERATION_UPDATE, values.keySet());
         }
 
         return rowsUpdated;
@@ -197,47 +928,1264 @@ public class BookProvider extends ContentProvider {
      */
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            rows = delete(match, uri, selection, selectionArgs);
+            failed = false;
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OPERATION_DELETE, match, System.nanoTime() - start, rows, failed,
+                    uri, selection, null);
+        }
+    }
+
+    /**
+     * Deletes the rows of the table behind the given URI matcher code.
+     */
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         // Get writeable databse
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         // Track the number of rows that were deleted
         int rowsDeleted;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+                selection = booksSelection(selection);
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
-                selection = BookEntry._ID + "=?";
+                return deleteBook(uri, ContentUris.parseId(uri));
+            case SUPPLIERS:
+                return deleteSupplier(selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+                return deleteSupplier(selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
+        // Only mark the books as deleted. They disappear from every query at once, and the
+        // compactor removes them for good later, a chunk at a time.
+        ContentValues deleted = new ContentValues();
+        deleted.put(BookEntry.COLUMN_BOOK_DELETED_AT, nextDeletedAt());
+
+        // Look up the books that are deleted in the same transaction, so each of them can be
+        // announced on its own
+        boolean remote = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, false);
+        long[] ids;
+        database.beginTransaction();
+        try {
+            long lastChange = remote ? lastChange(database) : 0;
+            ids = queryIds(database, selection, selectionArgs);
+            rowsDeleted = database.update(BookEntry.TABLE_NAME, deleted, selection, selectionArgs);
+            if (remote) {
+                markRemoteChanges(database, lastChange);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            invalidateCache(ids);
+            notifyRowsChanged(ids, BookContract.OPERATION_DELETE, null);
+            mCompactor.schedule();
         }
 
         return rowsDeleted;
     }
 
     /**
-     * Returns the MIME type of data for the content URI.
+     * Marks one book as deleted through a compiled statement.
      */
-    @Nullable
-    @Override
-    public String getType(@NonNull Uri uri) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                return BookEntry.CONTENT_LIST_TYPE;
-            case BOOK_ID:
+    private int deleteBook(Uri uri, long id) {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        boolean remote = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, false);
+        int rowsDeleted;
+        db.beginTransaction();
+        try {
+            long lastChange = remote ? lastChange(db) : 0;
+            SQLiteStatement delete = mStatements.get(db, STATEMENT_DELETE_BOOK);
+            delete.bindLong(1, nextDeletedAt());
+            delete.bindLong(2, id);
+            rowsDeleted = delete.executeUpdateDelete();
+            if (remote) {
+                markRemoteChanges(db, lastChange);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowsDeleted != 0) {
+            mBookCache.invalidate(id);
+            notifyRowChange(id, BookContract.OPERATION_DELETE, null);
+            mCompactor.schedule();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Returns the sequence number of the last change in the log, to pass to
+     * {@link #markRemoteChanges} after a write.
+     */
+    private static long lastChange(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ChangeEntry._ID + "), 0) FROM "
+                + ChangeEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Marks the changes logged after the given one as remote. Called in the transaction of a
+     * write of the sync engine, so the changes are those of the write and nothing else.
+     */
+    private static void markRemoteChanges(SQLiteDatabase db, long lastChange) {
+        db.execSQL("UPDATE " + ChangeEntry.TABLE_NAME + " SET " + ChangeEntry.COLUMN_REMOTE + " = 1 WHERE "
+                + ChangeEntry._ID + " > ?", new Object[]{lastChange});
+    }
+
+    /**
+     * Returns the deleted_at time of a new delete.
+     */
+    private synchronized long nextDeletedAt() {
+        mLastDeletedAt = Math.max(System.currentTimeMillis(), mLastDeletedAt + 1);
+        return mLastDeletedAt;
+    }
+
+    /**
+     * Brings back the books of the last delete, unless the undo window has passed. Listeners
+     * are told the books were inserted again.
+     */
+    private Bundle undoDelete() {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Both the last delete and its books are found by the deleted_at time. There is no
+        // index on it, deletes are rare enough for a scan of the table.
+        int restored = 0;
+        long[] ids = null;
+        db.beginTransaction();
+        try {
+            long deletedAt = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + BookEntry.COLUMN_BOOK_DELETED_AT + "), 0) FROM " + BookEntry.TABLE_NAME, null);
+            if (deletedAt > System.currentTimeMillis() - BookEntry.UNDO_DELETE_WINDOW_MS) {
+                String selection = BookEntry.COLUMN_BOOK_DELETED_AT + "=?";
+                String[] selectionArgs = {String.valueOf(deletedAt)};
+                ContentValues values = new ContentValues();
+                values.putNull(BookEntry.COLUMN_BOOK_DELETED_AT);
+
+                ids = queryIds(db, selection, selectionArgs);
+                restored = db.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (restored != 0) {
+            notifyRowsChanged(ids, BookContract.OPERATION_INSERT, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_RESTORED, restored);
+        return result;
+    }
+
+    /**
+     * Moves the archived books with the given _IDs or global IDs back into the books table.
+     */
+    private Bundle restoreArchived(Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(BookContract.EXTRA_IDS);
+        String[] globalIds = extras == null ? null : extras.getStringArray(BookContract.EXTRA_GLOBAL_IDS);
+
+        int restored = 0;
+        if (ids != null) {
+            String[] values = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                values[i] = String.valueOf(ids[i]);
+            }
+            restored += mArchiver.restore(BookEntry._ID, values);
+        }
+        if (globalIds != null) {
+            restored += mArchiver.restore(BookEntry.COLUMN_BOOK_GLOBAL_ID, globalIds);
+        }
+
+        // The restored books weren't in the cache, but lists of books change
+        if (restored != 0) {
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_RESTORED, restored);
+        return result;
+    }
+
+    /**
+     * Inserts all the given books in a single transaction. Rows that share the same set of
+     * columns are written through one compiled INSERT statement, and listeners are notified
+     * once when the whole batch has been committed. With
+     * {@link BookContract#QUERY_PARAMETER_UPSERT}, books with the ISBN of an existing book
+     * update it through one compiled UPDATE statement instead. Without it, such a book is
+     * skipped and the rest of the batch goes in. A book with invalid values fails the whole
+     * batch, as it fails insert().
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            if (match != BOOKS) {
+                throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
+            }
+            rows = bulkInsertBooks(uri, values);
+            failed = false;
+            return rows;
+        } finally {
+            mMetrics.record(ProviderMetrics.OPERATION_BULK_INSERT, match, System.nanoTime() - start, rows, failed,
+                    uri, null, null);
+        }
+    }
+
+    /**
+     * Inserts the given books, see {@link #bulkInsert(Uri, ContentValues[])}.
+     */
+    private int bulkInsertBooks(Uri uri, ContentValues[] values) {
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Whether books with a known ISBN update the existing book
+        boolean upsert = uri.getBooleanQueryParameter(BookContract.QUERY_PARAMETER_UPSERT, false);
+
+        // The same rules as a single insert, checked before anything is written so an invalid
+        // book fails the whole batch
+        ArrayList<String> isbns = new ArrayList<>();
+        for (ContentValues row : values) {
+            validateNewBook(row);
+            String isbn = normalizeIsbn(row.getAsString(BookEntry.COLUMN_BOOK_ISBN));
+            if (isbn != null) {
+                isbns.add(isbn);
+            }
+        }
+
+        // Number of rows that made it into the table, inserted or updated
+        int rowsInserted = 0;
+        boolean rowsUpdated = false;
+
+        // Compiled statements for the current column set, and the columns they bind. The
+        // UPDATE is only compiled once a row has an ISBN.
+        SQLiteStatement statement = null;
+        SQLiteStatement update = null;
+        SQLiteStatement purge = null;
+        String[] columns = null;
+
+        // Suppliers already looked up in this batch, by name
+        HashMap<String, Long> suppliers = new HashMap<>();
+
+        boolean successful = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            // Archived books with the ISBNs come back to be updated, see insertBook()
+            if (upsert) {
+                mArchiver.restoreInTransaction(db, BookEntry.COLUMN_BOOK_ISBN,
+                        isbns.toArray(new String[isbns.size()]));
+            }
+
+            for (ContentValues row : values) {
+                row = resolveSupplier(db, normalizeIsbn(row), suppliers);
+
+                // Recompile only when a row comes with a different set of columns
+                if (columns == null || !sameColumns(columns, row)) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    if (update != null) {
+                        update.close();
+                        update = null;
+                    }
+                    columns = row.keySet().toArray(new String[row.size()]);
+                    statement = db.compileStatement(buildInsertSql(columns));
+                }
+
+                String isbn = row.getAsString(BookEntry.COLUMN_BOOK_ISBN);
+                if (isbn != null) {
+                    if (upsert) {
+                        if (update == null) {
+                            update = db.compileStatement(buildUpsertSql(columns));
+                        }
+                        bindRow(update, columns, row);
+                        update.bindString(columns.length + 1, isbn);
+                        if (update.executeUpdateDelete() != 0) {
+                            rowsInserted++;
+                            rowsUpdated = true;
+                            continue;
+                        }
+                    }
+
+                    // A deleted book keeps its ISBN until it is removed, the new book takes
+                    // it over
+                    if (purge == null) {
+                        purge = db.compileStatement(SQL_PURGE_DELETED_ISBN);
+                    }
+                    purge.bindString(1, isbn);
+                    purge.executeUpdateDelete();
+                }
+
+                bindRow(statement, columns, row);
+
+                // If the ID is -1, the row was rejected. Log it and carry on with the rest. A
+                // row with the ISBN or global ID of another book is rejected the same way, as
+                // insert() rejects it, and only that row is rolled back.
+                long id;
+                try {
+                    id = statement.executeInsert();
+                } catch (SQLiteConstraintException e) {
+                    Log.w(LOG_TAG, "Rejected row with the ISBN " + isbn + " for " + uri, e);
+                    id = -1;
+                }
+                if (id == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                } else {
+                    rowsInserted++;
+                }
+            }
+
+            // The import goes on after these books once, and only once, they are committed
+            String importSource = uri.getQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_SOURCE);
+            if (importSource != null) {
+                saveImportCheckpoint(db, importSource,
+                        uri.getQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_FINGERPRINT),
+                        uri.getQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_OFFSET));
+            }
+
+            // Listeners hear of the whole batch once, when the outermost batch commits
+            if (rowsInserted != 0) {
+                notifyChange(BookEntry.CONTENT_URI);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+            if (purge != null) {
+                purge.close();
+            }
+            db.endTransaction();
+            // Updated books may be in the cache
+            if (rowsUpdated) {
+                mBookCache.invalidateAll();
+            }
+            endBatch(successful);
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Stores where the import of a feed stopped, in the transaction of the bulk insert.
+     */
+    private static void saveImportCheckpoint(SQLiteDatabase db, String source, @Nullable String fingerprint,
+                                             @Nullable String offset) {
+        if (fingerprint == null || offset == null) {
+            throw new IllegalArgumentException("Import checkpoint requires a fingerprint and an offset");
+        }
+        ContentValues checkpoint = new ContentValues();
+        checkpoint.put(BookDbHelper.COLUMN_IMPORT_SOURCE, source);
+        checkpoint.put(BookDbHelper.COLUMN_IMPORT_FINGERPRINT, fingerprint);
+        try {
+            checkpoint.put(BookDbHelper.COLUMN_IMPORT_OFFSET, Long.parseLong(offset));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid import offset " + offset);
+        }
+        db.insertWithOnConflict(BookDbHelper.IMPORT_CHECKPOINTS_TABLE_NAME, null, checkpoint,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Returns where the import of a feed stopped, if the checkpoint is of the same version of
+     * the feed.
+     */
+    private Bundle importCheckpoint(String source, @Nullable String fingerprint) {
+        if (TextUtils.isEmpty(source)) {
+            throw new IllegalArgumentException("Import checkpoint requires a source");
+        }
+
+        long offset = 0;
+        Cursor cursor = mDbHelper.getReadableDatabase().query(BookDbHelper.IMPORT_CHECKPOINTS_TABLE_NAME,
+                new String[]{BookDbHelper.COLUMN_IMPORT_OFFSET},
+                BookDbHelper.COLUMN_IMPORT_SOURCE + "=? AND " + BookDbHelper.COLUMN_IMPORT_FINGERPRINT + "=?",
+                new String[]{source, fingerprint == null ? "" : fingerprint}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                offset = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(BookContract.EXTRA_OFFSET, offset);
+        return result;
+    }
+
+    /**
+     * Forgets where the import of a feed stopped.
+     */
+    private void clearImportCheckpoint(String source) {
+        if (TextUtils.isEmpty(source)) {
+            throw new IllegalArgumentException("Import checkpoint requires a source");
+        }
+        mDbHelper.getWritableDatabase().delete(BookDbHelper.IMPORT_CHECKPOINTS_TABLE_NAME,
+                BookDbHelper.COLUMN_IMPORT_SOURCE + "=?", new String[]{source});
+    }
+
+    /**
+     * Binds the values of a row to a statement compiled for its columns.
+     */
+    private static void bindRow(SQLiteStatement statement, String[] columns, ContentValues row) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+        }
+    }
+
+    /**
+     * Applies all the operations in a single transaction, so either all of them are stored or
+     * none are. Listeners are notified once at the end instead of once per operation.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        boolean successful = false;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            // The operations dropped their books from the cache before the commit, so a
+            // lookup in between may have cached them again with the old values
+            mBookCache.invalidateAll();
+            endBatch(successful);
+        }
+    }
+
+    /**
+     * Runs one of the provider methods described in {@link BookContract}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        switch (method) {
+            case BookContract.METHOD_SELL:
+                return sellBook(arg, extras);
+            case BookContract.METHOD_ADJUST_STOCK:
+                return adjustStock(extras);
+            case BookContract.METHOD_CHECKPOINT:
+                BookDbHelper.checkpoint(mDbHelper.getWritableDatabase());
+                return null;
+            case BookContract.METHOD_CACHE_STATS:
+                Bundle stats = new Bundle();
+                stats.putInt(BookContract.EXTRA_CACHE_HITS, mBookCache.hitCount());
+                stats.putInt(BookContract.EXTRA_CACHE_MISSES, mBookCache.missCount());
+                stats.putInt(BookContract.EXTRA_CACHE_EVICTIONS, mBookCache.evictionCount());
+                return stats;
+            case BookContract.METHOD_VERIFY_STATS:
+                return verifyStats(extras != null && extras.getBoolean(BookContract.EXTRA_REBUILD));
+            case BookContract.METHOD_UNDO_DELETE:
+                return undoDelete();
+            case BookContract.METHOD_ARCHIVE:
+                Bundle archived = new Bundle();
+                archived.putInt(BookContract.EXTRA_ARCHIVED, mArchiver.archive());
+                return archived;
+            case BookContract.METHOD_RESTORE_ARCHIVED:
+                return restoreArchived(extras);
+            case BookContract.METHOD_REGISTER_CHANGE_CONSUMER:
+                return registerChangeConsumer(arg);
+            case BookContract.METHOD_ACKNOWLEDGE_CHANGES:
+                acknowledgeChanges(arg, extras);
+                return null;
+            case BookContract.METHOD_UNREGISTER_CHANGE_CONSUMER:
+                unregisterChangeConsumer(arg);
+                return null;
+            case BookContract.METHOD_IMPORT_CHECKPOINT:
+                return importCheckpoint(arg, extras == null ? null : extras.getString(BookContract.EXTRA_FINGERPRINT));
+            case BookContract.METHOD_CLEAR_IMPORT_CHECKPOINT:
+                clearImportCheckpoint(arg);
+                return null;
+            case BookContract.METHOD_METRICS:
+                Bundle metrics = mMetrics.toBundle(
+                        extras != null && extras.getBoolean(BookContract.EXTRA_INCLUDE_SLOW_CALLS));
+                if (extras != null && extras.getBoolean(BookContract.EXTRA_RESET)) {
+                    mMetrics.reset();
+                }
+                return metrics;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Registers a consumer of the change log and returns the sequence number it should read
+     * the changes after.
+     */
+    private Bundle registerChangeConsumer(String name) {
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Change consumer requires a name");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        long sequence;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(BookDbHelper.CHANGE_CONSUMERS_TABLE_NAME,
+                    new String[]{BookDbHelper.COLUMN_ACKNOWLEDGED},
+                    BookDbHelper.COLUMN_CONSUMER_NAME + "=?", new String[]{name}, null, null, null);
+            try {
+                sequence = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+
+            // A new consumer starts after the last change logged so far. The sequence of the
+            // log carries on when it is emptied, so later changes always get greater numbers.
+            if (sequence == -1) {
+                sequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT seq FROM sqlite_sequence"
+                        + " WHERE name = '" + ChangeEntry.TABLE_NAME + "'), 0)", null);
+                ContentValues consumer = new ContentValues();
+                consumer.put(BookDbHelper.COLUMN_CONSUMER_NAME, name);
+                consumer.put(BookDbHelper.COLUMN_ACKNOWLEDGED, sequence);
+                db.insertOrThrow(BookDbHelper.CHANGE_CONSUMERS_TABLE_NAME, null, consumer);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(BookContract.EXTRA_SEQUENCE, sequence);
+        return result;
+    }
+
+    /**
+     * Records that a consumer has processed the changes up to a sequence number, and removes
+     * the changes every consumer has processed.
+     */
+    private void acknowledgeChanges(String name, Bundle extras) {
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Change consumer requires a name");
+        }
+        if (extras == null || !extras.containsKey(BookContract.EXTRA_SEQUENCE)) {
+            throw new IllegalArgumentException("Acknowledgement requires a sequence number");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement acknowledge = mStatements.get(db, STATEMENT_ACKNOWLEDGE_CHANGES);
+            acknowledge.bindLong(1, extras.getLong(BookContract.EXTRA_SEQUENCE));
+            acknowledge.bindString(2, name);
+            if (acknowledge.executeUpdateDelete() == 0) {
+                throw new IllegalArgumentException("Unknown change consumer " + name);
+            }
+            mStatements.get(db, STATEMENT_TRUNCATE_CHANGES).executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Forgets a consumer of the change log, and removes the changes that only it was still
+     * waiting for.
+     */
+    private void unregisterChangeConsumer(String name) {
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Change consumer requires a name");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            db.delete(BookDbHelper.CHANGE_CONSUMERS_TABLE_NAME, BookDbHelper.COLUMN_CONSUMER_NAME + "=?",
+                    new String[]{name});
+            mStatements.get(db, STATEMENT_TRUNCATE_CHANGES).executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Sells copies of the book with the given ID in one step, so concurrent sales can't
+     * overwrite each other. Returns whether the copies were sold and the quantity left.
+     */
+    private Bundle sellBook(String arg, Bundle extras) {
+        long id;
+        try {
+            id = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid book ID " + arg);
+        }
+
+        // Sell one copy unless told otherwise
+        int amount = extras == null ? 1 : extras.getInt(BookContract.EXTRA_AMOUNT, 1);
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Book requires valid amount");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        boolean sold;
+        int quantity = -1;
+        db.beginTransaction();
+        try {
+            // Take the copies out of stock if there are enough of them
+            SQLiteStatement sell = mStatements.get(db, STATEMENT_SELL);
+            sell.bindLong(1, amount);
+            sell.bindLong(2, System.currentTimeMillis());
+            sell.bindLong(3, id);
+            sell.bindLong(4, amount);
+            sold = sell.executeUpdateDelete() == 1;
+
+            // Read the quantity that is left in the same transaction
+            SQLiteStatement read = mStatements.get(db, STATEMENT_QUANTITY);
+            read.bindLong(1, id);
+            try {
+                quantity = (int) read.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // There is no such book
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (sold) {
+            mBookCache.invalidate(id);
+            notifyRowChange(id, BookContract.OPERATION_UPDATE, QUANTITY_COLUMNS);
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(BookContract.EXTRA_SOLD, sold);
+        result.putInt(BookContract.EXTRA_QUANTITY, quantity);
+        return result;
+    }
+
+    /**
+     * Applies a batch of quantity changes in one transaction. A batch with the same or an
+     * earlier sequence number than the last applied one is refused, so its sender finds out
+     * that it numbered its sales wrong instead of losing them. Listeners are notified once. Changes
+     * that would sell more copies than are in stock, like {@link #sellBook}, are left out and
+     * their books returned.
+     */
+    private Bundle adjustStock(Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(BookContract.EXTRA_IDS);
+        int[] deltas = extras == null ? null : extras.getIntArray(BookContract.EXTRA_DELTAS);
+        long sequence = extras == null ? 0 : extras.getLong(BookContract.EXTRA_SEQUENCE, 0);
+        if (ids == null) {
+            ids = new long[0];
+            deltas = new int[0];
+        }
+        if (deltas == null || deltas.length != ids.length) {
+            throw new IllegalArgumentException("Stock changes require one delta per book");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        int rowsUpdated = 0;
+        long[] rejected = new long[ids.length];
+        int rejectedCount = 0;
+        long lastSequence;
+        db.beginTransaction();
+        try {
+            lastSequence = DatabaseUtils.longForQuery(db, "SELECT " + BookDbHelper.COLUMN_LAST_SEQUENCE
+                    + " FROM " + BookDbHelper.STOCK_QUEUE_TABLE_NAME, null);
+
+            if (ids.length > 0 && sequence <= lastSequence) {
+                throw new IllegalArgumentException("Stock batch " + sequence
+                        + " is not after the last applied batch " + lastSequence);
+            }
+            if (ids.length > 0) {
+                SQLiteStatement adjust = mStatements.get(db, STATEMENT_ADJUST_STOCK);
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < ids.length; i++) {
+                    adjust.bindLong(1, deltas[i]);
+                    // Stock going down counts as a sale
+                    if (deltas[i] < 0) {
+                        adjust.bindLong(2, now);
+                    } else {
+                        adjust.bindNull(2);
+                    }
+                    adjust.bindLong(3, ids[i]);
+                    adjust.bindLong(4, deltas[i]);
+                    if (adjust.executeUpdateDelete() == 1) {
+                        rowsUpdated++;
+                    } else if (deltas[i] != 0) {
+                        // Not enough copies left, or the book is gone
+                        rejected[rejectedCount++] = ids[i];
+                    }
+                }
+
+                ContentValues position = new ContentValues();
+                position.put(BookDbHelper.COLUMN_LAST_SEQUENCE, sequence);
+                db.update(BookDbHelper.STOCK_QUEUE_TABLE_NAME, position, null, null);
+                lastSequence = sequence;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowsUpdated != 0) {
+            invalidateCache(ids);
+            notifyRowsChanged(ids, BookContract.OPERATION_UPDATE, QUANTITY_COLUMNS);
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(BookContract.EXTRA_SEQUENCE, lastSequence);
+        result.putLongArray(BookContract.EXTRA_REJECTED_IDS, Arrays.copyOf(rejected, rejectedCount));
+        return result;
+    }
+
+    /**
+     * Works out the inventory statistics from the books table and counts the rows of the
+     * statistics table that differ from them. With rebuild, the statistics table is then
+     * replaced with the computed rows.
+     */
+    private Bundle verifyStats(boolean rebuild) {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        int mismatches = 0;
+        db.beginTransaction();
+        try {
+            // Both sides are read in one transaction, so they see the same books
+            HashMap<String, Object[]> computed = readStats(db.rawQuery(BookDbHelper.SQL_COMPUTE_STATS, null));
+            HashMap<String, Object[]> stored = readStats(db.query(StatsEntry.TABLE_NAME, STATS_COLUMNS,
+                    null, null, null, null, null));
+
+            for (String key : computed.keySet()) {
+                if (!sameStats(computed.get(key), stored.remove(key))) {
+                    Log.w(LOG_TAG, "Statistics of " + key + " are out of date");
+                    mismatches++;
+                }
+            }
+            // Whatever is left has no books behind it
+            for (String key : stored.keySet()) {
+                Log.w(LOG_TAG, "Statistics of " + key + " have no books");
+                mismatches++;
+            }
+
+            if (rebuild && mismatches > 0) {
+                BookDbHelper.rebuildStats(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rebuild && mismatches > 0) {
+            notifyChange(StatsEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_MISMATCHES, mismatches);
+        return result;
+    }
+
+    /**
+     * Reads statistics rows over {@link #STATS_COLUMNS}, keyed by scope and supplier, and
+     * closes the cursor.
+     */
+    private static HashMap<String, Object[]> readStats(Cursor cursor) {
+        HashMap<String, Object[]> stats = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                stats.put(cursor.getInt(0) + ":" + cursor.getString(1), new Object[]{
+                        cursor.getLong(2), cursor.getLong(3), cursor.getLong(4), cursor.getLong(5)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return stats;
+    }
+
+    /**
+     * Returns whether two statistics rows match. Prices are whole cents, so the stock values
+     * are exact and have to be equal too.
+     */
+    private static boolean sameStats(Object[] expected, @Nullable Object[] actual) {
+        return actual != null && Arrays.equals(expected, actual);
+    }
+
+    /**
+     * Checks the values of a new book, for insert() and bulkInsert() alike.
+     *
+     * @throws IllegalArgumentException if the values don't describe a valid book.
+     */
+    private static void validateNewBook(ContentValues values) {
+        // Books are only deleted through delete()
+        if (values.containsKey(BookEntry.COLUMN_BOOK_DELETED_AT)) {
+            throw new IllegalArgumentException("Book deletion time can't be written");
+        }
+
+        // A book requires a name
+        if (values.getAsString(BookEntry.COLUMN_BOOK_NAME) == null) {
+            throw new IllegalArgumentException("Book requires a name");
+        }
+
+        // A book requires a positive price, in whole cents
+        Long price = getPriceCents(values);
+        if (price == null || price <= 0) {
+            throw new IllegalArgumentException("Book requires valid price");
+        }
+
+        // A book requires a quantity, which can't be negative
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Book requires valid quantity");
+        }
+
+        // The reorder level is optional, but can't be negative
+        Integer reorderLevel = values.getAsInteger(BookEntry.COLUMN_BOOK_REORDER_LEVEL);
+        if (reorderLevel != null && reorderLevel < 0) {
+            throw new IllegalArgumentException("Book requires valid reorder level");
+        }
+    }
+
+    /**
+     * Returns the price of the values in cents, or null if there is none. Prices are whole
+     * cents, so a fractional price is refused rather than rounded.
+     */
+    @Nullable
+    private static Long getPriceCents(ContentValues values) {
+        Object price = values.get(BookEntry.COLUMN_BOOK_PRICE);
+        if (price instanceof Float || price instanceof Double) {
+            throw new IllegalArgumentException("Book price must be in cents");
+        }
+        return values.getAsLong(BookEntry.COLUMN_BOOK_PRICE);
+    }
+
+    /**
+     * Turns a selection over the columns of {@link BookEntry}, which may name the supplier
+     * columns of the books view, into a selection of the books table. Deleted books are
+     * never selected.
+     */
+    private static String booksSelection(@Nullable String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return NOT_DELETED;
+        }
+        return BookEntry._ID + " IN (SELECT " + BookEntry._ID + " FROM " + BookDbHelper.BOOKS_VIEW_NAME
+                + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Replaces the supplier name and phone number of a book with the _ID of the supplier,
+     * creating the supplier if there is none with that name yet and storing its new phone
+     * number. Must run in the transaction that writes the book.
+     *
+     * @param suppliers Suppliers already looked up in the same batch, or null.
+     */
+    private ContentValues resolveSupplier(SQLiteDatabase db, ContentValues values,
+                                          @Nullable HashMap<String, Long> suppliers) {
+        boolean hasSupplier = values.containsKey(BookEntry.COLUMN_BOOK_SUPPLIER);
+        boolean hasPhoneNumber = values.containsKey(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER);
+        if (!hasSupplier && !hasPhoneNumber) {
+            return values;
+        }
+        if (!hasSupplier) {
+            throw new IllegalArgumentException("Supplier phone number requires a supplier");
+        }
+
+        ContentValues resolved = new ContentValues(values);
+        String name = resolved.getAsString(BookEntry.COLUMN_BOOK_SUPPLIER);
+        String phoneNumber = resolved.getAsString(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER);
+        resolved.remove(BookEntry.COLUMN_BOOK_SUPPLIER);
+        resolved.remove(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER);
+
+        // A book without a supplier name has no supplier
+        if (TextUtils.isEmpty(name)) {
+            resolved.putNull(BookEntry.COLUMN_BOOK_SUPPLIER_ID);
+            return resolved;
+        }
+
+        Long supplierId = suppliers == null ? null : suppliers.get(name);
+        if (supplierId == null) {
+            Cursor cursor = db.query(SupplierEntry.TABLE_NAME,
+                    new String[]{SupplierEntry._ID, SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER},
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + "=?", new String[]{name}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    supplierId = cursor.getLong(0);
+                    // A new phone number of a known supplier applies to all its books
+                    if (phoneNumber != null && !phoneNumber.equals(cursor.getString(1))) {
+                        ContentValues supplier = new ContentValues();
+                        supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER, phoneNumber);
+                        db.update(SupplierEntry.TABLE_NAME, supplier, SupplierEntry._ID + "=?",
+                                new String[]{String.valueOf(supplierId)});
+                        onSuppliersChanged();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (supplierId == null) {
+                ContentValues supplier = new ContentValues();
+                supplier.put(SupplierEntry.COLUMN_SUPPLIER_NAME, name);
+                supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE_NUMBER, phoneNumber);
+                supplierId = db.insertOrThrow(SupplierEntry.TABLE_NAME, null, supplier);
+                notifyChange(SupplierEntry.CONTENT_URI);
+            }
+            if (suppliers != null) {
+                suppliers.put(name, supplierId);
+            }
+        }
+
+        resolved.put(BookEntry.COLUMN_BOOK_SUPPLIER_ID, supplierId);
+        return resolved;
+    }
+
+    /**
+     * Insert a supplier into the database with the given content values.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        // Check that the name is not empty, it identifies the supplier
+        String name = values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Insert the new supplier. This fails if another supplier has the same name.
+        long id = db.insert(SupplierEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyChange(uri);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Update suppliers in the database with the given content values.
+     */
+    private int updateSupplier(ContentValues values, String selection, String[] selectionArgs) {
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // If the name key is present, check that the name is not empty
+        if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_NAME)
+                && TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME))) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        int rowsUpdated = db.update(SupplierEntry.TABLE_NAME, values, selection, selectionArgs);
+        if (rowsUpdated != 0) {
+            onSuppliersChanged();
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Delete suppliers from the database. Their books are kept, without a supplier.
+     */
+    private int deleteSupplier(String selection, String[] selectionArgs) {
+        // Get writeable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        int rowsDeleted = db.delete(SupplierEntry.TABLE_NAME, selection, selectionArgs);
+        if (rowsDeleted != 0) {
+            onSuppliersChanged();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Called when existing suppliers changed. Their books show the supplier's name and phone
+     * number, so every book may have changed.
+     */
+    private void onSuppliersChanged() {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.suppliers.clear();
+        }
+        mBookCache.invalidateAll();
+        notifyChange(SupplierEntry.CONTENT_URI);
+        notifyChange(BookEntry.CONTENT_URI);
+    }
+
+    /**
+     * Returns the _IDs of the books matching the selection, or null if there are more than
+     * {@link #MAX_ROW_NOTIFICATIONS} of them.
+     */
+    @Nullable
+    private static long[] queryIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID}, selection,
+                selectionArgs, null, null, null, String.valueOf(MAX_ROW_NOTIFICATIONS + 1));
+        try {
+            if (cursor.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops the given books from the cache, or all of them if the books are not known.
+     */
+    private void invalidateCache(@Nullable long[] ids) {
+        if (ids == null) {
+            mBookCache.invalidateAll();
+            return;
+        }
+        for (long id : ids) {
+            mBookCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Announces a change of each of the given books, or of the whole table if the books are
+     * not known.
+     */
+    private void notifyRowsChanged(@Nullable long[] ids, String operation, @Nullable Set<String> columns) {
+        if (ids == null) {
+            notifyChange(BookEntry.CONTENT_URI);
+            return;
+        }
+        for (long id : ids) {
+            notifyRowChange(id, operation, columns);
+        }
+    }
+
+    /**
+     * Announces a change of one book on its own URI. The URI says what happened to the book
+     * and, for an update, which columns were written, so observers can patch just that row.
+     */
+    private void notifyRowChange(long id, String operation, @Nullable Set<String> columns) {
+        Uri.Builder builder = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id).buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_OPERATION, operation);
+        if (columns != null) {
+            builder.appendQueryParameter(BookContract.QUERY_PARAMETER_COLUMNS, TextUtils.join(",", columns));
+        }
+        notifyChange(builder.build());
+    }
+
+    /**
+     * Notifies listeners that the data at the given URI has changed. Inside a batch the
+     * notification is deferred until the batch ends.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.changed = true;
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Opens a batch on the current thread. Batches may nest; only the outermost one notifies.
+     */
+    private void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * Closes the current batch. When the outermost batch is closed and it has committed
+     * changes, a single notification is sent for the books table.
+     */
+    private void endBatch(boolean committed) {
+        Batch batch = mBatch.get();
+        if (!committed) {
+            batch.changed = false;
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        mBatch.remove();
+        if (batch.changed) {
+            getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+    }
+
+    /**
+     * Returns true if the row has exactly the given columns.
+     */
+    private static boolean sameColumns(String[] columns, ContentValues row) {
+        if (row.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!row.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds an INSERT statement for the books table with one placeholder per column. Books
+     * without a global ID get a new one from SQLite, and books without a last sale time get
+     * the current time, so the rows don't need to be copied.
+     */
+    private static String buildInsertSql(String[] columns) {
+        String[] placeholders = new String[columns.length];
+        Arrays.fill(placeholders, "?");
+        boolean newGlobalId = !Arrays.asList(columns).contains(BookEntry.COLUMN_BOOK_GLOBAL_ID);
+        boolean soldNow = !Arrays.asList(columns).contains(BookEntry.COLUMN_BOOK_LAST_SOLD_AT);
+        return "INSERT INTO " + BookEntry.TABLE_NAME
+                + " (" + TextUtils.join(", ", columns)
+                + (newGlobalId ? ", " + BookEntry.COLUMN_BOOK_GLOBAL_ID : "")
+                + (soldNow ? ", " + BookEntry.COLUMN_BOOK_LAST_SOLD_AT : "") + ")"
+                + " VALUES (" + TextUtils.join(", ", placeholders)
+                + (newGlobalId ? ", " + BookDbHelper.SQL_NEW_GLOBAL_ID : "")
+                + (soldNow ? ", " + BookDbHelper.SQL_NOW : "") + ")";
+    }
+
+    /**
+     * Builds an UPDATE statement for the books table that sets the given columns of the book
+     * with an ISBN, bound after the columns, unless it is deleted.
+     */
+    private static String buildUpsertSql(String[] columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(BookEntry.TABLE_NAME).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(BOOK_ISBN_SELECTION).toString();
+    }
+
+    /**
+     * Returns the values with the ISBN, if any, in the stored form. The values are only
+     * copied if that changes the ISBN.
+     */
+    private static ContentValues normalizeIsbn(ContentValues values) {
+        if (!values.containsKey(BookEntry.COLUMN_BOOK_ISBN)) {
+            return values;
+        }
+        String isbn = values.getAsString(BookEntry.COLUMN_BOOK_ISBN);
+        String normalized = normalizeIsbn(isbn);
+        if (TextUtils.equals(isbn, normalized)) {
+            return values;
+        }
+        ContentValues copy = new ContentValues(values);
+        copy.put(BookEntry.COLUMN_BOOK_ISBN, normalized);
+        return copy;
+    }
+
+    /**
+     * Returns the stored form of an ISBN: without hyphens or spaces, with an upper case
+     * check digit X, and null if nothing is left.
+     */
+    @Nullable
+    private static String normalizeIsbn(@Nullable String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        StringBuilder normalized = new StringBuilder(isbn.length());
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c)) {
+                normalized.append(Character.toUpperCase(c));
+            }
+        }
+        return normalized.length() == 0 ? null : normalized.toString();
+    }
+
+    /**
+     * Returns a new {@link BookEntry#COLUMN_BOOK_GLOBAL_ID}, in the same form as
+     * {@link BookDbHelper#SQL_NEW_GLOBAL_ID}.
+     */
+    private static String newGlobalId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * State of a batch running on one thread.
+     */
+    private static class Batch {
+        int depth;
+        boolean changed;
+
+        /**
+         * Suppliers looked up by the inserts of the batch, by name
+         */
+        final HashMap<String, Long> suppliers = new HashMap<>();
+    }
+
+    /**
+     * Returns the MIME type of data for the content URI.
+     */
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case BOOK_ID:
+                return BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_SEARCH:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case BOOK_STATS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case BOOK_ISBN:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
+            case CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,177 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the writes of the activities to {@link BookProvider} off the main thread.
+ * <p>
+ * Writes run one after the other on a single background thread, in the order they were
+ * requested. SQLite only lets one write run at a time anyway, so more threads would only wait
+ * on each other. Every method returns a {@link Future} and, if a callback is given, hands the
+ * result to it on the main thread.
+ * <p>
+ * A write that the provider rejects is logged and reported like a write that changed nothing:
+ * a null URI for an insert, 0 rows for an update or a delete.
+ */
+public class BookRepository {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BookRepository.class.getSimpleName();
+
+    /**
+     * How long the write thread is kept around once there is nothing left to write
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Receives the result of a write on the main thread
+     */
+    public interface Callback<T> {
+        void onResult(@Nullable T result);
+    }
+
+    private static BookRepository sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the repository of the app, creating it if needed.
+     */
+    public static synchronized BookRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BookRepository(Context context) {
+        mContentResolver = context.getContentResolver();
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, LOG_TAG);
+            }
+        });
+        // Don't keep an idle thread for the whole life of the process
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Inserts a row into the given table.
+     *
+     * @return a future for the URI of the new row, or null if it wasn't inserted
+     */
+    public Future<Uri> insert(final Uri uri, final ContentValues values, @Nullable Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                try {
+                    return mContentResolver.insert(uri, values);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to insert into " + uri, e);
+                    return null;
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Updates the rows at the given URI.
+     *
+     * @return a future for the number of rows updated
+     */
+    public Future<Integer> update(final Uri uri, final ContentValues values, @Nullable Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    return mContentResolver.update(uri, values, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to update " + uri, e);
+                    return 0;
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes the rows at the given URI.
+     *
+     * @return a future for the number of rows deleted
+     */
+    public Future<Integer> delete(final Uri uri, @Nullable Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    return mContentResolver.delete(uri, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to delete " + uri, e);
+                    return 0;
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Brings back the books of the last delete, if it can still be undone.
+     *
+     * @return a future for the number of books brought back
+     */
+    public Future<Integer> undoDelete(@Nullable Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                try {
+                    Bundle result = mContentResolver.call(BookContract.BookEntry.CONTENT_URI,
+                            BookContract.METHOD_UNDO_DELETE, null, null);
+                    return result == null ? 0 : result.getInt(BookContract.EXTRA_RESTORED);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to undo the last delete", e);
+                    return 0;
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs a write on the background thread and posts its result to the callback.
+     */
+    private <T> Future<T> submit(final Callable<T> write, @Nullable final Callback<T> callback) {
+        return mExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final T result = write.call();
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+}
@@ -0,0 +1,578 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Imports a supplier catalog into the books table.
+ * <p>
+ * The feed is read one record at a time and written through {@link BookProvider#bulkInsert}
+ * in chunks of {@link #CHUNK_SIZE} rows, so memory use does not depend on the size of the feed.
+ * Reading only continues once the previous chunk has been committed, which keeps the parser
+ * from running ahead of the database.
+ * <p>
+ * Every chunk carries the byte offset of the next unread record, which the provider saves as
+ * a checkpoint in the transaction of the chunk. If an import is interrupted, running it again
+ * for the same source skips straight to that offset, unless the start of the feed changed
+ * since: checkpoints are kept per source and version of the feed, told apart by a checksum of
+ * the first {@link #FINGERPRINT_BYTES} bytes.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>CSV with a header line naming the columns (see {@link BookEntry}).</li>
+ * <li>JSON lines: one JSON object per line, keyed by the same column names.</li>
+ * </ul>
+ */
+public class CatalogImporter {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = CatalogImporter.class.getSimpleName();
+
+    /**
+     * Number of rows written in one transaction
+     */
+    public static final int CHUNK_SIZE = 500;
+
+    /**
+     * Number of bytes at the start of a feed that tell its versions apart
+     */
+    private static final int FINGERPRINT_BYTES = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Books are written by ISBN, so a feed loaded again updates its books instead of adding
+     * them twice. Books without an ISBN are always added.
+     */
+    private static final Uri UPSERT_URI = BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookContract.QUERY_PARAMETER_UPSERT, "true")
+            .build();
+
+    /**
+     * Supported feed formats
+     */
+    public enum Format {
+        CSV,
+        JSON
+    }
+
+    /**
+     * Receives progress updates after every committed chunk.
+     */
+    public interface ProgressListener {
+        void onProgress(long rowsImported, long bytesRead, float rowsPerSecond);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final String mSourceId;
+    private final Format mFormat;
+    private ProgressListener mListener;
+
+    /**
+     * Constructs a new {@link CatalogImporter}.
+     *
+     * @param context  app context
+     * @param sourceId Stable name of the feed, used as the checkpoint key.
+     * @param format   Format of the feed.
+     */
+    public CatalogImporter(Context context, @NonNull String sourceId, @NonNull Format format) {
+        mContentResolver = context.getContentResolver();
+        mSourceId = sourceId;
+        mFormat = format;
+    }
+
+    public void setProgressListener(@Nullable ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the byte offset at which the next import of the given version of this source
+     * will start.
+     */
+    private long getCheckpoint(String fingerprint) {
+        Bundle extras = new Bundle();
+        extras.putString(BookContract.EXTRA_FINGERPRINT, fingerprint);
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_IMPORT_CHECKPOINT,
+                mSourceId, extras);
+        return result == null ? 0 : result.getLong(BookContract.EXTRA_OFFSET);
+    }
+
+    /**
+     * Forgets the checkpoint, so the next import starts from the beginning of the feed.
+     */
+    @WorkerThread
+    public void clearCheckpoint() {
+        mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_CLEAR_IMPORT_CHECKPOINT, mSourceId, null);
+    }
+
+    /**
+     * Imports the feed, resuming from the saved checkpoint if there is one. The stream must
+     * start at the beginning of the feed. Once the whole feed has been read the checkpoint
+     * is cleared.
+     *
+     * @param in The feed to read. It is not closed by this method.
+     * @return the number of rows imported by this call
+     */
+    @WorkerThread
+    public long importFrom(@NonNull InputStream in) throws IOException {
+        return importFrom(in, null);
+    }
+
+    /**
+     * Imports the feed like {@link #importFrom(InputStream)}, stopping before the next chunk
+     * once the signal is cancelled. The chunks written so far stay, and the next import of
+     * this source resumes after them.
+     *
+     * @throws android.os.OperationCanceledException if the import was cancelled.
+     */
+    @WorkerThread
+    public long importFrom(@NonNull InputStream in, @Nullable CancellationSignal cancellationSignal)
+            throws IOException {
+        RecordReader reader = new RecordReader(in);
+        String fingerprint = reader.readFingerprint();
+
+        // For CSV the header is needed even when resuming, so read it before skipping ahead
+        String[] columns = null;
+        if (mFormat == Format.CSV) {
+            List<String> header = reader.readCsvRecord();
+            if (header == null) {
+                clearCheckpoint();
+                return 0;
+            }
+            columns = mapColumns(header);
+        }
+
+        long checkpoint = getCheckpoint(fingerprint);
+        if (checkpoint > reader.getOffset()) {
+            reader.skipTo(checkpoint);
+        }
+
+        // Chunks are written with the checkpoint of this source and version
+        Uri chunkUri = UPSERT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_SOURCE, mSourceId)
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_FINGERPRINT, fingerprint)
+                .build();
+
+        long startTime = SystemClock.elapsedRealtime();
+        long rowsImported = 0;
+        ContentValues[] chunk = new ContentValues[CHUNK_SIZE];
+        int chunkSize = 0;
+
+        while (true) {
+            ContentValues values;
+            if (mFormat == Format.CSV) {
+                List<String> record = reader.readCsvRecord();
+                if (record == null) {
+                    break;
+                }
+                values = toContentValues(columns, record);
+            } else {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                values = toContentValues(line);
+            }
+
+            if (values == null) {
+                continue;
+            }
+
+            chunk[chunkSize++] = values;
+            if (chunkSize == CHUNK_SIZE) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                rowsImported += writeChunk(chunkUri, chunk, chunkSize, reader.getOffset(), rowsImported, startTime);
+                chunkSize = 0;
+            }
+        }
+
+        if (chunkSize > 0) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            ContentValues[] rest = new ContentValues[chunkSize];
+            System.arraycopy(chunk, 0, rest, 0, chunkSize);
+            rowsImported += writeChunk(chunkUri, rest, chunkSize, reader.getOffset(), rowsImported, startTime);
+        }
+
+        // The whole feed is in, so the next import of this source starts over
+        clearCheckpoint();
+
+        // Fold the log of the import back into the database, so readers don't have to
+        // search a long log
+        mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_CHECKPOINT, null, null);
+        return rowsImported;
+    }
+
+    /**
+     * Writes one chunk and the checkpoint after it in a single transaction, then reports
+     * progress.
+     */
+    private int writeChunk(Uri chunkUri, ContentValues[] chunk, int size, long offset, long rowsBefore,
+                           long startTime) {
+        Uri uri = chunkUri.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_IMPORT_OFFSET, String.valueOf(offset))
+                .build();
+        int inserted = mContentResolver.bulkInsert(uri, chunk);
+        if (inserted != size) {
+            Log.w(LOG_TAG, (size - inserted) + " rows of " + mSourceId + " were rejected");
+        }
+
+        if (mListener != null) {
+            long rows = rowsBefore + inserted;
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+            mListener.onProgress(rows, offset, rows * 1000f / elapsed);
+        }
+
+        // Drop the references so the rows can be collected
+        for (int i = 0; i < size; i++) {
+            chunk[i] = null;
+        }
+        return inserted;
+    }
+
+    /**
+     * Maps the header names of a CSV feed onto book columns. Unknown names map to null and
+     * their values are ignored.
+     */
+    private static String[] mapColumns(List<String> header) {
+        String[] columns = new String[header.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = mapColumn(header.get(i));
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the book column for a field name of the feed, or null if there is none.
+     */
+    @Nullable
+    private static String mapColumn(String field) {
+        switch (field.trim().toLowerCase(Locale.US)) {
+            case BookEntry.COLUMN_BOOK_NAME:
+            case "title":
+                return BookEntry.COLUMN_BOOK_NAME;
+            case BookEntry.COLUMN_AUTHOR_NAME:
+                return BookEntry.COLUMN_AUTHOR_NAME;
+            case BookEntry.COLUMN_BOOK_PRICE:
+                return BookEntry.COLUMN_BOOK_PRICE;
+            case BookEntry.COLUMN_BOOK_QUANTITY:
+                return BookEntry.COLUMN_BOOK_QUANTITY;
+            case BookEntry.COLUMN_BOOK_REORDER_LEVEL:
+                return BookEntry.COLUMN_BOOK_REORDER_LEVEL;
+            case BookEntry.COLUMN_BOOK_SUPPLIER:
+                return BookEntry.COLUMN_BOOK_SUPPLIER;
+            case BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER:
+            case "supplier_phone":
+                return BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER;
+            case BookEntry.COLUMN_BOOK_ISBN:
+            case "ean":
+                return BookEntry.COLUMN_BOOK_ISBN;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Converts one CSV record into book values, or returns null if the record is not a valid
+     * book.
+     */
+    @Nullable
+    private ContentValues toContentValues(String[] columns, List<String> record) {
+        ContentValues values = new ContentValues();
+        int count = Math.min(columns.length, record.size());
+        for (int i = 0; i < count; i++) {
+            if (columns[i] != null) {
+                putValue(values, columns[i], record.get(i));
+            }
+        }
+        return validate(values);
+    }
+
+    /**
+     * Converts one JSON line into book values, or returns null if the line is not a valid book.
+     */
+    @Nullable
+    private ContentValues toContentValues(String line) {
+        if (line.trim().length() == 0) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        try {
+            JSONObject object = new JSONObject(line);
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                String column = mapColumn(key);
+                if (column != null && !object.isNull(key)) {
+                    putValue(values, column, object.getString(key));
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Skipping malformed record in " + mSourceId, e);
+            return null;
+        }
+        return validate(values);
+    }
+
+    /**
+     * Stores a raw field value under the given column, converting it to the column's type.
+     * Values that can't be converted are left out.
+     */
+    private void putValue(ContentValues values, String column, String raw) {
+        String value = raw.trim();
+        if (value.length() == 0) {
+            return;
+        }
+        try {
+            switch (column) {
+                case BookEntry.COLUMN_BOOK_PRICE:
+                    values.put(column, PriceFormatter.parseCents(value));
+                    break;
+                case BookEntry.COLUMN_BOOK_QUANTITY:
+                case BookEntry.COLUMN_BOOK_REORDER_LEVEL:
+                    values.put(column, Integer.parseInt(value));
+                    break;
+                default:
+                    values.put(column, value);
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Invalid " + column + " \"" + value + "\" in " + mSourceId);
+        }
+    }
+
+    /**
+     * Checks the values against the same rules as the editor. Returns the values if they
+     * describe a valid book, null otherwise.
+     */
+    @Nullable
+    private static ContentValues validate(ContentValues values) {
+        // A book requires a name
+        if (!values.containsKey(BookEntry.COLUMN_BOOK_NAME)) {
+            return null;
+        }
+
+        // A book requires a positive price
+        Long price = values.getAsLong(BookEntry.COLUMN_BOOK_PRICE);
+        if (price == null || price <= 0) {
+            return null;
+        }
+
+        // Missing quantities mean the book is out of stock
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
+        if (quantity == null) {
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+        } else if (quantity < 0) {
+            return null;
+        }
+
+        // A reorder level can't be negative
+        Integer reorderLevel = values.getAsInteger(BookEntry.COLUMN_BOOK_REORDER_LEVEL);
+        if (reorderLevel != null && reorderLevel < 0) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Reads lines and CSV records from a stream while keeping track of the byte offset, so
+     * that the position after any record can be saved and skipped to later.
+     */
+    private static class RecordReader {
+
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[64 * 1024];
+        private int mPosition;
+        private int mLimit;
+
+        /* Offset in the stream of the next unread byte */
+        private long mOffset;
+
+        /* Bytes of the line being read, reused between lines */
+        private byte[] mLine = new byte[1024];
+
+        /* Fields of the record being read, reused between records */
+        private final List<String> mFields = new ArrayList<>();
+        private final StringBuilder mField = new StringBuilder();
+
+        RecordReader(InputStream in) {
+            mIn = in;
+        }
+
+        long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * Reads the first {@link #FINGERPRINT_BYTES} bytes of the stream, or all of it if it is
+         * shorter, and returns their length and checksum. Must be called before anything else
+         * is read; the bytes are still returned by the reads that follow.
+         */
+        String readFingerprint() throws IOException {
+            // read() may return fewer bytes than asked for, keep going so the same feed
+            // always gives the same fingerprint
+            while (mLimit < FINGERPRINT_BYTES) {
+                int count = mIn.read(mBuffer, mLimit, FINGERPRINT_BYTES - mLimit);
+                if (count <= 0) {
+                    break;
+                }
+                mLimit += count;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(mBuffer, 0, mLimit);
+            return mLimit + ":" + Long.toHexString(crc.getValue());
+        }
+
+        /**
+         * Skips forward to the given offset.
+         */
+        void skipTo(long offset) throws IOException {
+            // Use up what is already buffered first
+            int buffered = (int) Math.min(mLimit - mPosition, offset - mOffset);
+            mPosition += buffered;
+            mOffset += buffered;
+
+            while (mOffset < offset) {
+                long skipped = mIn.skip(offset - mOffset);
+                if (skipped <= 0) {
+                    // skip() may refuse to move; fall back to reading
+                    if (!fill()) {
+                        throw new IOException("Checkpoint " + offset + " is past the end of the feed");
+                    }
+                    skipped = Math.min(mLimit, offset - mOffset);
+                    mPosition = (int) skipped;
+                }
+                mOffset += skipped;
+            }
+        }
+
+        /**
+         * Reads one line without its line terminator, or returns null at the end of the stream.
+         */
+        @Nullable
+        String readLine() throws IOException {
+            int length = 0;
+            boolean read = false;
+            while (true) {
+                if (mPosition == mLimit && !fill()) {
+                    break;
+                }
+                read = true;
+                byte b = mBuffer[mPosition++];
+                mOffset++;
+                if (b == '\n') {
+                    break;
+                }
+                if (length == mLine.length) {
+                    byte[] bigger = new byte[mLine.length * 2];
+                    System.arraycopy(mLine, 0, bigger, 0, length);
+                    mLine = bigger;
+                }
+                mLine[length++] = b;
+            }
+            if (!read) {
+                return null;
+            }
+            if (length > 0 && mLine[length - 1] == '\r') {
+                length--;
+            }
+            return new String(mLine, 0, length, UTF_8);
+        }
+
+        /**
+         * Reads one CSV record, or returns null at the end of the stream. Quoted fields may
+         * contain commas, doubled quotes and line breaks. The returned list is reused by the
+         * next call.
+         */
+        @Nullable
+        List<String> readCsvRecord() throws IOException {
+            String line = readLine();
+            if (line == null) {
+                return null;
+            }
+
+            mFields.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                for (int i = 0; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (quoted) {
+                        if (c == '"') {
+                            if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                                mField.append('"');
+                                i++;
+                            } else {
+                                quoted = false;
+                            }
+                        } else {
+                            mField.append(c);
+                        }
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        mFields.add(mField.toString());
+                        mField.setLength(0);
+                    } else {
+                        mField.append(c);
+                    }
+                }
+
+                // A quoted field continues on the next line
+                if (!quoted) {
+                    break;
+                }
+                line = readLine();
+                if (line == null) {
+                    break;
+                }
+                mField.append('\n');
+            }
+            mFields.add(mField.toString());
+            return mFields;
+        }
+
+        /**
+         * Refills the buffer. Returns false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            int count = mIn.read(mBuffer, 0, mBuffer.length);
+            if (count <= 0) {
+                mPosition = 0;
+                mLimit = 0;
+                return false;
+            }
+            mPosition = 0;
+            mLimit = count;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.bookstoreapp.data;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Formats and parses book prices, which are stored as a whole number of cents.
+ * <p>
+ * Formatting writes the price into a char array supplied by the caller, so a list can format
+ * prices while it scrolls without allocating. The currency symbol, separators and grouping of
+ * a locale are looked up once and kept for the life of the process.
+ */
+public final class PriceFormatter {
+
+    /**
+     * Currency of the store. Every price is a number of its minor units.
+     */
+    public static final Currency CURRENCY = Currency.getInstance("USD");
+
+    /**
+     * Length of a buffer that holds any formatted price
+     */
+    public static final int MAX_LENGTH = 48;
+
+    /**
+     * Longest prefix plus suffix a locale may use around the amount. The 19 digits of a long,
+     * their 6 grouping separators, the sign, the decimal separator and the 2 fraction digits
+     * take the rest of {@link #MAX_LENGTH}.
+     */
+    private static final int MAX_AFFIX_LENGTH = MAX_LENGTH - 29;
+
+    /**
+     * Formatters created so far, by locale. Guarded by itself.
+     */
+    private static final HashMap<Locale, PriceFormatter> sFormatters = new HashMap<>();
+
+    /**
+     * Formatter returned last, checked first since the locale rarely changes
+     */
+    private static volatile PriceFormatter sLastFormatter;
+
+    private final Locale mLocale;
+    private final char[] mPrefix;
+    private final char[] mSuffix;
+    private final char mDecimalSeparator;
+    private final char mGroupingSeparator;
+
+    /* Number of digits between grouping separators, 0 if the locale doesn't group them */
+    private final int mGroupingSize;
+
+    /**
+     * Returns the formatter for the default locale.
+     */
+    public static PriceFormatter getInstance() {
+        return getInstance(Locale.getDefault());
+    }
+
+    /**
+     * Returns the formatter for the given locale.
+     */
+    public static PriceFormatter getInstance(Locale locale) {
+        PriceFormatter formatter = sLastFormatter;
+        if (formatter != null && formatter.mLocale.equals(locale)) {
+            return formatter;
+        }
+        synchronized (sFormatters) {
+            formatter = sFormatters.get(locale);
+            if (formatter == null) {
+                formatter = new PriceFormatter(locale);
+                sFormatters.put(locale, formatter);
+            }
+        }
+        sLastFormatter = formatter;
+        return formatter;
+    }
+
+    private PriceFormatter(Locale locale) {
+        mLocale = locale;
+
+        NumberFormat format = NumberFormat.getCurrencyInstance(locale);
+        format.setCurrency(CURRENCY);
+        String prefix;
+        String suffix;
+        if (format instanceof DecimalFormat) {
+            DecimalFormat decimalFormat = (DecimalFormat) format;
+            DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+            prefix = decimalFormat.getPositivePrefix();
+            suffix = decimalFormat.getPositiveSuffix();
+            mDecimalSeparator = symbols.getMonetaryDecimalSeparator();
+            mGroupingSeparator = symbols.getGroupingSeparator();
+            mGroupingSize = decimalFormat.isGroupingUsed() ? decimalFormat.getGroupingSize() : 0;
+        } else {
+            // Not expected on Android, fall back to the US conventions
+            prefix = CURRENCY.getSymbol(locale);
+            suffix = "";
+            mDecimalSeparator = '.';
+            mGroupingSeparator = ',';
+            mGroupingSize = 3;
+        }
+
+        if (prefix.length() + suffix.length() > MAX_AFFIX_LENGTH) {
+            prefix = CURRENCY.getCurrencyCode() + " ";
+            suffix = "";
+        }
+        mPrefix = prefix.toCharArray();
+        mSuffix = suffix.toCharArray();
+    }
+
+    /**
+     * Writes a price into the buffer, which must hold at least {@link #MAX_LENGTH} chars.
+     *
+     * @param cents  The price in cents.
+     * @param buffer The buffer to write to, from index 0.
+     * @return the number of chars written
+     */
+    public int format(long cents, char[] buffer) {
+        int position = 0;
+        if (cents < 0) {
+            buffer[position++] = '-';
+        }
+        System.arraycopy(mPrefix, 0, buffer, position, mPrefix.length);
+        position += mPrefix.length;
+
+        // Work on the negative value, since Long.MIN_VALUE has no positive counterpart
+        long negative = cents < 0 ? cents : -cents;
+        long units = -(negative / 100);
+        int fraction = (int) -(negative % 100);
+
+        // The whole units are written from their last digit backwards
+        int digits = 1;
+        for (long rest = units / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = position + digits + (mGroupingSize > 0 ? (digits - 1) / mGroupingSize : 0);
+        int index = end;
+        int written = 0;
+        do {
+            if (mGroupingSize > 0 && written > 0 && written % mGroupingSize == 0) {
+                buffer[--index] = mGroupingSeparator;
+            }
+            buffer[--index] = (char) ('0' + units % 10);
+            units /= 10;
+            written++;
+        } while (units > 0);
+        position = end;
+
+        buffer[position++] = mDecimalSeparator;
+        buffer[position++] = (char) ('0' + fraction / 10);
+        buffer[position++] = (char) ('0' + fraction % 10);
+
+        System.arraycopy(mSuffix, 0, buffer, position, mSuffix.length);
+        return position + mSuffix.length;
+    }
+
+    /**
+     * Returns a price as a String. Use {@link #format(long, char[])} where prices are formatted
+     * often.
+     */
+    public String format(long cents) {
+        char[] buffer = new char[MAX_LENGTH];
+        return new String(buffer, 0, format(cents, buffer));
+    }
+
+    /**
+     * Parses a price typed in or imported as a decimal amount, such as "12.5".
+     *
+     * @return the price in cents
+     * @throws NumberFormatException if the text is not an amount or has fractions of a cent
+     */
+    public static long parseCents(String text) {
+        try {
+            return new BigDecimal(text.trim()).movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Invalid price " + text);
+        }
+    }
+
+    /**
+     * Returns a price as a plain decimal amount, such as "12.50", to be edited and parsed back
+     * with {@link #parseCents}.
+     */
+    public static String toPlainString(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
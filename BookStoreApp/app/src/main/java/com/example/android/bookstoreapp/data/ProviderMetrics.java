@@ -0,0 +1,386 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the calls {@link BookProvider} serves, per operation and per URI pattern: how
+ * many, how many failed, how many rows they returned or changed, and how long they took.
+ * <p>
+ * Recording an insert, update or delete only updates atomic counters in arrays allocated up
+ * front, so it doesn't allocate and never blocks other calls. Calls slower than
+ * {@link #SLOW_CALL_MS} are also kept in a small ring, together with their URI, selection and
+ * sort order. The objects are the ones the caller passed in, so that doesn't allocate either.
+ * Reading the metrics builds a {@link Bundle} from the counters.
+ * <p>
+ * Queries are recorded when their cursor is closed, see {@link #recordOnClose}, which takes a
+ * wrapper around every cursor. Until the metrics are read for the first time, queries are
+ * neither wrapped nor counted, so the provider hands out its cursors as they are.
+ */
+class ProviderMetrics {
+
+    static final int OPERATION_QUERY = 0;
+    static final int OPERATION_INSERT = 1;
+    static final int OPERATION_BULK_INSERT = 2;
+    static final int OPERATION_UPDATE = 3;
+    static final int OPERATION_DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {"query", "insert", "bulk_insert", "update", "delete"};
+
+    /**
+     * Number of latency buckets. Bucket i counts the calls that took less than 2^i
+     * microseconds and at least 2^(i - 1), the last bucket counts all longer calls.
+     */
+    static final int BUCKETS = 24;
+
+    /**
+     * Calls that take at least this long are kept with their arguments
+     */
+    static final long SLOW_CALL_MS = 50;
+
+    /**
+     * Number of slow calls kept, the oldest is dropped first
+     */
+    private static final int SLOW_CALL_CAPACITY = 32;
+
+    /* URI matcher codes with their own counters, and their names in the metrics */
+    private final int[] mMatchCodes;
+    private final String[] mMatchNames;
+
+    /* Counters per slot, one slot for every operation and matcher code. See slot(). */
+    private final AtomicLongArray mCounts;
+    private final AtomicLongArray mErrors;
+    private final AtomicLongArray mRows;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mMaxNanos;
+    /* BUCKETS counters per slot */
+    private final AtomicLongArray mHistograms;
+
+    // Ring of slow calls, guarded by itself
+    private final long[] mSlowNanos = new long[SLOW_CALL_CAPACITY];
+    private final long[] mSlowTimes = new long[SLOW_CALL_CAPACITY];
+    private final int[] mSlowOperations = new int[SLOW_CALL_CAPACITY];
+    private final Uri[] mSlowUris = new Uri[SLOW_CALL_CAPACITY];
+    private final String[] mSlowSelections = new String[SLOW_CALL_CAPACITY];
+    private final String[] mSlowSortOrders = new String[SLOW_CALL_CAPACITY];
+    private int mSlowNext;
+    private int mSlowCount;
+
+    /* Whether the metrics were read, which turns on the recording of queries */
+    private volatile boolean mRead;
+
+    /**
+     * @param matchCodes URI matcher codes to keep apart. Calls with any other code are counted
+     *                   together, as "unknown".
+     * @param matchNames Name of each code in the metrics, such as its URI pattern.
+     */
+    ProviderMetrics(int[] matchCodes, String[] matchNames) {
+        mMatchCodes = matchCodes;
+        mMatchNames = matchNames;
+        int slots = OPERATION_NAMES.length * (matchCodes.length + 1);
+        mCounts = new AtomicLongArray(slots);
+        mErrors = new AtomicLongArray(slots);
+        mRows = new AtomicLongArray(slots);
+        mTotalNanos = new AtomicLongArray(slots);
+        mMaxNanos = new AtomicLongArray(slots);
+        mHistograms = new AtomicLongArray(slots * BUCKETS);
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param operation One of the OPERATION constants.
+     * @param match     URI matcher code of the call.
+     * @param nanos     Time the call took.
+     * @param rows      Rows returned or changed, ignored if the call failed.
+     * @param failed    Whether the call threw.
+     */
+    void record(int operation, int match, long nanos, int rows, boolean failed,
+                Uri uri, String selection, String sortOrder) {
+        if (operation == OPERATION_QUERY && !mRead) {
+            return;
+        }
+        int slot = slot(operation, match);
+        mCounts.incrementAndGet(slot);
+        if (failed) {
+            mErrors.incrementAndGet(slot);
+        } else {
+            mRows.addAndGet(slot, rows);
+        }
+        mTotalNanos.addAndGet(slot, nanos);
+        long max;
+        do {
+            max = mMaxNanos.get(slot);
+        } while (nanos > max && !mMaxNanos.compareAndSet(slot, max, nanos));
+        mHistograms.incrementAndGet(slot * BUCKETS + bucket(nanos));
+
+        if (nanos >= SLOW_CALL_MS * 1000000) {
+            recordSlowCall(operation, nanos, uri, selection, sortOrder);
+        }
+    }
+
+    /**
+     * Returns a cursor that records the query it came from when it is closed. SQLite runs a
+     * query as its cursor is first read, so the time recorded is the time the query call
+     * took plus the time of that first read, and the rows are the rows it loaded. A cursor
+     * closed without being read adds no rows and loads none to count them.
+     * <p>
+     * Until the metrics are read for the first time, the cursor is returned as it is.
+     *
+     * @param match URI matcher code of the query.
+     * @param start {@link System#nanoTime()} when the query call began.
+     */
+    Cursor recordOnClose(Cursor cursor, int match, long start, Uri uri, String selection, String sortOrder) {
+        if (!mRead) {
+            return cursor;
+        }
+        return new QueryCursor(cursor, match, System.nanoTime() - start, uri, selection, sortOrder);
+    }
+
+    private void recordSlowCall(int operation, long nanos, Uri uri, String selection, String sortOrder) {
+        synchronized (mSlowNanos) {
+            int index = mSlowNext;
+            mSlowNanos[index] = nanos;
+            mSlowTimes[index] = System.currentTimeMillis();
+            mSlowOperations[index] = operation;
+            mSlowUris[index] = uri;
+            mSlowSelections[index] = selection;
+            mSlowSortOrders[index] = sortOrder;
+            mSlowNext = (index + 1) % SLOW_CALL_CAPACITY;
+            mSlowCount = Math.min(mSlowCount + 1, SLOW_CALL_CAPACITY);
+        }
+    }
+
+    /**
+     * Returns the counter slot of an operation on a matcher code.
+     */
+    private int slot(int operation, int match) {
+        int index = mMatchCodes.length;
+        for (int i = 0; i < mMatchCodes.length; i++) {
+            if (mMatchCodes[i] == match) {
+                index = i;
+                break;
+            }
+        }
+        return operation * (mMatchCodes.length + 1) + index;
+    }
+
+    /**
+     * Returns the latency bucket of a call.
+     */
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Builds a bundle with the metrics of every operation and URI pattern that was called at
+     * least once, as described by {@link BookContract#METHOD_METRICS}.
+     *
+     * @param includeSlowCalls Whether to add the slow calls.
+     */
+    Bundle toBundle(boolean includeSlowCalls) {
+        mRead = true;
+        int matches = mMatchCodes.length + 1;
+        ArrayList<Bundle> metrics = new ArrayList<>();
+        for (int slot = 0; slot < mCounts.length(); slot++) {
+            long count = mCounts.get(slot);
+            if (count == 0) {
+                continue;
+            }
+            int match = slot % matches;
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = mHistograms.get(slot * BUCKETS + i);
+            }
+
+            Bundle metric = new Bundle();
+            metric.putString(BookContract.EXTRA_OPERATION, OPERATION_NAMES[slot / matches]);
+            metric.putString(BookContract.EXTRA_URI, match < mMatchNames.length ? mMatchNames[match] : "unknown");
+            metric.putLong(BookContract.EXTRA_COUNT, count);
+            metric.putLong(BookContract.EXTRA_ERRORS, mErrors.get(slot));
+            metric.putLong(BookContract.EXTRA_ROWS, mRows.get(slot));
+            metric.putLong(BookContract.EXTRA_TOTAL_US, mTotalNanos.get(slot) / 1000);
+            metric.putLong(BookContract.EXTRA_MAX_US, mMaxNanos.get(slot) / 1000);
+            metric.putLongArray(BookContract.EXTRA_HISTOGRAM, histogram);
+            metrics.add(metric);
+        }
+
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << i;
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+
+        Bundle result = new Bundle();
+        result.putParcelableArrayList(BookContract.EXTRA_METRICS, metrics);
+        result.putLongArray(BookContract.EXTRA_HISTOGRAM_BOUNDS_US, bounds);
+        if (includeSlowCalls) {
+            result.putParcelableArrayList(BookContract.EXTRA_SLOW_CALLS, slowCalls());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the slow calls kept, the most recent first.
+     */
+    private ArrayList<Bundle> slowCalls() {
+        synchronized (mSlowNanos) {
+            ArrayList<Bundle> calls = new ArrayList<>(mSlowCount);
+            for (int i = 1; i <= mSlowCount; i++) {
+                int index = (mSlowNext - i + SLOW_CALL_CAPACITY) % SLOW_CALL_CAPACITY;
+                Bundle call = new Bundle();
+                call.putString(BookContract.EXTRA_OPERATION, OPERATION_NAMES[mSlowOperations[index]]);
+                call.putString(BookContract.EXTRA_URI, String.valueOf(mSlowUris[index]));
+                call.putString(BookContract.EXTRA_SELECTION, mSlowSelections[index]);
+                call.putString(BookContract.EXTRA_SORT_ORDER, mSlowSortOrders[index]);
+                call.putLong(BookContract.EXTRA_DURATION_US, mSlowNanos[index] / 1000);
+                call.putLong(BookContract.EXTRA_TIME, mSlowTimes[index]);
+                calls.add(call);
+            }
+            return calls;
+        }
+    }
+
+    /**
+     * Cursor of a query that times its first read and records the query when closed, see
+     * {@link #recordOnClose}. Like any cursor, it is used by one thread at a time.
+     */
+    private class QueryCursor extends CrossProcessCursorWrapper {
+
+        private final int mMatch;
+        private final long mQueryNanos;
+        private final Uri mUri;
+        private final String mSelection;
+        private final String mSortOrder;
+
+        /* Whether the rows were loaded, whether that failed, and how long it took */
+        private boolean mLoaded;
+        private boolean mLoadFailed;
+        private long mLoadNanos;
+
+        QueryCursor(Cursor cursor, int match, long queryNanos, Uri uri, String selection, String sortOrder) {
+            super(cursor);
+            mMatch = match;
+            mQueryNanos = queryNanos;
+            mUri = uri;
+            mSelection = selection;
+            mSortOrder = sortOrder;
+        }
+
+        /**
+         * Loads the rows, timing it, before the first read. Counting the rows is what
+         * SQLiteCursor does first on any read anyway.
+         */
+        private void load() {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+            long start = System.nanoTime();
+            mLoadFailed = true;
+            try {
+                getWrappedCursor().getCount();
+                mLoadFailed = false;
+            } finally {
+                mLoadNanos = System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int getCount() {
+            load();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean move(int offset) {
+            load();
+            return super.move(offset);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            load();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            load();
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            load();
+            return super.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            load();
+            return super.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            load();
+            return super.moveToPrevious();
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            load();
+            super.fillWindow(position, window);
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            load();
+            return super.getWindow();
+        }
+
+        @Override
+        public void close() {
+            if (!isClosed()) {
+                int rows = mLoaded && !mLoadFailed ? getWrappedCursor().getCount() : 0;
+                record(OPERATION_QUERY, mMatch, mQueryNanos + mLoadNanos, rows, mLoadFailed,
+                        mUri, mSelection, mSortOrder);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Sets every counter back to 0 and forgets the slow calls.
+     */
+    void reset() {
+        for (int slot = 0; slot < mCounts.length(); slot++) {
+            mCounts.set(slot, 0);
+            mErrors.set(slot, 0);
+            mRows.set(slot, 0);
+            mTotalNanos.set(slot, 0);
+            mMaxNanos.set(slot, 0);
+        }
+        for (int i = 0; i < mHistograms.length(); i++) {
+            mHistograms.set(i, 0);
+        }
+        synchronized (mSlowNanos) {
+            for (int i = 0; i < SLOW_CALL_CAPACITY; i++) {
+                // Don't hold on to the arguments of old calls
+                mSlowUris[i] = null;
+                mSlowSelections[i] = null;
+                mSlowSortOrders[i] = null;
+            }
+            mSlowNext = 0;
+            mSlowCount = 0;
+        }
+    }
+}
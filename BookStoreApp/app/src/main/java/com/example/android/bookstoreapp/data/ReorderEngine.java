@@ -0,0 +1,434 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps track of the books whose stock fell to their reorder level and suggests what to
+ * order from each supplier.
+ * <p>
+ * The engine follows the per-book change notifications of {@link BookProvider}. Books that
+ * change are collected for {@link #BATCH_DELAY_MS} and then read back together, only by _ID,
+ * so a burst of sales costs one query per batch no matter how many sales it holds. The whole
+ * table is only looked at when the provider announces a change it can't break down into
+ * books, and then only the low-stock books are read, through the partial index that covers
+ * them.
+ * <p>
+ * All queries run on a background thread. Suggestions are handed to the listener on the main
+ * thread.
+ */
+public class ReorderEngine {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ReorderEngine.class.getSimpleName();
+
+    /**
+     * Time changes are collected before the changed books are read back
+     */
+    public static final long BATCH_DELAY_MS = 200;
+
+    /**
+     * Largest number of _IDs bound in one query, below the 999 variables SQLite accepts
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Columns read for every book the engine looks at
+     */
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER_ID
+    };
+
+    /**
+     * Columns whose updates can change a suggestion. Writes name the supplier, not its _ID.
+     */
+    private static final List<String> WATCHED_COLUMNS = Arrays.asList(
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookEntry.COLUMN_BOOK_SUPPLIER_ID);
+
+    /**
+     * A book that should be reordered.
+     */
+    public static class Suggestion {
+
+        public final long bookId;
+        public final String name;
+
+        /**
+         * _ID of the supplier, 0 if the book has none
+         */
+        public final long supplierId;
+
+        public final int quantity;
+        public final int reorderLevel;
+
+        /**
+         * Copies to order to get back to twice the reorder level, and at least one
+         */
+        public final int orderQuantity;
+
+        Suggestion(long bookId, String name, long supplierId, int quantity, int reorderLevel) {
+            this.bookId = bookId;
+            this.name = name;
+            this.supplierId = supplierId;
+            this.quantity = quantity;
+            this.reorderLevel = reorderLevel;
+            this.orderQuantity = Math.max(1, 2 * reorderLevel - quantity);
+        }
+    }
+
+    /**
+     * Receives the suggestions on the main thread whenever they change.
+     */
+    public interface Listener {
+
+        /**
+         * @param suggestions Books to reorder, grouped by supplier _ID (0 for books without a
+         *                    supplier).
+         * @param newlyLow    Number of books that reached their reorder level since the last
+         *                    call.
+         */
+        void onSuggestionsChanged(LongSparseArray<List<Suggestion>> suggestions, int newlyLow);
+    }
+
+    private static ReorderEngine sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener of the suggestions, only used on the main thread
+     */
+    private Listener mListener;
+
+    /**
+     * Last suggestions handed out, only used on the main thread
+     */
+    private LongSparseArray<List<Suggestion>> mLastSuggestions;
+
+    // The fields below are only used on the engine thread
+
+    /* Books below their reorder level, by _ID */
+    private final LongSparseArray<Suggestion> mLowStock = new LongSparseArray<>();
+    /* Books changed since the last batch, as a set of _IDs */
+    private final LongSparseArray<Boolean> mChangedBooks = new LongSparseArray<>();
+    /* Whether the next batch reads all low-stock books again */
+    private boolean mRescan = true;
+    /* Whether a batch is already scheduled */
+    private boolean mBatchScheduled;
+
+    private final Runnable mRunBatch = new Runnable() {
+        @Override
+        public void run() {
+            runBatch();
+        }
+    };
+
+    /**
+     * Returns the engine of the app, creating and starting it if needed.
+     */
+    public static synchronized ReorderEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReorderEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ReorderEngine(Context context) {
+        mContentResolver = context.getContentResolver();
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Notifications are delivered on the engine thread, next to the batches
+        mContentResolver.registerContentObserver(BookEntry.CONTENT_URI, true, new BookObserver(mHandler));
+        scheduleBatch();
+    }
+
+    /**
+     * Sets the listener of the suggestions and hands it the current ones, if any. Must be
+     * called on the main thread.
+     *
+     * @param listener The listener, or null to stop listening.
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+        if (listener != null && mLastSuggestions != null) {
+            listener.onSuggestionsChanged(mLastSuggestions, 0);
+        }
+    }
+
+    /**
+     * Schedules a batch, unless one is already waiting.
+     */
+    private void scheduleBatch() {
+        if (!mBatchScheduled) {
+            mBatchScheduled = true;
+            mHandler.postDelayed(mRunBatch, BATCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Reads back the books changed since the last batch and publishes the suggestions if
+     * they changed.
+     */
+    private void runBatch() {
+        mBatchScheduled = false;
+        int newlyLow;
+        try {
+            if (mRescan) {
+                mRescan = false;
+                mChangedBooks.clear();
+                newlyLow = rescan();
+            } else {
+                newlyLow = readChangedBooks();
+            }
+        } catch (RuntimeException e) {
+            // Try again with everything on the next change
+            Log.e(LOG_TAG, "Failed to read the stock levels", e);
+            mRescan = true;
+            return;
+        }
+
+        if (newlyLow >= 0) {
+            publish(newlyLow);
+        }
+    }
+
+    /**
+     * Replaces the low-stock books with the ones in the database.
+     *
+     * @return the number of books that are new in the list, or -1 if the provider isn't
+     * available
+     */
+    private int rescan() {
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, PROJECTION,
+                BookEntry.LOW_STOCK_SELECTION, null, null);
+        if (cursor == null) {
+            // The provider is gone, try again on the next change
+            mRescan = true;
+            return -1;
+        }
+        LongSparseArray<Suggestion> lowStock = new LongSparseArray<>();
+        try {
+            while (cursor.moveToNext()) {
+                Suggestion suggestion = readSuggestion(cursor);
+                lowStock.put(suggestion.bookId, suggestion);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int newlyLow = 0;
+        for (int i = 0; i < lowStock.size(); i++) {
+            if (mLowStock.get(lowStock.keyAt(i)) == null) {
+                newlyLow++;
+            }
+        }
+        mLowStock.clear();
+        for (int i = 0; i < lowStock.size(); i++) {
+            mLowStock.put(lowStock.keyAt(i), lowStock.valueAt(i));
+        }
+        return newlyLow;
+    }
+
+    /**
+     * Reads the books changed since the last batch and moves them in or out of the low-stock
+     * books.
+     *
+     * @return the number of books that reached their reorder level, or -1 if nothing changed
+     */
+    private int readChangedBooks() {
+        if (mChangedBooks.size() == 0) {
+            return -1;
+        }
+        long[] ids = new long[mChangedBooks.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mChangedBooks.keyAt(i);
+        }
+        mChangedBooks.clear();
+
+        boolean changed = false;
+        int newlyLow = 0;
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(ids.length, start + MAX_IDS_PER_QUERY);
+            LongSparseArray<Suggestion> found = queryBooks(ids, start, end);
+            if (found == null) {
+                // The provider is gone, look at everything once it is back
+                mRescan = true;
+                return -1;
+            }
+            for (int i = start; i < end; i++) {
+                long id = ids[i];
+                Suggestion suggestion = found.get(id);
+                Suggestion previous = mLowStock.get(id);
+                if (suggestion != null) {
+                    if (previous == null) {
+                        newlyLow++;
+                    }
+                    mLowStock.put(id, suggestion);
+                    changed = true;
+                } else if (previous != null) {
+                    // Restocked, raised its level or deleted
+                    mLowStock.remove(id);
+                    changed = true;
+                }
+            }
+        }
+        return changed ? newlyLow : -1;
+    }
+
+    /**
+     * Reads the books with the _IDs from start to end that are at or below their reorder
+     * level, or returns null if the provider isn't available.
+     */
+    @Nullable
+    private LongSparseArray<Suggestion> queryBooks(long[] ids, int start, int end) {
+        StringBuilder selection = new StringBuilder(BookEntry.LOW_STOCK_SELECTION)
+                .append(" AND ").append(BookEntry._ID).append(" IN (");
+        String[] selectionArgs = new String[end - start];
+        for (int i = start; i < end; i++) {
+            selection.append(i == start ? "?" : ",?");
+            selectionArgs[i - start] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        LongSparseArray<Suggestion> found = new LongSparseArray<>();
+        try {
+            while (cursor.moveToNext()) {
+                Suggestion suggestion = readSuggestion(cursor);
+                found.put(suggestion.bookId, suggestion);
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+
+    /**
+     * Reads the current row of a cursor over {@link #PROJECTION}.
+     */
+    private static Suggestion readSuggestion(Cursor cursor) {
+        return new Suggestion(cursor.getLong(0), cursor.getString(1),
+                cursor.isNull(4) ? 0 : cursor.getLong(4), cursor.getInt(2), cursor.getInt(3));
+    }
+
+    /**
+     * Groups the low-stock books by supplier and hands them to the listener.
+     */
+    private void publish(final int newlyLow) {
+        final LongSparseArray<List<Suggestion>> suggestions = new LongSparseArray<>();
+        for (int i = 0; i < mLowStock.size(); i++) {
+            Suggestion suggestion = mLowStock.valueAt(i);
+            List<Suggestion> supplierSuggestions = suggestions.get(suggestion.supplierId);
+            if (supplierSuggestions == null) {
+                supplierSuggestions = new ArrayList<>();
+                suggestions.put(suggestion.supplierId, supplierSuggestions);
+            }
+            supplierSuggestions.add(suggestion);
+        }
+        for (int i = 0; i < suggestions.size(); i++) {
+            suggestions.setValueAt(i, Collections.unmodifiableList(suggestions.valueAt(i)));
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mLastSuggestions = suggestions;
+                if (mListener != null) {
+                    mListener.onSuggestionsChanged(suggestions, newlyLow);
+                }
+            }
+        });
+    }
+
+    /**
+     * Collects the books announced by the provider for the next batch.
+     */
+    private class BookObserver extends ContentObserver {
+
+        BookObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        /**
+         * Called before Jelly Bean, where the changed URI isn't known.
+         */
+        @Override
+        public void onChange(boolean selfChange) {
+            mRescan = true;
+            scheduleBatch();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            String operation = uri == null ? null
+                    : uri.getQueryParameter(BookContract.QUERY_PARAMETER_OPERATION);
+            if (operation == null) {
+                onChange(selfChange);
+                return;
+            }
+
+            // Updates of columns the engine doesn't read can't change a suggestion
+            if (BookContract.OPERATION_UPDATE.equals(operation) && !watchesAnyColumn(
+                    uri.getQueryParameter(BookContract.QUERY_PARAMETER_COLUMNS))) {
+                return;
+            }
+            mChangedBooks.put(ContentUris.parseId(uri), Boolean.TRUE);
+            scheduleBatch();
+        }
+
+        /**
+         * Returns whether any of the comma separated columns is read by the engine.
+         */
+        private boolean watchesAnyColumn(@Nullable String columns) {
+            if (columns == null) {
+                return true;
+            }
+            for (String column : columns.split(",")) {
+                if (WATCHED_COLUMNS.contains(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
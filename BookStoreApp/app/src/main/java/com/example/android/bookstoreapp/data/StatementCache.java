@@ -0,0 +1,49 @@
+package com.example.android.bookstoreapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compiled statements of the fixed-shape operations of {@link BookProvider}, compiled the
+ * first time they are used and kept for the life of the provider. Calls then skip building
+ * the SQL, the selection arguments and the statement object, and bind their values directly.
+ * <p>
+ * A statement holds the values bound to it, so two threads must never use it at the same
+ * time. The statements are only handed out inside a transaction of the writable database,
+ * which one thread holds at a time, so the transaction serializes their use. A lock of their
+ * own isn't needed, and could deadlock with a thread that holds the lock and waits for the
+ * transaction.
+ */
+class StatementCache {
+
+    private final String[] mSql;
+    private final SQLiteStatement[] mStatements;
+
+    /**
+     * @param sql The statements, in the order of the indexes they are asked for by.
+     */
+    StatementCache(String... sql) {
+        mSql = sql;
+        mStatements = new SQLiteStatement[sql.length];
+    }
+
+    /**
+     * Returns the statement with the given index, compiling it if needed. Its values are
+     * whatever the last caller bound, so all of them have to be bound again.
+     *
+     * @throws IllegalStateException if the current thread isn't in a transaction.
+     */
+    SQLiteStatement get(SQLiteDatabase db, int index) {
+        if (!db.inTransaction()) {
+            throw new IllegalStateException("Cached statements are only used inside a transaction");
+        }
+        // Transactions are handed from thread to thread under the lock of the connection
+        // pool, so the statements stored here are seen by the next thread
+        SQLiteStatement statement = mStatements[index];
+        if (statement == null) {
+            statement = db.compileStatement(mSql[index]);
+            mStatements[index] = statement;
+        }
+        return statement;
+    }
+}
@@ -0,0 +1,480 @@
+package com.example.android.bookstoreapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for sales from the point of sale.
+ * <p>
+ * A sale is added to a per-book running total right away, so the list can show the new
+ * quantity without waiting for the database. Totals are written together with
+ * {@link BookContract#METHOD_ADJUST_STOCK}, in one transaction with one change notification,
+ * at most {@link #FLUSH_DELAY_MS} after the first queued sale or as soon as
+ * {@link #FLUSH_EVENTS} sales are queued.
+ * <p>
+ * Every sale is also appended to a journal file, and synced to disk, before it is written.
+ * If the process dies, the journal is replayed the next time the queue is created. Each sale
+ * carries a sequence number following the last batch the provider applied, and the provider
+ * refuses batches that don't come after it, so a sale is never counted twice. Until the queue
+ * has read that number from the provider, sales can't be numbered: they are held in memory,
+ * and journaled and written once it is known.
+ * <p>
+ * The provider refuses to sell copies that are not in stock. The books whose sales were
+ * refused are handed to the {@link Listener}.
+ * <p>
+ * All journal and database work runs on one background thread.
+ */
+public class StockWriteQueue {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockWriteQueue.class.getSimpleName();
+
+    /**
+     * Longest time a sale waits in the queue
+     */
+    public static final long FLUSH_DELAY_MS = 250;
+
+    /**
+     * Number of queued sales that triggers a write right away
+     */
+    public static final int FLUSH_EVENTS = 20;
+
+    /**
+     * Time to wait before retrying a write that failed
+     */
+    private static final long RETRY_DELAY_MS = 2000;
+
+    /**
+     * Longest time to wait before asking the provider again for the last applied sequence
+     * number
+     */
+    private static final long MAX_RECOVER_DELAY_MS = 60 * 1000;
+
+    private static final String JOURNAL_NAME = "stock_journal";
+
+    /**
+     * Receives on the main thread the sales that couldn't be written.
+     */
+    public interface Listener {
+
+        /**
+         * @param ids _IDs of the books that had fewer copies in stock than were sold, or that
+         *            no longer exist.
+         */
+        void onSalesRejected(long[] ids);
+    }
+
+    private static StockWriteQueue sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener of the rejected sales, only used on the main thread
+     */
+    private Listener mListener;
+
+    /**
+     * Quantity changes not yet written to the database, as seen by the UI. Guarded by itself.
+     */
+    private final LongSparseArray<Integer> mPending = new LongSparseArray<>();
+
+    // The fields below are only used on the background thread
+
+    /* Quantity changes in the journal that are not yet written */
+    private final LongSparseArray<Integer> mQueued = new LongSparseArray<>();
+    /* Whether the last applied sequence number has been read, so sales can be numbered */
+    private boolean mRecovered;
+    /* Time to wait before the next attempt to read it */
+    private long mRecoverDelayMs = RETRY_DELAY_MS;
+    /* Quantity changes made before that, not yet journaled */
+    private final LongSparseArray<Integer> mHeld = new LongSparseArray<>();
+    /* Number of sales in mHeld */
+    private int mHeldEvents;
+    /* Sequence number of the last journaled sale */
+    private long mSequence;
+    /* Number of sales journaled since the last write */
+    private int mQueuedEvents;
+    /* Whether a write is already scheduled */
+    private boolean mFlushScheduled;
+    /* Sequence number of a write that failed, which the provider may still have applied, or
+       0 if there is none. Its totals and number of sales are kept to take them out of the
+       queued ones if it was. */
+    private long mUncertainSequence;
+    private long[] mUncertainIds;
+    private int[] mUncertainDeltas;
+    private int mUncertainEvents;
+    private File mJournalFile;
+    private FileOutputStream mJournalOut;
+    private DataOutputStream mJournal;
+
+    /**
+     * Returns the queue of the app, creating it and replaying its journal if needed.
+     */
+    public static synchronized StockWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Runnable mRecover = new Runnable() {
+        @Override
+        public void run() {
+            recover();
+        }
+    };
+
+    private StockWriteQueue(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mExecutor.execute(mRecover);
+    }
+
+    /**
+     * Sets the listener of the rejected sales. Must be called on the main thread.
+     *
+     * @param listener The listener, or null to stop listening.
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues the sale of one copy of a book.
+     */
+    public void sell(final long id) {
+        addPending(id, -1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                record(id, -1);
+            }
+        });
+    }
+
+    /**
+     * Returns the quantity change of a book that is queued but not yet in the database.
+     */
+    public int getPendingDelta(long id) {
+        synchronized (mPending) {
+            return mPending.get(id, 0);
+        }
+    }
+
+    private void addPending(long id, int delta) {
+        synchronized (mPending) {
+            int total = mPending.get(id, 0) + delta;
+            if (total == 0) {
+                mPending.delete(id);
+            } else {
+                mPending.put(id, total);
+            }
+        }
+    }
+
+    /**
+     * Journals a sale and adds it to the queued totals, or holds it until the last applied
+     * sequence number is known.
+     */
+    private void record(long id, int delta) {
+        if (!mRecovered) {
+            mHeld.put(id, mHeld.get(id, 0) + delta);
+            mHeldEvents++;
+            return;
+        }
+
+        journal(id, delta);
+        mQueued.put(id, mQueued.get(id, 0) + delta);
+        mQueuedEvents++;
+        if (mQueuedEvents >= FLUSH_EVENTS) {
+            flush();
+        } else {
+            scheduleFlush(FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Appends a quantity change to the journal under the next sequence number.
+     */
+    private void journal(long id, int delta) {
+        mSequence++;
+        try {
+            if (mJournal == null) {
+                mJournalOut = new FileOutputStream(mJournalFile, true);
+                mJournal = new DataOutputStream(mJournalOut);
+            }
+            mJournal.writeLong(mSequence);
+            mJournal.writeLong(id);
+            mJournal.writeInt(delta);
+            mJournal.flush();
+            // The sale is only safe once it is on disk, not in the page cache
+            mJournalOut.getFD().sync();
+        } catch (IOException e) {
+            // The sale is still written, it just won't survive the process dying first
+            Log.e(LOG_TAG, "Failed to journal sale of book " + id, e);
+        }
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mFlushScheduled = false;
+                flush();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all queued totals to the database in one batch, then empties the journal.
+     */
+    private void flush() {
+        if (mUncertainSequence != 0 && !settleUncertainWrite()) {
+            scheduleFlush(RETRY_DELAY_MS);
+            return;
+        }
+
+        int size = mQueued.size();
+        if (size == 0) {
+            return;
+        }
+
+        long[] ids = new long[size];
+        int[] deltas = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = mQueued.keyAt(i);
+            deltas[i] = mQueued.valueAt(i);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookContract.EXTRA_IDS, ids);
+        extras.putIntArray(BookContract.EXTRA_DELTAS, deltas);
+        extras.putLong(BookContract.EXTRA_SEQUENCE, mSequence);
+
+        Bundle result;
+        try {
+            result = mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_ADJUST_STOCK, null, extras);
+            if (result == null) {
+                throw new IllegalStateException("No result from " + BookContract.METHOD_ADJUST_STOCK);
+            }
+        } catch (RuntimeException e) {
+            // The totals stay pending, so the list keeps showing the sales. The write may
+            // have been committed before the call failed, which the next attempt checks.
+            Log.e(LOG_TAG, "Failed to write " + mQueuedEvents + " sales, retrying", e);
+            mUncertainSequence = mSequence;
+            mUncertainIds = ids;
+            mUncertainDeltas = deltas;
+            mUncertainEvents = mQueuedEvents;
+            scheduleFlush(RETRY_DELAY_MS);
+            return;
+        }
+
+        // The totals are only taken out of the pending ones once they are committed. The
+        // change notification of the provider reaches the list after a round trip through
+        // the content resolver, by which time they are gone.
+        for (int i = 0; i < size; i++) {
+            addPending(ids[i], -deltas[i]);
+        }
+        mQueued.clear();
+        mQueuedEvents = 0;
+        truncateJournal();
+
+        long[] rejected = result.getLongArray(BookContract.EXTRA_REJECTED_IDS);
+        if (rejected != null && rejected.length > 0) {
+            Log.w(LOG_TAG, "Sales of " + rejected.length + " books rejected, not enough copies in stock");
+            notifyRejected(rejected);
+        }
+    }
+
+    /**
+     * Finds out whether the provider applied the write that failed last, and if it did, takes
+     * its totals out of the queued and pending ones. Sales queued since then are left.
+     *
+     * @return false if the provider couldn't be asked.
+     */
+    private boolean settleUncertainWrite() {
+        long appliedSequence;
+        try {
+            appliedSequence = readAppliedSequence();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read the applied stock sequence", e);
+            return false;
+        }
+
+        if (appliedSequence >= mUncertainSequence) {
+            // Which sales it rejected is lost with the result
+            Log.w(LOG_TAG, "Write of " + mUncertainEvents + " sales was applied before it failed");
+            for (int i = 0; i < mUncertainIds.length; i++) {
+                long id = mUncertainIds[i];
+                int total = mQueued.get(id, 0) - mUncertainDeltas[i];
+                if (total == 0) {
+                    mQueued.delete(id);
+                } else {
+                    mQueued.put(id, total);
+                }
+                addPending(id, -mUncertainDeltas[i]);
+            }
+            mQueuedEvents -= mUncertainEvents;
+            if (mQueued.size() == 0) {
+                mQueuedEvents = 0;
+                truncateJournal();
+            }
+        }
+        mUncertainSequence = 0;
+        mUncertainIds = null;
+        mUncertainDeltas = null;
+        mUncertainEvents = 0;
+        return true;
+    }
+
+    /**
+     * Returns the sequence number of the last batch the provider applied.
+     *
+     * @throws RuntimeException if the provider can't be reached.
+     */
+    private long readAppliedSequence() {
+        Bundle result = mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_ADJUST_STOCK, null, null);
+        if (result == null) {
+            throw new IllegalStateException("No result from " + BookContract.METHOD_ADJUST_STOCK);
+        }
+        return result.getLong(BookContract.EXTRA_SEQUENCE);
+    }
+
+    /**
+     * Hands the books whose sales were rejected to the listener.
+     */
+    private void notifyRejected(final long[] ids) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onSalesRejected(ids);
+                }
+            }
+        });
+    }
+
+    /**
+     * Empties the journal once everything in it is in the database.
+     */
+    private void truncateJournal() {
+        try {
+            if (mJournal != null) {
+                mJournal.close();
+            }
+            mJournalOut = new FileOutputStream(mJournalFile, false);
+            mJournal = new DataOutputStream(mJournalOut);
+        } catch (IOException e) {
+            // Leftover entries are skipped on replay by their sequence numbers
+            Log.e(LOG_TAG, "Failed to truncate the stock journal", e);
+            mJournalOut = null;
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Reads the last applied sequence number, then queues again the sales of the journal that
+     * didn't make it into the database and the sales held until then. If the provider can't
+     * be asked, tries again later, waiting longer each time.
+     */
+    private void recover() {
+        // Looking up the files directory may create it, so it is done here instead of on the
+        // main thread
+        mJournalFile = new File(mContext.getFilesDir(), JOURNAL_NAME);
+
+        long appliedSequence;
+        try {
+            appliedSequence = readAppliedSequence();
+        } catch (RuntimeException e) {
+            // Numbering sales from anything but the applied sequence would get them refused
+            Log.e(LOG_TAG, "Failed to read the applied stock sequence, retrying in " + mRecoverDelayMs + " ms", e);
+            mExecutor.schedule(mRecover, mRecoverDelayMs, TimeUnit.MILLISECONDS);
+            mRecoverDelayMs = Math.min(2 * mRecoverDelayMs, MAX_RECOVER_DELAY_MS);
+            return;
+        }
+        mSequence = appliedSequence;
+        mRecovered = true;
+
+        if (mJournalFile.exists()) {
+            replayJournal(appliedSequence);
+        }
+
+        // Sales made in the meantime go after the ones of the journal
+        for (int i = 0; i < mHeld.size(); i++) {
+            long id = mHeld.keyAt(i);
+            int delta = mHeld.valueAt(i);
+            journal(id, delta);
+            mQueued.put(id, mQueued.get(id, 0) + delta);
+        }
+        mQueuedEvents += mHeldEvents;
+        mHeld.clear();
+        mHeldEvents = 0;
+
+        if (mQueuedEvents > 0) {
+            Log.i(LOG_TAG, "Writing " + mQueuedEvents + " journaled and held sales");
+            flush();
+        }
+    }
+
+    /**
+     * Queues the sales of the journal after the given sequence number.
+     */
+    private void replayJournal(long appliedSequence) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            while (true) {
+                long sequence = in.readLong();
+                long id = in.readLong();
+                int delta = in.readInt();
+                mSequence = Math.max(mSequence, sequence);
+                if (sequence > appliedSequence) {
+                    addPending(id, delta);
+                    mQueued.put(id, mQueued.get(id, 0) + delta);
+                    mQueuedEvents++;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal, a partly written last entry is dropped
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read the stock journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to do with the file
+                }
+            }
+        }
+    }
+}
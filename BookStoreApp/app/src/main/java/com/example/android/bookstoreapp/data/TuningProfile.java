@@ -0,0 +1,106 @@
+package com.example.android.bookstoreapp.data;
+
+import android.support.annotation.Nullable;
+
+/**
+ * SQLite settings applied by {@link BookDbHelper} every time the database is opened.
+ * <p>
+ * The database always runs in write-ahead logging mode, where readers see the last committed
+ * state and never wait for a writer. The settings here control how durable a commit is, how
+ * much memory the writing connection may use, and how large the log may grow before it is
+ * copied back into the database.
+ */
+public final class TuningProfile {
+
+    /**
+     * Commits wait for the log to reach the disk, the database is only synced on checkpoints
+     */
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+
+    /**
+     * Every commit waits for the disk
+     */
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * Settings used by the app. In WAL mode, NORMAL can lose the last commits on a power loss
+     * but never corrupts the database, and it saves a disk sync on every sale.
+     */
+    public static final TuningProfile DEFAULT = new TuningProfile(SYNCHRONOUS_NORMAL, 4096, 2048, 1000);
+
+    /**
+     * Settings for stores that can't afford to lose a sale on a power loss. Every commit waits
+     * for the disk, and the larger cache and log make up for some of the extra time.
+     */
+    public static final TuningProfile DURABLE = new TuningProfile(SYNCHRONOUS_FULL, 4096, 4096, 2000);
+
+    /**
+     * Name of {@link #DEFAULT} for {@link #forName(String)}
+     */
+    public static final String NAME_DEFAULT = "default";
+
+    /**
+     * Name of {@link #DURABLE} for {@link #forName(String)}
+     */
+    public static final String NAME_DURABLE = "durable";
+
+    /**
+     * Value of PRAGMA synchronous, {@link #SYNCHRONOUS_NORMAL} or {@link #SYNCHRONOUS_FULL}
+     */
+    public final String synchronous;
+
+    /**
+     * Page size in bytes. Only takes effect when the database file is created, and not on
+     * Ice Cream Sandwich, where the settings are applied after the tables are created.
+     */
+    public final int pageSize;
+
+    /**
+     * Size of the page cache of the writing connection, in KiB
+     */
+    public final int cacheSizeKb;
+
+    /**
+     * Number of log pages after which a commit copies the log back into the database
+     */
+    public final int walAutoCheckpointPages;
+
+    /**
+     * Constructs a new {@link TuningProfile}
+     *
+     * @param synchronous            {@link #SYNCHRONOUS_NORMAL} or {@link #SYNCHRONOUS_FULL}.
+     * @param pageSize               Page size in bytes, a power of two from 512 to 65536.
+     * @param cacheSizeKb            Page cache size in KiB.
+     * @param walAutoCheckpointPages Log size in pages that triggers a checkpoint, 0 to never
+     *                               checkpoint automatically.
+     */
+    public TuningProfile(String synchronous, int pageSize, int cacheSizeKb, int walAutoCheckpointPages) {
+        if (!SYNCHRONOUS_NORMAL.equals(synchronous) && !SYNCHRONOUS_FULL.equals(synchronous)) {
+            throw new IllegalArgumentException("Unsupported synchronous mode " + synchronous);
+        }
+        if (pageSize < 512 || pageSize > 65536 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        }
+        if (cacheSizeKb <= 0 || walAutoCheckpointPages < 0) {
+            throw new IllegalArgumentException("Invalid cache size or checkpoint interval");
+        }
+        this.synchronous = synchronous;
+        this.pageSize = pageSize;
+        this.cacheSizeKb = cacheSizeKb;
+        this.walAutoCheckpointPages = walAutoCheckpointPages;
+    }
+
+    /**
+     * Returns the profile with the given name, {@link #DEFAULT} if the name is null.
+     *
+     * @throws IllegalArgumentException if there is no profile with that name.
+     */
+    public static TuningProfile forName(@Nullable String name) {
+        if (name == null || NAME_DEFAULT.equals(name)) {
+            return DEFAULT;
+        } else if (NAME_DURABLE.equals(name)) {
+            return DURABLE;
+        }
+        throw new IllegalArgumentException("Unknown tuning profile " + name);
+    }
+}
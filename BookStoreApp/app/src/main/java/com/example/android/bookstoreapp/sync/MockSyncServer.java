@@ -0,0 +1,205 @@
+package com.example.android.bookstoreapp.sync;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Sync server that runs in the app's process and keeps everything in memory, so the
+ * {@link SyncEngine} can be tried out and tested without a network. Several engines, or
+ * requests built by hand, can share one instance to play several stores.
+ * <p>
+ * It can be told to fail the next requests, before or after applying them, to exercise the
+ * retries of the engine.
+ */
+public class MockSyncServer implements SyncServer {
+
+    /**
+     * Largest number of changed books in one response, besides the books of the request
+     */
+    public static final int PAGE_SIZE = 200;
+
+    /**
+     * State of a book on the server.
+     */
+    private static class Book {
+        final String globalId;
+        final HashMap<String, Object> columns = new HashMap<>();
+        /* Total stock change of each store, by device ID */
+        final HashMap<String, Integer> stockDeltas = new HashMap<>();
+        long version;
+        boolean deleted;
+
+        Book(String globalId) {
+            this.globalId = globalId;
+        }
+
+        int quantity() {
+            int quantity = 0;
+            for (int delta : stockDeltas.values()) {
+                quantity += delta;
+            }
+            return quantity;
+        }
+    }
+
+    private final HashMap<String, Book> mBooks = new HashMap<>();
+    /* Global IDs of the books by their version, to find the changes after a watermark */
+    private final TreeMap<Long, String> mVersions = new TreeMap<>();
+    private long mLastVersion;
+
+    private int mFailuresBefore;
+    private int mFailuresAfter;
+    private int mExchanges;
+
+    @Override
+    public synchronized byte[] exchange(byte[] request) throws IOException {
+        mExchanges++;
+        if (mFailuresBefore > 0) {
+            mFailuresBefore--;
+            throw new IOException("Mock server unavailable");
+        }
+
+        JSONObject response;
+        try {
+            response = apply(SyncPayload.decode(request));
+        } catch (JSONException e) {
+            throw new IOException("Malformed sync request", e);
+        }
+
+        if (mFailuresAfter > 0) {
+            mFailuresAfter--;
+            throw new IOException("Mock server response lost");
+        }
+        return SyncPayload.encode(response);
+    }
+
+    /**
+     * Applies the books of a request and builds the response.
+     */
+    private JSONObject apply(JSONObject request) throws JSONException {
+        String deviceId = request.getString(SyncPayload.KEY_DEVICE_ID);
+        long since = request.getLong(SyncPayload.KEY_SINCE);
+
+        // The books of the request go back first, whatever their version
+        LinkedHashMap<String, Book> changed = new LinkedHashMap<>();
+        JSONArray pushed = request.getJSONArray(SyncPayload.KEY_BOOKS);
+        for (int i = 0; i < pushed.length(); i++) {
+            Book book = applyBook(deviceId, pushed.getJSONObject(i));
+            changed.put(book.globalId, book);
+        }
+
+        SortedMap<Long, String> after = mVersions.tailMap(since + 1);
+        long watermark = mLastVersion;
+        int paged = 0;
+        for (Map.Entry<Long, String> entry : after.entrySet()) {
+            if (paged == PAGE_SIZE) {
+                watermark = entry.getKey() - 1;
+                break;
+            }
+            changed.put(entry.getValue(), mBooks.get(entry.getValue()));
+            paged++;
+        }
+
+        JSONArray books = new JSONArray();
+        for (Book book : changed.values()) {
+            books.put(toJson(book));
+        }
+        JSONObject response = new JSONObject();
+        response.put(SyncPayload.KEY_BOOKS, books);
+        response.put(SyncPayload.KEY_WATERMARK, watermark);
+        response.put(SyncPayload.KEY_MORE, watermark < mLastVersion);
+        return response;
+    }
+
+    /**
+     * Applies one book sent by a store and gives it a new version.
+     */
+    private Book applyBook(String deviceId, JSONObject pushed) throws JSONException {
+        String globalId = pushed.getString(SyncPayload.KEY_GLOBAL_ID);
+        Book book = mBooks.get(globalId);
+        if (book == null) {
+            book = new Book(globalId);
+            mBooks.put(globalId, book);
+        } else {
+            mVersions.remove(book.version);
+        }
+
+        // A deleted book stays deleted
+        if (pushed.optBoolean(SyncPayload.KEY_DELETED)) {
+            book.deleted = true;
+        } else if (!book.deleted) {
+            for (String column : SyncPayload.BOOK_COLUMNS) {
+                if (pushed.has(column)) {
+                    book.columns.put(column, pushed.get(column));
+                }
+            }
+            book.stockDeltas.put(deviceId, pushed.getInt(SyncPayload.KEY_STOCK_DELTA));
+        }
+
+        book.version = ++mLastVersion;
+        mVersions.put(book.version, globalId);
+        return book;
+    }
+
+    private static JSONObject toJson(Book book) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(SyncPayload.KEY_GLOBAL_ID, book.globalId);
+        json.put(SyncPayload.KEY_VERSION, book.version);
+        if (book.deleted) {
+            json.put(SyncPayload.KEY_DELETED, true);
+            return json;
+        }
+        for (Map.Entry<String, Object> column : book.columns.entrySet()) {
+            json.put(column.getKey(), column.getValue());
+        }
+        json.put(SyncPayload.KEY_QUANTITY, book.quantity());
+        return json;
+    }
+
+    /**
+     * Makes the next requests fail without being applied.
+     */
+    public synchronized void failNextExchanges(int count) {
+        mFailuresBefore = count;
+    }
+
+    /**
+     * Makes the next requests fail after they were applied, as if the response got lost.
+     */
+    public synchronized void loseNextResponses(int count) {
+        mFailuresAfter = count;
+    }
+
+    /**
+     * Returns the number of requests received, including the failed ones.
+     */
+    public synchronized int getExchangeCount() {
+        return mExchanges;
+    }
+
+    /**
+     * Returns a book as the server would send it, or null if the server doesn't know it.
+     */
+    @Nullable
+    public synchronized JSONObject getBook(String globalId) {
+        Book book = mBooks.get(globalId);
+        if (book == null) {
+            return null;
+        }
+        try {
+            return toJson(book);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
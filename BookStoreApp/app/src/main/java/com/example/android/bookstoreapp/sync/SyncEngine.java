@@ -0,0 +1,662 @@
+package com.example.android.bookstoreapp.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.ChangeEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Synchronizes the books of this store with a {@link SyncServer}, so every store sees the
+ * same catalog and the stock sold anywhere.
+ * <p>
+ * Only changed books are sent. The engine follows the change log of the book provider (see
+ * {@link ChangeEntry}) as a consumer, and sends the books changed since the last change it
+ * acknowledged. It receives the books changed on the server since the last watermark it
+ * applied. Both are sent in batches of at most {@link #BATCH_SIZE} books, compressed as described in
+ * {@link SyncPayload}.
+ * <p>
+ * Stock counts are merged, not copied. The engine sends the total stock change of this store
+ * for each book, and the server adds up the totals of all stores, so sales made in two stores
+ * at the same time both count. The quantity received from the server is then put back
+ * together with the sales made here while the request was on its way. The other columns are
+ * copied, the last store to change them wins, except that a book changed here and not sent
+ * yet keeps its columns until it is.
+ * <p>
+ * Every step can be repeated without harm, so a sync that fails halfway is simply run again.
+ * Syncs run on a background thread every {@link #SYNC_INTERVAL_MS}. A failed sync is tried
+ * again after a delay that doubles with every failure, up to {@link #MAX_BACKOFF_MS}.
+ */
+public class SyncEngine {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /**
+     * Name of the engine as a consumer of the change log
+     */
+    public static final String CHANGE_CONSUMER_NAME = "sync";
+
+    /**
+     * Time between two syncs that succeeded
+     */
+    public static final long SYNC_INTERVAL_MS = 15 * 60 * 1000;
+
+    /**
+     * Delay before the first retry of a failed sync
+     */
+    public static final long INITIAL_BACKOFF_MS = 30 * 1000;
+
+    /**
+     * Longest delay between two retries
+     */
+    public static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    /**
+     * Largest number of books sent in one request, and of changes read from the log at once
+     */
+    public static final int BATCH_SIZE = 200;
+
+    /**
+     * Number of times a book received from the server is written before giving up until the
+     * next sync, if sales keep changing its quantity in between
+     */
+    private static final int MAX_APPLY_ATTEMPTS = 3;
+
+    /**
+     * Name of the preferences file that holds the state of the engine
+     */
+    private static final String PREFS_NAME = "sync";
+
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_WATERMARK = "watermark";
+    private static final String KEY_INITIAL_PUSH_DONE = "initial_push_done";
+
+    /**
+     * Columns read for the books that are sent. The columns of
+     * {@link SyncPayload#BOOK_COLUMNS} come first, in the same order.
+     */
+    private static final String[] PUSH_PROJECTION = {
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_AUTHOR_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_GLOBAL_ID,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SYNCED_QUANTITY,
+            BookEntry.COLUMN_BOOK_SYNCED_DELTA
+    };
+
+    /**
+     * Columns read for the books received from the server
+     */
+    private static final String[] LOCAL_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_GLOBAL_ID,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_SYNCED_QUANTITY,
+            BookEntry.COLUMN_BOOK_SYNCED_DELTA,
+            BookEntry.COLUMN_BOOK_SERVER_VERSION
+    };
+
+    /**
+     * URI of the books for the writes that apply the changes of the server, which the change
+     * log then marks as remote
+     */
+    private static final Uri REMOTE_BOOKS_URI = BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookContract.QUERY_PARAMETER_REMOTE, "true")
+            .build();
+
+    private static final String[] CHANGES_PROJECTION = {
+            ChangeEntry._ID,
+            ChangeEntry.COLUMN_BOOK_ID,
+            ChangeEntry.COLUMN_OPERATION,
+            ChangeEntry.COLUMN_GLOBAL_ID,
+            ChangeEntry.COLUMN_REMOTE
+    };
+
+    /**
+     * Sync state of a book in this store.
+     */
+    private static class LocalBook {
+        final long id;
+        final int quantity;
+        final int syncedQuantity;
+        final int syncedDelta;
+        @Nullable
+        final Long serverVersion;
+
+        LocalBook(Cursor cursor) {
+            id = cursor.getLong(0);
+            quantity = cursor.getInt(2);
+            syncedQuantity = cursor.getInt(3);
+            syncedDelta = cursor.getInt(4);
+            serverVersion = cursor.isNull(5) ? null : cursor.getLong(5);
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mState;
+    private final SyncServer mServer;
+    private final String mDeviceId;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+
+    // The fields below are only used on the engine thread
+
+    /* Number of syncs in a row that failed */
+    private int mFailures;
+    /* Whether the server had more changes after the last exchange */
+    private boolean mMore;
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            runSync();
+        }
+    };
+
+    public SyncEngine(Context context, SyncServer server) {
+        mContentResolver = context.getContentResolver();
+        mState = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mServer = server;
+
+        String deviceId = mState.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            mState.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        mDeviceId = deviceId;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Syncs now, and then every {@link #SYNC_INTERVAL_MS}.
+     */
+    public void start() {
+        requestSync();
+    }
+
+    /**
+     * Syncs as soon as possible, instead of waiting for the next sync or retry.
+     */
+    public void requestSync() {
+        mHandler.removeCallbacks(mSync);
+        mHandler.post(mSync);
+    }
+
+    /**
+     * Stops syncing. A sync already running is finished first.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mSync);
+        mThread.quit();
+    }
+
+    /**
+     * Runs one sync and schedules the next one, or a retry if it failed.
+     */
+    private void runSync() {
+        long delay;
+        try {
+            sync();
+            mFailures = 0;
+            delay = SYNC_INTERVAL_MS;
+        } catch (IOException | JSONException | RuntimeException e) {
+            mFailures++;
+            delay = backoff(mFailures);
+            Log.w(LOG_TAG, "Sync failed " + mFailures + " times in a row, trying again in "
+                    + delay / 1000 + " s", e);
+        }
+        mHandler.removeCallbacks(mSync);
+        mHandler.postDelayed(mSync, delay);
+    }
+
+    /**
+     * Returns the delay before retrying after the given number of failures in a row. It
+     * doubles with every failure and is spread randomly over its upper half, so stores that
+     * lost the server at the same time don't all come back at once.
+     */
+    private long backoff(int failures) {
+        long delay = INITIAL_BACKOFF_MS << Math.min(failures - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MS);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Sends the changes of this store and applies the changes of the server.
+     */
+    private void sync() throws IOException, JSONException {
+        // Registering again returns the last change acknowledged. Books changed after it are
+        // logged, books created before the first registration are sent below.
+        Bundle registration = mContentResolver.call(BookEntry.CONTENT_URI,
+                BookContract.METHOD_REGISTER_CHANGE_CONSUMER, CHANGE_CONSUMER_NAME, null);
+        if (registration == null) {
+            throw new IllegalStateException("Book provider unavailable");
+        }
+        long sequence = registration.getLong(BookContract.EXTRA_SEQUENCE);
+
+        mMore = true;
+        long next;
+        while ((next = pushChanges(sequence)) != sequence) {
+            sequence = next;
+        }
+
+        if (!mState.getBoolean(KEY_INITIAL_PUSH_DONE, false)) {
+            pushUnsyncedBooks(sequence);
+            mState.edit().putBoolean(KEY_INITIAL_PUSH_DONE, true).apply();
+        }
+
+        // Fetch what is left on the server
+        while (mMore) {
+            exchange(Collections.<Long>emptySet(), Collections.<String>emptyList(), sequence);
+        }
+    }
+
+    /**
+     * Sends the books of the next changes after the given sequence number, and acknowledges
+     * the changes once the response is applied.
+     *
+     * @return the sequence number of the last change sent, the given one if there was none
+     */
+    private long pushChanges(long sequence) throws IOException, JSONException {
+        Uri uri = ChangeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_SINCE, String.valueOf(sequence))
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_LIMIT, String.valueOf(BATCH_SIZE))
+                .build();
+        Cursor cursor = mContentResolver.query(uri, CHANGES_PROJECTION, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("Book provider unavailable");
+        }
+
+        // The last change of each book decides whether it is sent as it is or as deleted.
+        // Changes made by the engine itself are already on the server.
+        Set<Long> changed = new HashSet<>();
+        LinkedHashMap<Long, String> deleted = new LinkedHashMap<>();
+        boolean read = false;
+        long last = sequence;
+        try {
+            while (cursor.moveToNext()) {
+                read = true;
+                last = cursor.getLong(0);
+                if (cursor.getInt(4) != 0) {
+                    continue;
+                }
+                long bookId = cursor.getLong(1);
+                if (BookContract.OPERATION_DELETE.equals(cursor.getString(2))) {
+                    changed.remove(bookId);
+                    if (!cursor.isNull(3)) {
+                        deleted.put(bookId, cursor.getString(3));
+                    }
+                } else {
+                    deleted.remove(bookId);
+                    changed.add(bookId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!read) {
+            return sequence;
+        }
+
+        exchange(changed, deleted.values(), last);
+
+        Bundle extras = new Bundle();
+        extras.putLong(BookContract.EXTRA_SEQUENCE, last);
+        mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_ACKNOWLEDGE_CHANGES,
+                CHANGE_CONSUMER_NAME, extras);
+        return last;
+    }
+
+    /**
+     * Sends the books that were never synchronized, one batch at a time. These are the books
+     * created before the engine started following the change log.
+     *
+     * @param sequence Last change sent.
+     */
+    private void pushUnsyncedBooks(long sequence) throws IOException, JSONException {
+        long afterId = 0;
+        while (true) {
+            Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BookContract.QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .appendQueryParameter(BookContract.QUERY_PARAMETER_LIMIT, String.valueOf(BATCH_SIZE))
+                    .build();
+            Cursor cursor = mContentResolver.query(uri, new String[]{BookEntry._ID},
+                    BookEntry.COLUMN_BOOK_SERVER_VERSION + " IS NULL", null, null);
+            if (cursor == null) {
+                throw new IllegalStateException("Book provider unavailable");
+            }
+            Set<Long> ids = new HashSet<>();
+            try {
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(0);
+                    ids.add(afterId);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            exchange(ids, Collections.<String>emptyList(), sequence);
+        }
+    }
+
+    /**
+     * Sends the given books to the server and applies the books it sends back.
+     *
+     * @param bookIds  _IDs of the books to send as they are.
+     * @param deleted  Global IDs of the books to send as deleted.
+     * @param sequence Last change of the log the request covers. Books changed after it keep
+     *                 their columns.
+     */
+    private void exchange(Collection<Long> bookIds, Collection<String> deleted, long sequence)
+            throws IOException, JSONException {
+        JSONArray books = new JSONArray();
+        HashMap<String, Integer> sentDeltas = new HashMap<>();
+        readBooks(bookIds, books, sentDeltas);
+        for (String globalId : deleted) {
+            JSONObject book = new JSONObject();
+            book.put(SyncPayload.KEY_GLOBAL_ID, globalId);
+            book.put(SyncPayload.KEY_DELETED, true);
+            books.put(book);
+        }
+
+        JSONObject request = new JSONObject();
+        request.put(SyncPayload.KEY_DEVICE_ID, mDeviceId);
+        request.put(SyncPayload.KEY_SINCE, mState.getLong(KEY_WATERMARK, 0));
+        request.put(SyncPayload.KEY_BOOKS, books);
+
+        JSONObject response = SyncPayload.decode(mServer.exchange(SyncPayload.encode(request)));
+        applyBooks(response.getJSONArray(SyncPayload.KEY_BOOKS), sentDeltas, sequence);
+
+        // The books up to the watermark are applied, a later failure fetches them again
+        mState.edit().putLong(KEY_WATERMARK, response.getLong(SyncPayload.KEY_WATERMARK)).apply();
+        mMore = response.optBoolean(SyncPayload.KEY_MORE);
+    }
+
+    /**
+     * Reads the books with the given _IDs into the JSON of a request, and the stock change
+     * sent for each of them by global ID.
+     */
+    private void readBooks(Collection<Long> bookIds, JSONArray books, HashMap<String, Integer> sentDeltas)
+            throws JSONException {
+        if (bookIds.isEmpty()) {
+            return;
+        }
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, PUSH_PROJECTION,
+                inSelection(BookEntry._ID, bookIds.size()), toArgs(bookIds), null);
+        if (cursor == null) {
+            throw new IllegalStateException("Book provider unavailable");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String globalId = cursor.getString(8);
+                if (globalId == null) {
+                    continue;
+                }
+                JSONObject book = new JSONObject();
+                book.put(SyncPayload.KEY_GLOBAL_ID, globalId);
+                book.put(BookEntry.COLUMN_BOOK_NAME, cursor.getString(0));
+                book.put(BookEntry.COLUMN_AUTHOR_NAME, cursor.getString(1));
+                book.put(BookEntry.COLUMN_BOOK_PRICE, cursor.getLong(2));
+                book.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, cursor.getInt(3));
+                book.put(BookEntry.COLUMN_BOOK_SUPPLIER, cursor.isNull(4) ? JSONObject.NULL : cursor.getString(4));
+                book.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER,
+                        cursor.isNull(5) ? JSONObject.NULL : cursor.getString(5));
+                book.put(BookEntry.COLUMN_BOOK_ISBN, cursor.isNull(6) ? JSONObject.NULL : cursor.getString(6));
+
+                // The total stock change of this store is the part the server has accepted,
+                // and what changed here since it was last told
+                int delta = cursor.getInt(11) + cursor.getInt(9) - cursor.getInt(10);
+                book.put(SyncPayload.KEY_STOCK_DELTA, delta);
+                sentDeltas.put(globalId, delta);
+                books.put(book);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Applies the books received from the server.
+     *
+     * @param sentDeltas Stock change sent for each book of the request, by global ID.
+     * @param sequence   Last change of the log the request covers.
+     */
+    private void applyBooks(JSONArray books, HashMap<String, Integer> sentDeltas, long sequence)
+            throws JSONException {
+        if (books.length() == 0) {
+            return;
+        }
+        List<String> globalIds = new ArrayList<>(books.length());
+        for (int i = 0; i < books.length(); i++) {
+            globalIds.add(books.getJSONObject(i).getString(SyncPayload.KEY_GLOBAL_ID));
+        }
+
+        // Archived books the server changed come back first, to be updated in place. A book
+        // that is still cold goes back to the archive on the next run.
+        Bundle extras = new Bundle();
+        extras.putStringArray(BookContract.EXTRA_GLOBAL_IDS, globalIds.toArray(new String[globalIds.size()]));
+        mContentResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_RESTORE_ARCHIVED, null, extras);
+
+        HashMap<String, LocalBook> localBooks = queryLocalBooks(globalIds);
+        Set<Long> unsent = queryUnsentBooks(localBooks.values(), sequence);
+
+        for (int i = 0; i < books.length(); i++) {
+            JSONObject book = books.getJSONObject(i);
+            String globalId = globalIds.get(i);
+            try {
+                applyBook(book, globalId, localBooks.get(globalId), sentDeltas.get(globalId), unsent);
+            } catch (IllegalArgumentException | SQLException e) {
+                // The provider refused the book, or another book here has its ISBN. Don't let
+                // it hold back the others.
+                Log.e(LOG_TAG, "Failed to apply book " + globalId, e);
+            }
+        }
+    }
+
+    /**
+     * Applies one book received from the server.
+     *
+     * @param local     The book in this store, or null if there is none.
+     * @param sentDelta Stock change sent for the book, or null if it wasn't sent.
+     * @param unsent    _IDs of the books changed here and not sent yet.
+     */
+    private void applyBook(JSONObject book, String globalId, @Nullable LocalBook local,
+                           @Nullable Integer sentDelta, Set<Long> unsent) throws JSONException {
+        long version = book.getLong(SyncPayload.KEY_VERSION);
+        String[] globalIdArgs = {globalId};
+
+        if (book.optBoolean(SyncPayload.KEY_DELETED)) {
+            if (local != null) {
+                mContentResolver.delete(REMOTE_BOOKS_URI, BookEntry.COLUMN_BOOK_GLOBAL_ID + "=?",
+                        globalIdArgs);
+            }
+            return;
+        }
+
+        int serverQuantity = book.getInt(SyncPayload.KEY_QUANTITY);
+        if (local == null) {
+            // New in this store. A book deleted here but not removed yet can't be inserted
+            // again, its delete is on its way to the server.
+            ContentValues values = new ContentValues();
+            putColumns(values, book);
+            values.put(BookEntry.COLUMN_BOOK_GLOBAL_ID, globalId);
+            values.put(BookEntry.COLUMN_BOOK_SERVER_VERSION, version);
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, serverQuantity);
+            values.put(BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, serverQuantity);
+            values.put(BookEntry.COLUMN_BOOK_SYNCED_DELTA, sentDelta == null ? 0 : sentDelta);
+            mContentResolver.insert(REMOTE_BOOKS_URI, values);
+            return;
+        }
+
+        // Already applied, and nothing was sent since
+        if (sentDelta == null && local.serverVersion != null && local.serverVersion >= version) {
+            return;
+        }
+
+        for (int attempt = 0; attempt < MAX_APPLY_ATTEMPTS && local != null; attempt++) {
+            // Stock changes made here that the server doesn't know about yet stay on top of
+            // the quantity of the server
+            int unsentDelta = local.quantity - local.syncedQuantity;
+            if (sentDelta != null) {
+                unsentDelta -= sentDelta - local.syncedDelta;
+            }
+
+            ContentValues values = new ContentValues();
+            if (!unsent.contains(local.id)) {
+                putColumns(values, book);
+            }
+            values.put(BookEntry.COLUMN_BOOK_SERVER_VERSION, version);
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, Math.max(0, serverQuantity + unsentDelta));
+            values.put(BookEntry.COLUMN_BOOK_SYNCED_QUANTITY, serverQuantity);
+            if (sentDelta != null) {
+                values.put(BookEntry.COLUMN_BOOK_SYNCED_DELTA, sentDelta);
+            }
+
+            // Only write over the quantity that was read, a sale in between means reading again
+            int rows = mContentResolver.update(REMOTE_BOOKS_URI, values, BookEntry._ID + "=? AND "
+                            + BookEntry.COLUMN_BOOK_QUANTITY + "=?",
+                    new String[]{String.valueOf(local.id), String.valueOf(local.quantity)});
+            if (rows != 0) {
+                return;
+            }
+            local = queryLocalBooks(Collections.singletonList(globalId)).get(globalId);
+        }
+        // The next sync brings the book again, its version being newer
+        Log.w(LOG_TAG, "Gave up applying book " + globalId + " for now");
+    }
+
+    /**
+     * Copies the columns of a book received from the server into the values of a write.
+     */
+    private static void putColumns(ContentValues values, JSONObject book) throws JSONException {
+        for (String column : SyncPayload.BOOK_COLUMNS) {
+            if (!book.has(column)) {
+                continue;
+            }
+            if (book.isNull(column)) {
+                values.putNull(column);
+            } else if (BookEntry.COLUMN_BOOK_PRICE.equals(column)) {
+                values.put(column, book.getLong(column));
+            } else if (BookEntry.COLUMN_BOOK_REORDER_LEVEL.equals(column)) {
+                values.put(column, book.getInt(column));
+            } else {
+                values.put(column, book.getString(column));
+            }
+        }
+    }
+
+    /**
+     * Returns the books of this store with the given global IDs, by global ID.
+     */
+    private HashMap<String, LocalBook> queryLocalBooks(List<String> globalIds) {
+        HashMap<String, LocalBook> books = new HashMap<>();
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI, LOCAL_PROJECTION,
+                inSelection(BookEntry.COLUMN_BOOK_GLOBAL_ID, globalIds.size()),
+                globalIds.toArray(new String[globalIds.size()]), null);
+        if (cursor == null) {
+            throw new IllegalStateException("Book provider unavailable");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                books.put(cursor.getString(1), new LocalBook(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return books;
+    }
+
+    /**
+     * Returns the _IDs of the given books that were changed here after the given change.
+     */
+    private Set<Long> queryUnsentBooks(Collection<LocalBook> books, long sequence) {
+        Set<Long> unsent = new HashSet<>();
+        if (books.isEmpty()) {
+            return unsent;
+        }
+        List<Long> ids = new ArrayList<>(books.size());
+        for (LocalBook book : books) {
+            ids.add(book.id);
+        }
+        Uri uri = ChangeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_SINCE, String.valueOf(sequence))
+                .build();
+        Cursor cursor = mContentResolver.query(uri, new String[]{ChangeEntry.COLUMN_BOOK_ID},
+                ChangeEntry.COLUMN_REMOTE + "=0 AND " + inSelection(ChangeEntry.COLUMN_BOOK_ID, ids.size()),
+                toArgs(ids), null);
+        if (cursor == null) {
+            throw new IllegalStateException("Book provider unavailable");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                unsent.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return unsent;
+    }
+
+    /**
+     * Returns "column IN (?, ...)" with the given number of placeholders. Batches stay below
+     * the 999 variables SQLite accepts.
+     */
+    private static String inSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    private static String[] toArgs(Collection<Long> ids) {
+        String[] args = new String[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            args[i++] = String.valueOf(id);
+        }
+        return args;
+    }
+}
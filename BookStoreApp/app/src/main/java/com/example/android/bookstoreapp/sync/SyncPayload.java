@@ -0,0 +1,156 @@
+package com.example.android.bookstoreapp.sync;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Format of the payloads exchanged with a {@link SyncServer}: a JSON object, compressed with
+ * GZIP.
+ * <p>
+ * A request holds {@link #KEY_DEVICE_ID}, the {@link #KEY_SINCE} watermark and the
+ * {@link #KEY_BOOKS} changed in the store. Each book has its {@link #KEY_GLOBAL_ID} and is
+ * either {@link #KEY_DELETED}, or has the columns in {@link #BOOK_COLUMNS} and the store's
+ * total stock change in {@link #KEY_STOCK_DELTA}.
+ * <p>
+ * A response holds the {@link #KEY_BOOKS} changed on the server after the watermark, then
+ * the new {@link #KEY_WATERMARK}, and {@link #KEY_MORE} if there are more changes to fetch.
+ * Each book has its {@link #KEY_VERSION}, and is either deleted or has the columns and the
+ * {@link #KEY_QUANTITY} summed over every store. The books of the request are always part of
+ * the response.
+ */
+public final class SyncPayload {
+
+    /**
+     * Identifies the store sending a request
+     * Type: String
+     */
+    public static final String KEY_DEVICE_ID = "device_id";
+
+    /**
+     * Version of the last server change the store has applied
+     * Type: long
+     */
+    public static final String KEY_SINCE = "since";
+
+    /**
+     * Changed books
+     * Type: array of objects
+     */
+    public static final String KEY_BOOKS = "books";
+
+    /**
+     * Version to send as {@link #KEY_SINCE} in the next request
+     * Type: long
+     */
+    public static final String KEY_WATERMARK = "watermark";
+
+    /**
+     * Whether the server has changes left after the watermark
+     * Type: boolean
+     */
+    public static final String KEY_MORE = "more";
+
+    /**
+     * {@link BookEntry#COLUMN_BOOK_GLOBAL_ID} of a book
+     * Type: String
+     */
+    public static final String KEY_GLOBAL_ID = BookEntry.COLUMN_BOOK_GLOBAL_ID;
+
+    /**
+     * Version of a book on the server, greater after each change
+     * Type: long
+     */
+    public static final String KEY_VERSION = "version";
+
+    /**
+     * Whether the book is deleted
+     * Type: boolean
+     */
+    public static final String KEY_DELETED = "deleted";
+
+    /**
+     * Total stock change of the sending store for the book, since the book was created. The
+     * server keeps the last total of each store, so sending the same total again is harmless.
+     * Type: int
+     */
+    public static final String KEY_STOCK_DELTA = "stock_delta";
+
+    /**
+     * Quantity of the book over all stores
+     * Type: int
+     */
+    public static final String KEY_QUANTITY = BookEntry.COLUMN_BOOK_QUANTITY;
+
+    /**
+     * Columns of a book that are copied as they are, the last store to change them wins
+     */
+    public static final String[] BOOK_COLUMNS = {
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_AUTHOR_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER,
+            BookEntry.COLUMN_BOOK_ISBN
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SyncPayload() {
+    }
+
+    /**
+     * Returns the compressed form of a payload.
+     */
+    public static byte[] encode(JSONObject payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            OutputStream out = new GZIPOutputStream(bytes);
+            try {
+                out.write(payload.toString().getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // A byte array doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a compressed payload.
+     *
+     * @throws IOException if the bytes aren't a compressed JSON object.
+     */
+    public static JSONObject decode(byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length * 4);
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            return new JSONObject(new String(bytes.toByteArray(), UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Malformed sync payload", e);
+        }
+    }
+}
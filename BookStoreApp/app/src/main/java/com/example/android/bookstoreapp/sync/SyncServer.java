@@ -0,0 +1,22 @@
+package com.example.android.bookstoreapp.sync;
+
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+
+/**
+ * Central server the stores synchronize their inventory with.
+ */
+public interface SyncServer {
+
+    /**
+     * Sends the changes of the store and returns the changes of the server, both in the
+     * format of {@link SyncPayload}. The server must apply a request completely or not at
+     * all, and a request sent again must not change the result.
+     *
+     * @throws IOException if the server can't be reached or refuses the request. The engine
+     *                     then tries again later.
+     */
+    @WorkerThread
+    byte[] exchange(byte[] request) throws IOException;
+}
@@ -0,0 +1,83 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.os.Build;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cost of binding a row of the inventory list in {@link BookAdapter}, in full and for a
+ * change of quantity only.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class AdapterBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("AdapterBenchmark");
+
+    private BookAdapter mAdapter;
+    private BookAdapter.ViewHolder mHolder;
+
+    @Before
+    public void setUp() {
+        BenchmarkData.setupProvider();
+        mAdapter = new BookAdapter(RuntimeEnvironment.application, new BookAdapter.OnBookClickListener() {
+            @Override
+            public void onBookClick(long id) {
+            }
+        });
+
+        List<Book> books = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            books.add(new Book(i + 1, "Book " + i, 500 + i * 37, i % 20));
+        }
+        // The first list is applied right away, without a diff
+        mAdapter.setBooks(books);
+
+        RecyclerView parent = new RecyclerView(RuntimeEnvironment.application);
+        parent.setLayoutManager(new LinearLayoutManager(RuntimeEnvironment.application));
+        mHolder = mAdapter.onCreateViewHolder(parent, 0);
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void bind() {
+        sRecorder.measure("bind", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                mAdapter.onBindViewHolder(mHolder, iteration % ROWS);
+            }
+        });
+    }
+
+    @Test
+    public void bindQuantity() {
+        final List<Object> payloads = Collections.<Object>singletonList(new Object());
+        sRecorder.measure("bind_quantity", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                mAdapter.onBindViewHolder(mHolder, iteration % ROWS, payloads);
+            }
+        });
+    }
+}
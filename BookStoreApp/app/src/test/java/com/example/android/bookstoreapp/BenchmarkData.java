@@ -0,0 +1,72 @@
+package com.example.android.bookstoreapp;
+
+import android.content.ContentValues;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.robolectric.Robolectric;
+
+import java.util.Locale;
+
+/**
+ * Creates the provider and the books the benchmarks run against.
+ */
+final class BenchmarkData {
+
+    /**
+     * Number of books inserted by one bulk insert while seeding
+     */
+    private static final int SEED_BATCH = 1000;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Creates the book provider and registers it under its authority, so the loader and the
+     * adapter reach it through the content resolver.
+     */
+    static BookProvider setupProvider() {
+        return Robolectric.buildContentProvider(BookProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY)
+                .get();
+    }
+
+    /**
+     * Returns the values of a made-up book. The same number always gives the same book.
+     */
+    static ContentValues book(int number) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, "Book " + number);
+        values.put(BookEntry.COLUMN_AUTHOR_NAME, "Author " + number % 500);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 500 + number % 5000);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, number % 20);
+        values.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, number % 4);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER, "Supplier " + number % 50);
+        values.put(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER, "555-" + number % 50);
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbn(number));
+        return values;
+    }
+
+    /**
+     * Returns the ISBN of a made-up book.
+     */
+    static String isbn(int number) {
+        return String.format(Locale.US, "978%010d", number);
+    }
+
+    /**
+     * Adds the books numbered from start to start + count - 1.
+     */
+    static void insertBooks(BookProvider provider, int start, int count) {
+        for (int batchStart = start; batchStart < start + count; batchStart += SEED_BATCH) {
+            int batchSize = Math.min(SEED_BATCH, start + count - batchStart);
+            ContentValues[] batch = new ContentValues[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = book(batchStart + i);
+            }
+            provider.bulkInsert(BookEntry.CONTENT_URI, batch);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.bookstoreapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times operations for the benchmarks and writes the results as JSON, one file per suite in
+ * the directory given by the benchmark.outputDir system property, so that runs can be
+ * compared by a script.
+ * <p>
+ * Every operation is run a number of times untimed first, so the JIT and the SQLite page
+ * cache are warm, and then timed one call at a time. The bytes the timed calls allocate on
+ * the Java heap are recorded too, where the JVM can count them.
+ */
+final class BenchmarkRecorder {
+
+    /**
+     * One call of a timed operation
+     */
+    interface Operation {
+        /**
+         * @param iteration Number of the call, counting the warm-up calls, so every call can
+         *                  work on a different row.
+         */
+        void run(int iteration);
+    }
+
+    private static final ThreadMXBean sThreads = ManagementFactory.getThreadMXBean();
+
+    private final String mSuite;
+    private final List<String> mResults = new ArrayList<>();
+
+    BenchmarkRecorder(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Runs an operation warmup times, then times it for the given number of iterations and
+     * records the result.
+     *
+     * @param name       Name of the measurement.
+     * @param rows       Number of books in the database while it was taken.
+     * @param warmup     Number of untimed calls.
+     * @param iterations Number of timed calls.
+     */
+    void measure(String name, int rows, int warmup, int iterations, Operation operation) {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        long[] samples = new long[iterations];
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run(warmup + i);
+            samples[i] = System.nanoTime() - start;
+        }
+        long allocatedAfter = allocatedBytes();
+        double allocatedPerCall = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / (double) iterations;
+        record(name, rows, samples, allocatedPerCall);
+    }
+
+    /**
+     * Records the size of something measured once, a database file for example.
+     *
+     * @param name  Name of the measurement.
+     * @param rows  Number of books in the database while it was taken.
+     * @param bytes Size in bytes.
+     */
+    synchronized void recordSize(String name, int rows, long bytes) {
+        String result = String.format(Locale.US, "{\"name\": \"%s\", \"rows\": %d, \"bytes\": %d}",
+                name, rows, bytes);
+        mResults.add(result);
+        System.out.println(mSuite + " " + result);
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the JVM doesn't
+     * count them.
+     */
+    private static long allocatedBytes() {
+        if (sThreads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) sThreads;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void record(String name, int rows, long[] samples, double allocatedPerCall) {
+        Arrays.sort(samples);
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        double meanMicros = total / 1000.0 / samples.length;
+        String result = String.format(Locale.US,
+                "{\"name\": \"%s\", \"rows\": %d, \"iterations\": %d, \"mean_us\": %.2f, "
+                        + "\"p50_us\": %.2f, \"p90_us\": %.2f, \"p99_us\": %.2f, \"max_us\": %.2f, "
+                        + "\"ops_per_s\": %.1f, \"alloc_bytes_per_op\": %.0f}",
+                name, rows, samples.length, meanMicros,
+                percentile(samples, 50), percentile(samples, 90), percentile(samples, 99),
+                samples[samples.length - 1] / 1000.0, 1000000.0 / meanMicros, allocatedPerCall);
+        mResults.add(result);
+        System.out.println(mSuite + " " + result);
+    }
+
+    /**
+     * Returns the given percentile of sorted samples in microseconds.
+     */
+    private static double percentile(long[] sortedSamples, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, index)] / 1000.0;
+    }
+
+    /**
+     * Writes the results recorded so far to the suite's file.
+     */
+    synchronized void write() throws IOException {
+        File directory = new File(System.getProperty("benchmark.outputDir", "build/benchmark-results"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"suite\": \"").append(mSuite).append("\", ")
+                .append("\"timestamp\": ").append(System.currentTimeMillis()).append(", ")
+                .append("\"java\": \"").append(System.getProperty("java.version")).append("\", ")
+                .append("\"results\": [\n");
+        for (int i = 0; i < mResults.size(); i++) {
+            json.append("  ").append(mResults.get(i)).append(i < mResults.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("]}\n");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, mSuite + ".json")), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+}
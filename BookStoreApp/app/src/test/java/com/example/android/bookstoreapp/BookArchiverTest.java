@@ -0,0 +1,219 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link BookProvider} moves the books that no longer sell to the archive and
+ * back, and leaves a book in the books table when it changes while it is being moved.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class BookArchiverTest {
+
+    /**
+     * Books that sell. Book 0 has nothing in stock, but was inserted just now.
+     */
+    private static final int BOOKS = 10;
+
+    /**
+     * Number of the first cold book
+     */
+    private static final int FIRST_COLD = 100;
+
+    /**
+     * More cold books than the archiver moves in one step
+     */
+    private static final int COLD_BOOKS = 1200;
+
+    private static final Uri ALL_BOOKS_URI = BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookContract.QUERY_PARAMETER_INCLUDE_ARCHIVED, "true")
+            .build();
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+    }
+
+    @Test
+    public void coldBooksMoveToArchive() {
+        insertColdBooks(COLD_BOOKS);
+
+        assertEquals(COLD_BOOKS, archive());
+        assertEquals(BOOKS, count(BookEntry.CONTENT_URI));
+        assertEquals(BOOKS + COLD_BOOKS, count(ALL_BOOKS_URI));
+        assertEquals(COLD_BOOKS, archivedCopies());
+
+        // Archived books are found by _ID and ISBN when asked for
+        long id = BOOKS + 1;
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id)));
+        assertEquals(1, count(ContentUris.withAppendedId(ALL_BOOKS_URI, id)));
+        Uri isbnUri = Uri.withAppendedPath(BookEntry.CONTENT_ISBN_URI, BenchmarkData.isbn(FIRST_COLD));
+        assertEquals(0, count(isbnUri));
+        assertEquals(1, count(isbnUri.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_INCLUDE_ARCHIVED, "true")
+                .build()));
+
+        // Nothing cold is left
+        assertEquals(0, archive());
+    }
+
+    @Test
+    public void restoredBookKeepsItsId() {
+        insertColdBooks(3);
+        assertEquals(3, archive());
+        long id = BOOKS + 2;
+        String globalId = globalId(BOOKS + 3);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookContract.EXTRA_IDS, new long[]{id, 1});
+        extras.putStringArray(BookContract.EXTRA_GLOBAL_IDS, new String[]{globalId});
+        // Book 1 isn't archived, so it is skipped
+        assertEquals(2, mProvider.call(BookContract.METHOD_RESTORE_ARCHIVED, null, extras)
+                .getInt(BookContract.EXTRA_RESTORED));
+
+        assertEquals(BOOKS + 2, count(BookEntry.CONTENT_URI));
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_NAME, BookEntry.COLUMN_BOOK_SUPPLIER}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Book " + (FIRST_COLD + 1), cursor.getString(0));
+            assertEquals("Supplier " + (FIRST_COLD + 1) % 50, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, archivedCopies());
+        assertEquals(BOOKS + 3, count(ALL_BOOKS_URI));
+
+        // Once back, there is nothing to restore
+        assertEquals(0, mProvider.call(BookContract.METHOD_RESTORE_ARCHIVED, null, extras)
+                .getInt(BookContract.EXTRA_RESTORED));
+    }
+
+    @Test
+    public void bookChangedWhileMovingStays() {
+        insertColdBooks(2);
+        long id = BOOKS + 1;
+
+        // A restock lands between copying the book to the archive and removing it from the
+        // books table. Triggers can't name the schema of the table they write; the archive
+        // has no books table, so the one of the main database is found.
+        SQLiteDatabase archive = archiveDatabase();
+        archive.execSQL("CREATE TEMP TRIGGER restock_while_archiving AFTER INSERT ON "
+                + archivedBooksTable() + " WHEN new." + BookEntry._ID + " = " + id
+                + " BEGIN UPDATE " + BookEntry.TABLE_NAME + " SET "
+                + BookEntry.COLUMN_BOOK_QUANTITY + " = 5 WHERE " + BookEntry._ID + " = new."
+                + BookEntry._ID + "; END;");
+        try {
+            // The other cold book still moves
+            assertEquals(1, archive());
+        } finally {
+            archive.execSQL("DROP TRIGGER temp.restock_while_archiving;");
+        }
+
+        // The restocked book wasn't removed, and its stale copy is hidden
+        assertEquals(BOOKS + 1, count(BookEntry.CONTENT_URI));
+        assertEquals(5, quantity(id));
+        assertEquals(2, archivedCopies());
+        assertEquals(BOOKS + 2, count(ALL_BOOKS_URI));
+
+        // The next run drops the copy
+        assertEquals(0, archive());
+        assertEquals(1, archivedCopies());
+        assertEquals(5, quantity(id));
+    }
+
+    /**
+     * Adds books that have nothing in stock and last sold long ago. The first one gets the
+     * _ID {@link #BOOKS} + 1.
+     */
+    private void insertColdBooks(int count) {
+        ContentValues[] books = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            books[i] = BenchmarkData.book(FIRST_COLD + i);
+            books[i].put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+            books[i].put(BookEntry.COLUMN_BOOK_LAST_SOLD_AT, 0L);
+        }
+        assertEquals(count, mProvider.bulkInsert(BookEntry.CONTENT_URI, books));
+    }
+
+    private int archive() {
+        return mProvider.call(BookContract.METHOD_ARCHIVE, null, null).getInt(BookContract.EXTRA_ARCHIVED);
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mProvider.query(uri, new String[]{BookEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int quantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String globalId(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ALL_BOOKS_URI, id),
+                new String[]{BookEntry.COLUMN_BOOK_GLOBAL_ID}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of books in the archive, including the copies hidden because the
+     * book is in the books table too.
+     */
+    private long archivedCopies() {
+        return DatabaseUtils.queryNumEntries(archiveDatabase(), archivedBooksTable());
+    }
+
+    /**
+     * Returns the provider's connection to the archive, the one the archiver writes through.
+     */
+    private SQLiteDatabase archiveDatabase() {
+        BookDbHelper dbHelper = ReflectionHelpers.getField(mProvider, "mDbHelper");
+        return ReflectionHelpers.callInstanceMethod(dbHelper, "getArchiveDatabase");
+    }
+
+    private static String archivedBooksTable() {
+        return ReflectionHelpers.getStaticField(BookDbHelper.class, "ARCHIVED_BOOKS_TABLE_NAME");
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that single-book lookups of the editor are answered from the cache of
+ * {@link BookProvider}, and that every write path drops the books it changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class BookCacheTest {
+
+    private static final int BOOKS = 100;
+
+    /**
+     * Columns EditorActivity loads
+     */
+    static final String[] EDITOR_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_AUTHOR_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_REORDER_LEVEL,
+            BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+    };
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+    }
+
+    @Test
+    public void secondLookupIsHit() {
+        assertEquals(9, quantity(10));
+        assertStats(0, 1, 0);
+
+        Cursor cursor = query(10, EDITOR_PROJECTION);
+        try {
+            assertTrue(cursor instanceof MatrixCursor);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Book 9", cursor.getString(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_NAME)));
+            assertEquals("Supplier 9", cursor.getString(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_SUPPLIER)));
+        } finally {
+            cursor.close();
+        }
+        assertStats(1, 1, 0);
+    }
+
+    @Test
+    public void otherColumnsBypassCache() {
+        Cursor cursor = query(10, new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_ISBN});
+        try {
+            assertFalse(cursor instanceof MatrixCursor);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(BenchmarkData.isbn(9), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+        assertStats(0, 0, 0);
+    }
+
+    @Test
+    public void missingBookIsNotCached() {
+        Cursor cursor = query(BOOKS + 1, EDITOR_PROJECTION);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        query(BOOKS + 1, EDITOR_PROJECTION).close();
+        assertStats(0, 2, 0);
+    }
+
+    @Test
+    public void updateOfBookDropsIt() {
+        assertEquals(9, quantity(10));
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 30);
+        assertEquals(1, mProvider.update(bookUri(10), values, null, null));
+
+        assertEquals(30, quantity(10));
+        assertStats(0, 2, 0);
+    }
+
+    @Test
+    public void updateThroughSelectionDropsBooks() {
+        assertEquals(9, quantity(10));
+        assertEquals(10, quantity(11));
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 30);
+        assertEquals(1, mProvider.update(BookEntry.CONTENT_URI, values, BookEntry._ID + " = ?",
+                new String[]{"10"}));
+
+        assertEquals(30, quantity(10));
+        // The other book stays cached
+        assertEquals(10, quantity(11));
+        assertStats(1, 3, 0);
+    }
+
+    @Test
+    public void saleDropsBook() {
+        assertEquals(9, quantity(10));
+        Bundle result = mProvider.call(BookContract.METHOD_SELL, "10", null);
+        assertTrue(result.getBoolean(BookContract.EXTRA_SOLD));
+
+        assertEquals(8, quantity(10));
+        assertStats(0, 2, 0);
+    }
+
+    @Test
+    public void deleteDropsBook() {
+        assertEquals(9, quantity(10));
+        assertEquals(1, mProvider.delete(bookUri(10), null, null));
+
+        Cursor cursor = query(10, EDITOR_PROJECTION);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedBooksAreEvicted() {
+        // The cache holds 64 books
+        for (int id = 1; id <= BOOKS; id++) {
+            quantity(id);
+        }
+        assertStats(0, BOOKS, BOOKS - 64);
+
+        // The last books read are still there, the first ones are not
+        quantity(BOOKS);
+        quantity(1);
+        assertStats(1, BOOKS + 1, BOOKS - 64 + 1);
+    }
+
+    private Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    private Cursor query(long id, String[] projection) {
+        return mProvider.query(bookUri(id), projection, null, null, null);
+    }
+
+    private int quantity(long id) {
+        Cursor cursor = query(id, EDITOR_PROJECTION);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_QUANTITY));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertStats(int hits, int misses, int evictions) {
+        Bundle stats = mProvider.call(BookContract.METHOD_CACHE_STATS, null, null);
+        assertEquals("hits", hits, stats.getInt(BookContract.EXTRA_CACHE_HITS));
+        assertEquals("misses", misses, stats.getInt(BookContract.EXTRA_CACHE_MISSES));
+        assertEquals("evictions", evictions, stats.getInt(BookContract.EXTRA_CACHE_EVICTIONS));
+    }
+}
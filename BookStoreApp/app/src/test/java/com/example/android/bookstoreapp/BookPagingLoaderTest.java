@@ -0,0 +1,246 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Loader;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that {@link BookPagingLoader} reads the list page by page, and that changes of single
+ * books are patched into the loaded pages with a query of that book alone.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class BookPagingLoaderTest {
+
+    private static final int BOOKS = 120;
+
+    /**
+     * Provider that counts the queries the loader sends it.
+     */
+    public static class CountingProvider extends BookProvider {
+
+        int mQueries;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder, CancellationSignal cancellationSignal) {
+            mQueries++;
+            return super.query(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        }
+    }
+
+    private CountingProvider mProvider;
+    private BookPagingLoader mLoader;
+    private List<Book> mBooks;
+    private int mDeliveries;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CountingProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY)
+                .get();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+
+        mLoader = new BookPagingLoader(RuntimeEnvironment.application);
+        mLoader.registerListener(0, new Loader.OnLoadCompleteListener<List<Book>>() {
+            @Override
+            public void onLoadComplete(Loader<List<Book>> loader, List<Book> books) {
+                mBooks = books;
+                mDeliveries++;
+            }
+        });
+        mLoader.startLoading();
+        runLoads();
+        mProvider.mQueries = 0;
+        mDeliveries = 0;
+    }
+
+    @After
+    public void tearDown() {
+        mLoader.reset();
+    }
+
+    @Test
+    public void loadsOnePageAtATime() {
+        assertIds(1, BookPagingLoader.PAGE_SIZE);
+
+        mLoader.loadMore();
+        runLoads();
+        assertIds(1, 2 * BookPagingLoader.PAGE_SIZE);
+        assertEquals(1, mProvider.mQueries);
+
+        // The last page is short, so the loader knows there are no more books
+        mLoader.loadMore();
+        runLoads();
+        assertIds(1, BOOKS);
+        mLoader.loadMore();
+        runLoads();
+        assertEquals(2, mProvider.mQueries);
+        assertEquals(2, mDeliveries);
+    }
+
+    @Test
+    public void saleIsPatchedIn() {
+        assertEquals(9, mBooks.get(9).getQuantity());
+        assertTrue(mProvider.call(BookContract.METHOD_SELL, "10", null).getBoolean(BookContract.EXTRA_SOLD));
+        runLoads();
+
+        assertIds(1, BookPagingLoader.PAGE_SIZE);
+        assertEquals(8, mBooks.get(9).getQuantity());
+        // Only the sold book was read again
+        assertEquals(1, mProvider.mQueries);
+    }
+
+    @Test
+    public void updateOfHiddenColumnIsIgnored() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, 3);
+        assertEquals(1, mProvider.update(bookUri(10), values, null, null));
+        runLoads();
+
+        assertEquals(0, mProvider.mQueries);
+        assertEquals(0, mDeliveries);
+    }
+
+    @Test
+    public void deletedBookIsDropped() {
+        assertEquals(1, mProvider.delete(bookUri(10), null, null));
+        runLoads();
+
+        assertEquals(BookPagingLoader.PAGE_SIZE - 1, mBooks.size());
+        assertEquals(11, mBooks.get(9).getId());
+        assertEquals(0, mProvider.mQueries);
+    }
+
+    @Test
+    public void newBookWaitsForItsPage() {
+        Uri uri = mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(BOOKS));
+        assertNotNull(uri);
+        runLoads();
+        // The new book is after the loaded page, so it comes with the pages still to load
+        assertEquals(0, mProvider.mQueries);
+        assertIds(1, BookPagingLoader.PAGE_SIZE);
+
+        mLoader.loadMore();
+        runLoads();
+        mLoader.loadMore();
+        runLoads();
+        assertIds(1, BOOKS + 1);
+
+        // Once every page is loaded, new books are read and appended
+        mProvider.mQueries = 0;
+        mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(BOOKS + 1));
+        runLoads();
+        assertIds(1, BOOKS + 2);
+        assertEquals(1, mProvider.mQueries);
+    }
+
+    @Test
+    public void changeOfManyBooksReloadsPages() {
+        mLoader.loadMore();
+        runLoads();
+        mProvider.mQueries = 0;
+
+        // More books than are announced one by one
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+        assertEquals(BOOKS, mProvider.update(BookEntry.CONTENT_URI, values, null, null));
+        runLoads();
+
+        assertIds(1, 2 * BookPagingLoader.PAGE_SIZE);
+        assertEquals(0, mBooks.get(9).getQuantity());
+        assertEquals(2, mProvider.mQueries);
+    }
+
+    @Test
+    public void saleHeavyWorkloadSavesQueries() {
+        mLoader.loadMore();
+        runLoads();
+        mProvider.mQueries = 0;
+        mDeliveries = 0;
+
+        // Sales spread over both pages. Books that are out of stock don't sell and don't
+        // change.
+        int attempts = 200;
+        int sales = 0;
+        for (int i = 0; i < attempts; i++) {
+            String id = String.valueOf(1 + i * 7 % (2 * BookPagingLoader.PAGE_SIZE));
+            if (mProvider.call(BookContract.METHOD_SELL, id, null).getBoolean(BookContract.EXTRA_SOLD)) {
+                sales++;
+            }
+            runLoads();
+        }
+
+        // Reloading the two pages after every sale would take two queries each
+        System.out.println(String.format(Locale.US,
+                "BookPagingLoaderTest: %d sales, %d queries patching, %d reloading the pages",
+                sales, mProvider.mQueries, 2 * sales));
+        assertEquals(sales, mProvider.mQueries);
+        assertEquals(sales, mDeliveries);
+        assertIds(1, 2 * BookPagingLoader.PAGE_SIZE);
+    }
+
+    @Test
+    public void saleAnnouncesBookAndColumns() {
+        ShadowContentResolver resolver = shadowOf(RuntimeEnvironment.application.getContentResolver());
+        resolver.getNotifiedUris().clear();
+        mProvider.call(BookContract.METHOD_SELL, "10", null);
+
+        assertEquals(1, resolver.getNotifiedUris().size());
+        Uri uri = resolver.getNotifiedUris().get(0).uri;
+        assertEquals(10, ContentUris.parseId(uri));
+        assertEquals(BookContract.OPERATION_UPDATE, uri.getQueryParameter(BookContract.QUERY_PARAMETER_OPERATION));
+        String columns = uri.getQueryParameter(BookContract.QUERY_PARAMETER_COLUMNS);
+        assertTrue(columns, columns.contains(BookEntry.COLUMN_BOOK_QUANTITY));
+    }
+
+    /**
+     * Runs the loads that are due and delivers their results.
+     */
+    private static void runLoads() {
+        Robolectric.flushBackgroundThreadScheduler();
+        ShadowLooper.idleMainLooper();
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Checks that the delivered books are the ones with the _IDs from first to last.
+     */
+    private void assertIds(long first, long last) {
+        assertEquals(last - first + 1, mBooks.size());
+        for (int i = 0; i < mBooks.size(); i++) {
+            assertEquals(first + i, mBooks.get(i).getId());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how inserts of books with an ISBN treat the books already there, archived or not.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class BookUpsertTest {
+
+    private static final Uri UPSERT_URI = BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookContract.QUERY_PARAMETER_UPSERT, "true")
+            .build();
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, 10);
+    }
+
+    @Test
+    public void upsertInBatchRestoresArchivedBook() throws Exception {
+        ContentValues cold = BenchmarkData.book(100);
+        cold.put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+        cold.put(BookEntry.COLUMN_BOOK_LAST_SOLD_AT, 0L);
+        long id = Long.parseLong(mProvider.insert(BookEntry.CONTENT_URI, cold).getLastPathSegment());
+        assertEquals(1, mProvider.call(BookContract.METHOD_ARCHIVE, null, null).getInt(BookContract.EXTRA_ARCHIVED));
+        assertEquals(0, countBooks(BookEntry.COLUMN_BOOK_ISBN + " = ?", BenchmarkData.isbn(100)));
+
+        // The batch runs in a transaction of its own, which the archived book comes back in
+        ContentValues restocked = BenchmarkData.book(100);
+        restocked.put(BookEntry.COLUMN_BOOK_QUANTITY, 7);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(UPSERT_URI).withValues(restocked).build());
+        mProvider.applyBatch(operations);
+
+        assertEquals(1, countBooks(BookEntry.COLUMN_BOOK_ISBN + " = ?", BenchmarkData.isbn(100)));
+        assertEquals(1, countBooks(BookEntry._ID + " = ? AND " + BookEntry.COLUMN_BOOK_QUANTITY + " = 7",
+                String.valueOf(id)));
+    }
+
+    @Test
+    public void bulkInsertSkipsTakenIsbns() {
+        // Books 5 to 9 are in already
+        ContentValues[] batch = new ContentValues[10];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = BenchmarkData.book(5 + i);
+        }
+
+        assertEquals(5, mProvider.bulkInsert(BookEntry.CONTENT_URI, batch));
+        assertEquals(15, countBooks(null));
+    }
+
+    @Test
+    public void bulkInsertRejectsInvalidBatch() {
+        ContentValues[] batch = {BenchmarkData.book(20), BenchmarkData.book(21), BenchmarkData.book(22)};
+        batch[1].remove(BookEntry.COLUMN_BOOK_NAME);
+        try {
+            mProvider.bulkInsert(BookEntry.CONTENT_URI, batch);
+            fail("Book without a name inserted");
+        } catch (IllegalArgumentException expected) {
+            // As insert() of the same book
+        }
+        assertEquals(10, countBooks(null));
+
+        batch[1] = BenchmarkData.book(21);
+        batch[1].put(BookEntry.COLUMN_BOOK_QUANTITY, -1);
+        try {
+            mProvider.bulkInsert(BookEntry.CONTENT_URI, batch);
+            fail("Book with a negative quantity inserted");
+        } catch (IllegalArgumentException expected) {
+            // As insert() of the same book
+        }
+        assertEquals(10, countBooks(null));
+    }
+
+    private int countBooks(String selection, String... selectionArgs) {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, selection,
+                selectionArgs.length == 0 ? null : selectionArgs, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
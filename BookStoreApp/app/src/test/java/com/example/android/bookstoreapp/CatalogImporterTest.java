@@ -0,0 +1,109 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+import com.example.android.bookstoreapp.data.CatalogImporter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks where {@link CatalogImporter} picks up an interrupted import.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class CatalogImporterTest {
+
+    private static final int ROWS = 3 * CatalogImporter.CHUNK_SIZE;
+
+    private BookProvider mProvider;
+    private CatalogImporter mImporter;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        mImporter = new CatalogImporter(RuntimeEnvironment.application, "supplier", CatalogImporter.Format.CSV);
+    }
+
+    @Test
+    public void resumesAfterLastChunk() throws IOException {
+        byte[] feed = feed("Book");
+        importFirstChunk(feed);
+
+        assertEquals(ROWS - CatalogImporter.CHUNK_SIZE, mImporter.importFrom(new ByteArrayInputStream(feed)));
+        assertEquals(ROWS, countBooks());
+
+        // The whole feed is in, so it is read from the start again
+        assertEquals(ROWS, mImporter.importFrom(new ByteArrayInputStream(feed)));
+        assertEquals(ROWS, countBooks());
+    }
+
+    @Test
+    public void startsOverOnNewVersionOfFeed() throws IOException {
+        importFirstChunk(feed("Book"));
+
+        assertEquals(ROWS, mImporter.importFrom(new ByteArrayInputStream(feed("Renamed book"))));
+    }
+
+    @Test
+    public void startsOverAfterClear() throws IOException {
+        byte[] feed = feed("Book");
+        importFirstChunk(feed);
+        mImporter.clearCheckpoint();
+
+        assertEquals(ROWS, mImporter.importFrom(new ByteArrayInputStream(feed)));
+    }
+
+    /**
+     * Imports the first chunk of the feed and stops.
+     */
+    private void importFirstChunk(byte[] feed) throws IOException {
+        final CancellationSignal signal = new CancellationSignal();
+        mImporter.setProgressListener(new CatalogImporter.ProgressListener() {
+            @Override
+            public void onProgress(long rowsImported, long bytesRead, float rowsPerSecond) {
+                signal.cancel();
+            }
+        });
+        try {
+            mImporter.importFrom(new ByteArrayInputStream(feed), signal);
+        } catch (OperationCanceledException expected) {
+            // Stopped after the first chunk
+        }
+        mImporter.setProgressListener(null);
+        assertEquals(CatalogImporter.CHUNK_SIZE, countBooks());
+    }
+
+    private static byte[] feed(String name) {
+        StringBuilder feed = new StringBuilder("name,price,quantity,isbn\n");
+        for (int i = 0; i < ROWS; i++) {
+            feed.append(name).append(' ').append(i).append(",4.50,3,").append(BenchmarkData.isbn(i)).append('\n');
+        }
+        return feed.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    private int countBooks() {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
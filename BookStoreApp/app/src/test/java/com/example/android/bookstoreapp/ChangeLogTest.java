@@ -0,0 +1,226 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.ChangeEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link BookProvider} logs the changes of the books while consumers are
+ * registered, and prunes the log as they acknowledge what they have read.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ChangeLogTest {
+
+    private static final int BOOKS = 10;
+
+    /**
+     * Operations of the log, in the order of their indexes in the changes read
+     */
+    private static final List<String> OPERATIONS = Arrays.asList(BookContract.OPERATION_INSERT,
+            BookContract.OPERATION_UPDATE, BookContract.OPERATION_DELETE);
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+    }
+
+    @Test
+    public void nothingIsLoggedWithoutConsumers() {
+        assertEquals(0, changes(-1).size());
+
+        mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(BOOKS));
+        mProvider.delete(bookUri(1), null, null);
+        assertEquals(0, changes(-1).size());
+    }
+
+    @Test
+    public void consumerReadsChangesInOrder() {
+        long since = register("a");
+        // The books inserted before aren't in the log
+        assertEquals(0, since);
+
+        mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(BOOKS));
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 999);
+        mProvider.update(bookUri(3), values, null, null);
+        mProvider.delete(bookUri(4), null, null);
+        mProvider.call(BookContract.METHOD_UNDO_DELETE, null, null);
+
+        List<long[]> changes = changes(since);
+        assertEquals(4, changes.size());
+        assertChange(changes.get(0), BOOKS + 1, BookContract.OPERATION_INSERT);
+        assertChange(changes.get(1), 3, BookContract.OPERATION_UPDATE);
+        assertChange(changes.get(2), 4, BookContract.OPERATION_DELETE);
+        // The book brought back by undo is inserted again
+        assertChange(changes.get(3), 4, BookContract.OPERATION_INSERT);
+        for (int i = 1; i < changes.size(); i++) {
+            assertTrue(changes.get(i)[0] > changes.get(i - 1)[0]);
+        }
+
+        // Reading after a change skips it and the ones before
+        assertEquals(2, changes(changes.get(1)[0]).size());
+    }
+
+    @Test
+    public void logIsPrunedOnceEveryConsumerAcknowledged() {
+        register("a");
+        register("b");
+        sell(2, 3, 4);
+        List<long[]> changes = changes(-1);
+        assertEquals(3, changes.size());
+        long last = changes.get(2)[0];
+
+        // b still needs every change
+        acknowledge("a", last);
+        assertEquals(3, changes(-1).size());
+
+        acknowledge("b", changes.get(0)[0]);
+        assertEquals(2, changes(-1).size());
+
+        acknowledge("b", last);
+        assertEquals(0, changes(-1).size());
+
+        // An older acknowledgement doesn't move a consumer back
+        acknowledge("a", changes.get(0)[0]);
+        assertEquals(last, register("a"));
+    }
+
+    @Test
+    public void unregisterPrunesChangesOnlyItWaitedFor() {
+        register("a");
+        register("b");
+        sell(2, 3);
+        acknowledge("a", changes(-1).get(1)[0]);
+
+        unregister("b");
+        assertEquals(0, changes(-1).size());
+
+        // With no consumers left, changes are no longer logged
+        unregister("a");
+        sell(4);
+        assertEquals(0, changes(-1).size());
+    }
+
+    @Test
+    public void sequenceCarriesOnAfterPruning() {
+        register("a");
+        sell(2);
+        long first = changes(-1).get(0)[0];
+        acknowledge("a", first);
+        assertEquals(0, changes(-1).size());
+
+        sell(3);
+        List<long[]> changes = changes(first);
+        assertEquals(1, changes.size());
+        assertTrue(changes.get(0)[0] > first);
+
+        // A known consumer goes on after its acknowledgement, a new one after the last change
+        assertEquals(first, register("a"));
+        assertEquals(changes.get(0)[0], register("c"));
+        assertEquals(0, changes(changes.get(0)[0]).size());
+    }
+
+    @Test
+    public void unknownConsumerIsRejected() {
+        register("a");
+        try {
+            acknowledge("b", 1);
+            fail("Unknown consumer acknowledged changes");
+        } catch (IllegalArgumentException expected) {
+            // Nothing changed
+        }
+        try {
+            register("");
+            fail("Consumer without a name registered");
+        } catch (IllegalArgumentException expected) {
+            // Nothing changed
+        }
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    private long register(String name) {
+        return mProvider.call(BookContract.METHOD_REGISTER_CHANGE_CONSUMER, name, null)
+                .getLong(BookContract.EXTRA_SEQUENCE);
+    }
+
+    private void acknowledge(String name, long sequence) {
+        Bundle extras = new Bundle();
+        extras.putLong(BookContract.EXTRA_SEQUENCE, sequence);
+        mProvider.call(BookContract.METHOD_ACKNOWLEDGE_CHANGES, name, extras);
+    }
+
+    private void unregister(String name) {
+        mProvider.call(BookContract.METHOD_UNREGISTER_CHANGE_CONSUMER, name, null);
+    }
+
+    /**
+     * Sells one copy of each of the books with the given _IDs. None of them is out of stock.
+     */
+    private void sell(long... ids) {
+        for (long id : ids) {
+            assertTrue(mProvider.call(BookContract.METHOD_SELL, String.valueOf(id), null)
+                    .getBoolean(BookContract.EXTRA_SOLD));
+        }
+    }
+
+    private static void assertChange(long[] change, long bookId, String operation) {
+        assertEquals(bookId, change[1]);
+        assertEquals(operation, OPERATIONS.get((int) change[2]));
+    }
+
+    /**
+     * Returns the changes logged after a sequence number, or all of them for -1, each as
+     * sequence number, book _ID and the index of its operation in {@link #OPERATIONS}.
+     */
+    private List<long[]> changes(long since) {
+        Uri uri = ChangeEntry.CONTENT_URI;
+        if (since != -1) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(BookContract.QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .build();
+        }
+        Cursor cursor = mProvider.query(uri, new String[]{ChangeEntry._ID, ChangeEntry.COLUMN_BOOK_ID,
+                ChangeEntry.COLUMN_OPERATION}, null, null, null);
+        List<long[]> changes = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                int operation = OPERATIONS.indexOf(cursor.getString(2));
+                assertTrue(cursor.getString(2), operation >= 0);
+                changes.add(new long[]{cursor.getLong(0), cursor.getLong(1), operation});
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+}
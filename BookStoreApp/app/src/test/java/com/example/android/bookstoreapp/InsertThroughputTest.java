@@ -0,0 +1,137 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Compares the rows per second of inserting books one by one with inserting them in a single
+ * transaction, through bulkInsert() and applyBatch().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class InsertThroughputTest {
+
+    private static final int ROWS = 2000;
+
+    /**
+     * How many times faster than single inserts a batch has to be at least. Batches save a
+     * commit per row, which is far more than this on a device and on the host.
+     */
+    private static final double MIN_SPEEDUP = 2;
+
+    private BookProvider mProvider;
+    private ShadowContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        mResolver = shadowOf(RuntimeEnvironment.application.getContentResolver());
+
+        // Warm up the JIT and the statements of every path on books that are deleted again
+        insertOneByOne(0, 200);
+        mProvider.bulkInsert(BookEntry.CONTENT_URI, books(200, 200));
+        mProvider.delete(BookEntry.CONTENT_URI, null, null);
+        mResolver.getNotifiedUris().clear();
+    }
+
+    @Test
+    public void bulkInsertIsFasterThanSingleInserts() {
+        double single = rowsPerSecond(insertOneByOne(1000, ROWS));
+        int notifications = mResolver.getNotifiedUris().size();
+
+        ContentValues[] batch = books(1000 + ROWS, ROWS);
+        long start = System.nanoTime();
+        assertEquals(ROWS, mProvider.bulkInsert(BookEntry.CONTENT_URI, batch));
+        double bulk = rowsPerSecond(System.nanoTime() - start);
+
+        report("bulk_insert", single, bulk);
+        assertEquals(2 * ROWS, countBooks());
+        assertEquals(ROWS, notifications);
+        // The whole batch is announced once
+        assertEquals(ROWS + 1, mResolver.getNotifiedUris().size());
+        assertTrue("bulkInsert() ran at " + bulk + " rows/s, single inserts at " + single,
+                bulk >= MIN_SPEEDUP * single);
+    }
+
+    @Test
+    public void applyBatchIsFasterThanSingleInserts() throws Exception {
+        double single = rowsPerSecond(insertOneByOne(1000, ROWS));
+        mResolver.getNotifiedUris().clear();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues book : books(1000 + ROWS, ROWS)) {
+            operations.add(ContentProviderOperation.newInsert(BookEntry.CONTENT_URI).withValues(book).build());
+        }
+        long start = System.nanoTime();
+        assertEquals(ROWS, mProvider.applyBatch(operations).length);
+        double batch = rowsPerSecond(System.nanoTime() - start);
+
+        report("apply_batch", single, batch);
+        assertEquals(2 * ROWS, countBooks());
+        List<ShadowContentResolver.NotifiedUri> notified = mResolver.getNotifiedUris();
+        assertEquals(1, notified.size());
+        assertEquals(BookEntry.CONTENT_URI, notified.get(0).uri);
+        assertTrue("applyBatch() ran at " + batch + " rows/s, single inserts at " + single,
+                batch >= MIN_SPEEDUP * single);
+    }
+
+    /**
+     * Inserts the books one insert() at a time and returns how long it took in nanoseconds.
+     */
+    private long insertOneByOne(int start, int count) {
+        ContentValues[] books = books(start, count);
+        long begin = System.nanoTime();
+        for (ContentValues book : books) {
+            mProvider.insert(BookEntry.CONTENT_URI, book);
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static ContentValues[] books(int start, int count) {
+        ContentValues[] books = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            books[i] = BenchmarkData.book(start + i);
+        }
+        return books;
+    }
+
+    private static double rowsPerSecond(long nanos) {
+        return ROWS * 1e9 / nanos;
+    }
+
+    private static void report(String name, double single, double batch) {
+        System.out.println(String.format(Locale.US, "InsertThroughputTest: %s %.0f rows/s, single inserts %.0f rows/s",
+                name, batch, single));
+    }
+
+    private int countBooks() {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time {@link BookPagingLoader} takes to show the first page and to load the whole inventory,
+ * on stores of 1k, 10k and 100k books.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ListLoadBenchmark {
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("ListLoadBenchmark");
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void load1k() {
+        measure(1000, 20);
+    }
+
+    @Test
+    public void load10k() {
+        measure(10000, 10);
+    }
+
+    @Test
+    public void load100k() {
+        measure(100000, 3);
+    }
+
+    private void measure(final int rows, int iterations) {
+        BenchmarkData.insertBooks(mProvider, 0, rows);
+
+        sRecorder.measure("first_page", rows, 20, 200, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                new BookPagingLoader(RuntimeEnvironment.application).loadInBackground();
+            }
+        });
+
+        sRecorder.measure("full_list", rows, 1, iterations, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                BookPagingLoader loader = new BookPagingLoader(RuntimeEnvironment.application);
+                loader.requestAllPages();
+                List<Book> books = loader.loadInBackground();
+                assertEquals(rows, books.size());
+            }
+        });
+    }
+}
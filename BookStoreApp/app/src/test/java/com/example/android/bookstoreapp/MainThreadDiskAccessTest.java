@@ -0,0 +1,169 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.StrictMode;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+import com.example.android.bookstoreapp.data.BookRepository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the writes of the activities under a StrictMode policy that kills the main thread on
+ * any disk access, so a write that reaches the database from the main thread fails the test.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class MainThreadDiskAccessTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    /**
+     * Provider that reports its database work to StrictMode, as the file system of a device
+     * does. On the JVM, SQLite reads and writes files without StrictMode noticing.
+     */
+    public static class DiskAccessReportingProvider extends BookProvider {
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            onReadFromDisk();
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            onWriteToDisk();
+            return super.insert(uri, values);
+        }
+
+        @Override
+        public int bulkInsert(Uri uri, ContentValues[] values) {
+            onWriteToDisk();
+            return super.bulkInsert(uri, values);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            onWriteToDisk();
+            return super.update(uri, values, selection, selectionArgs);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            onWriteToDisk();
+            return super.delete(uri, selection, selectionArgs);
+        }
+
+        @Override
+        public Bundle call(String method, String arg, Bundle extras) {
+            onWriteToDisk();
+            return super.call(method, arg, extras);
+        }
+
+        private static void onReadFromDisk() {
+            Object policy = ReflectionHelpers.callStaticMethod(blockGuard(), "getThreadPolicy");
+            ReflectionHelpers.callInstanceMethod(policy, "onReadFromDisk");
+        }
+
+        private static void onWriteToDisk() {
+            Object policy = ReflectionHelpers.callStaticMethod(blockGuard(), "getThreadPolicy");
+            ReflectionHelpers.callInstanceMethod(policy, "onWriteToDisk");
+        }
+
+        /**
+         * Returns the class StrictMode hooks into, which is not part of the public SDK.
+         */
+        private static Class<?> blockGuard() {
+            try {
+                return Class.forName("dalvik.system.BlockGuard");
+            } catch (ClassNotFoundException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private StrictMode.ThreadPolicy mOldPolicy;
+    private ContentResolver mResolver;
+    private BookRepository mRepository;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(DiskAccessReportingProvider.class).create(BookContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mRepository = BookRepository.getInstance(RuntimeEnvironment.application);
+
+        mOldPolicy = StrictMode.getThreadPolicy();
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .penaltyDeath()
+                .build());
+    }
+
+    @After
+    public void tearDown() {
+        StrictMode.setThreadPolicy(mOldPolicy);
+        // Every test gets its own application, and so its own repository
+        ReflectionHelpers.setStaticField(BookRepository.class, "sInstance", null);
+    }
+
+    @Test
+    public void writeOnMainThreadFails() {
+        try {
+            mResolver.insert(BookEntry.CONTENT_URI, BenchmarkData.book(1));
+            fail("Insert on the main thread went unnoticed");
+        } catch (RuntimeException expected) {
+            // Thrown by the death penalty of StrictMode
+            assertTrue(expected.toString(), expected.getClass().getName().contains("StrictMode"));
+        }
+    }
+
+    @Test
+    public void repositoryWritesOffMainThread() throws Exception {
+        final AtomicReference<Uri> inserted = new AtomicReference<>();
+        mRepository.insert(BookEntry.CONTENT_URI, BenchmarkData.book(1), new BookRepository.Callback<Uri>() {
+            @Override
+            public void onResult(Uri result) {
+                inserted.set(result);
+            }
+        }).get(TIMEOUT_S, TimeUnit.SECONDS);
+        // The result comes back on the main thread
+        ShadowLooper.idleMainLooper();
+        assertNotNull(inserted.get());
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 5);
+        assertEquals(1, mRepository.update(inserted.get(), values, null).get(TIMEOUT_S, TimeUnit.SECONDS).intValue());
+        assertEquals(1, mRepository.delete(inserted.get(), null).get(TIMEOUT_S, TimeUnit.SECONDS).intValue());
+        assertEquals(1, mRepository.undoDelete(null).get(TIMEOUT_S, TimeUnit.SECONDS).intValue());
+        assertEquals(0, mRepository.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1000), null)
+                .get(TIMEOUT_S, TimeUnit.SECONDS).intValue());
+    }
+}
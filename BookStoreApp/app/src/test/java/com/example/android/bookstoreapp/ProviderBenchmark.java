@@ -0,0 +1,261 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+/**
+ * Latency and throughput of the {@link BookProvider} operations, on a store of
+ * {@link #ROWS} books. Runs on the host SQLite of Robolectric, so the numbers are for spotting
+ * regressions between runs, not for predicting times on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ProviderBenchmark {
+
+    private static final int ROWS = 10000;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Number of books the hot lookups cycle through, fewer than the book cache holds
+     */
+    private static final int HOT_BOOKS = 16;
+
+    private static final String[] LIST_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY
+    };
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("ProviderBenchmark");
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, ROWS);
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void queryById() {
+        sRecorder.measure("query_by_id", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                // Spread over the store, so the book cache rarely answers
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + (iteration * 7919L) % ROWS);
+                readAll(mProvider.query(uri, LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryHotBookCached() {
+        sRecorder.measure("query_hot_book_cached", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                // A few books opened in the editor again and again, all in the book cache
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration % HOT_BOOKS);
+                readAll(mProvider.query(uri, BookCacheTest.EDITOR_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryHotBookUncached() {
+        // The editor columns and one the cache doesn't hold, so every lookup reaches SQLite
+        final String[] projection = Arrays.copyOf(BookCacheTest.EDITOR_PROJECTION,
+                BookCacheTest.EDITOR_PROJECTION.length + 1);
+        projection[projection.length - 1] = BookEntry.COLUMN_BOOK_ISBN;
+        sRecorder.measure("query_hot_book_uncached", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration % HOT_BOOKS);
+                readAll(mProvider.query(uri, projection, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryByIsbn() {
+        sRecorder.measure("query_by_isbn", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                Uri uri = Uri.withAppendedPath(BookEntry.CONTENT_ISBN_URI,
+                        BenchmarkData.isbn((int) ((iteration * 7919L) % ROWS)));
+                readAll(mProvider.query(uri, LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void queryPage() {
+        sRecorder.measure("query_page", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BookContract.QUERY_PARAMETER_AFTER_ID,
+                                String.valueOf((iteration * 50L) % ROWS))
+                        .appendQueryParameter(BookContract.QUERY_PARAMETER_LIMIT,
+                                String.valueOf(BookPagingLoader.PAGE_SIZE))
+                        .build();
+                readAll(mProvider.query(uri, LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void search() {
+        sRecorder.measure("search", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                Uri uri = Uri.withAppendedPath(BookEntry.CONTENT_SEARCH_URI, "Author " + iteration % 500);
+                readAll(mProvider.query(uri, LIST_PROJECTION, null, null, null));
+            }
+        });
+    }
+
+    @Test
+    public void insert() {
+        sRecorder.measure("insert", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(ROWS + iteration));
+            }
+        });
+    }
+
+    @Test
+    public void bulkInsert() {
+        final int batchSize = 1000;
+        sRecorder.measure("bulk_insert_1000", ROWS, 5, 20, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues[] batch = new ContentValues[batchSize];
+                for (int i = 0; i < batchSize; i++) {
+                    batch[i] = BenchmarkData.book(ROWS + iteration * batchSize + i);
+                }
+                mProvider.bulkInsert(BookEntry.CONTENT_URI, batch);
+            }
+        });
+    }
+
+    @Test
+    public void bulkUpsert() {
+        // Loads books that are already in the store again, as a feed loaded twice does
+        final int batchSize = 1000;
+        final Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_UPSERT, "true")
+                .build();
+        sRecorder.measure("bulk_upsert_1000", ROWS, 5, 20, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues[] batch = new ContentValues[batchSize];
+                for (int i = 0; i < batchSize; i++) {
+                    batch[i] = BenchmarkData.book((iteration * batchSize + i) % ROWS);
+                }
+                mProvider.bulkInsert(uri, batch);
+            }
+        });
+    }
+
+    @Test
+    public void updateQuantity() {
+        sRecorder.measure("update_quantity", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_BOOK_QUANTITY, iteration % 30);
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration % ROWS);
+                mProvider.update(uri, values, null, null);
+            }
+        });
+    }
+
+    @Test
+    public void updateQuantityAndReorderLevel() {
+        // Same write as updateQuantity, but through the general update path
+        sRecorder.measure("update_quantity_and_reorder_level", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_BOOK_QUANTITY, iteration % 30);
+                values.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, 2);
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration % ROWS);
+                mProvider.update(uri, values, null, null);
+            }
+        });
+    }
+
+    @Test
+    public void sell() {
+        sRecorder.measure("sell", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                // Every 20th book has no copies left, so a few sales are refused
+                mProvider.call(BookContract.METHOD_SELL, String.valueOf(1 + iteration % ROWS), null);
+            }
+        });
+    }
+
+    @Test
+    public void updateSupplier() {
+        sRecorder.measure("update_supplier", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_BOOK_SUPPLIER, "Supplier " + iteration % 60);
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration % ROWS);
+                mProvider.update(uri, values, null, null);
+            }
+        });
+    }
+
+    @Test
+    public void delete() {
+        sRecorder.measure("delete", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + iteration);
+                mProvider.delete(uri, null, null);
+            }
+        });
+    }
+
+    /**
+     * Steps through every row, since SQLite only does the work of a query when its rows are
+     * read.
+     */
+    static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
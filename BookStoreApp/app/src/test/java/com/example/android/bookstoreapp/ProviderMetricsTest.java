@@ -0,0 +1,230 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the counters {@link BookProvider} keeps of the calls it serves, read through the
+ * metrics provider method.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ProviderMetricsTest {
+
+    private static final int BOOKS = 200;
+
+    private static final String BOOKS_PATTERN = BookContract.PATH_BOOKS;
+    private static final String BOOK_ID_PATTERN = BookContract.PATH_BOOKS + "/#";
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+        metrics(true, true);
+    }
+
+    @Test
+    public void writesAreCounted() {
+        mProvider.insert(BookEntry.CONTENT_URI, BenchmarkData.book(BOOKS));
+        ContentValues nameless = BenchmarkData.book(BOOKS + 1);
+        nameless.remove(BookEntry.COLUMN_BOOK_NAME);
+        try {
+            mProvider.insert(BookEntry.CONTENT_URI, nameless);
+            fail("Book without a name inserted");
+        } catch (IllegalArgumentException expected) {
+            // Counted as an error
+        }
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 3);
+        mProvider.update(bookUri(1), values, null, null);
+        mProvider.delete(BookEntry.CONTENT_URI, BookEntry.COLUMN_BOOK_QUANTITY + " = ?", new String[]{"0"});
+
+        Bundle result = metrics(false, false);
+        Bundle insert = metric(result, "insert", BOOKS_PATTERN);
+        assertEquals(2, insert.getLong(BookContract.EXTRA_COUNT));
+        assertEquals(1, insert.getLong(BookContract.EXTRA_ERRORS));
+        assertEquals(1, insert.getLong(BookContract.EXTRA_ROWS));
+        assertEquals(2, sum(insert.getLongArray(BookContract.EXTRA_HISTOGRAM)));
+
+        Bundle update = metric(result, "update", BOOK_ID_PATTERN);
+        assertEquals(1, update.getLong(BookContract.EXTRA_COUNT));
+        assertEquals(1, update.getLong(BookContract.EXTRA_ROWS));
+
+        // Books 0, 20, 40 and so on up to the new book 200 have no copies, except book 0,
+        // which was just restocked
+        Bundle delete = metric(result, "delete", BOOKS_PATTERN);
+        assertEquals(BOOKS / 20, delete.getLong(BookContract.EXTRA_ROWS));
+
+        assertNull(metric(result, "update", BOOKS_PATTERN));
+    }
+
+    @Test
+    public void queriesAreLeftAloneUntilMetricsAreRead() {
+        BookProvider provider = BenchmarkData.setupProvider();
+        Cursor cursor = provider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        try {
+            // The cursor of SQLite itself, nothing wraps it
+            assertFalse(cursor instanceof CursorWrapper);
+            assertTrue(cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+
+        Bundle extras = new Bundle();
+        assertNull(metric(provider.call(BookContract.METHOD_METRICS, null, extras), "query", BOOKS_PATTERN));
+        cursor = provider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        assertTrue(cursor instanceof CursorWrapper);
+        cursor.close();
+        Bundle query = metric(provider.call(BookContract.METHOD_METRICS, null, extras), "query", BOOKS_PATTERN);
+        assertEquals(1, query.getLong(BookContract.EXTRA_COUNT));
+    }
+
+    @Test
+    public void queryIsRecordedWhenClosed() {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertNull(metric(metrics(false, false), "query", BOOKS_PATTERN));
+
+        cursor.close();
+        Bundle query = metric(metrics(false, false), "query", BOOKS_PATTERN);
+        assertEquals(1, query.getLong(BookContract.EXTRA_COUNT));
+        assertEquals(BOOKS, query.getLong(BookContract.EXTRA_ROWS));
+    }
+
+    @Test
+    public void unreadQueryLoadsNoRows() {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        cursor.close();
+
+        // Recording the query didn't make SQLite run it
+        Cursor wrapped = ((CursorWrapper) cursor).getWrappedCursor();
+        assertTrue(wrapped instanceof AbstractWindowedCursor);
+        assertFalse(((AbstractWindowedCursor) wrapped).hasWindow());
+        Bundle query = metric(metrics(false, false), "query", BOOKS_PATTERN);
+        assertEquals(1, query.getLong(BookContract.EXTRA_COUNT));
+        assertEquals(0, query.getLong(BookContract.EXTRA_ROWS));
+    }
+
+    @Test
+    public void pageCountsItsRows() {
+        Uri uri = BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_AFTER_ID, "10")
+                .appendQueryParameter(BookContract.QUERY_PARAMETER_LIMIT, "25")
+                .build();
+        ProviderBenchmark.readAll(mProvider.query(uri, new String[]{BookEntry._ID}, null, null, null));
+        ProviderBenchmark.readAll(mProvider.query(bookUri(5), new String[]{BookEntry._ID}, null, null, null));
+
+        Bundle result = metrics(false, false);
+        assertEquals(25, metric(result, "query", BOOKS_PATTERN).getLong(BookContract.EXTRA_ROWS));
+        assertEquals(1, metric(result, "query", BOOK_ID_PATTERN).getLong(BookContract.EXTRA_ROWS));
+    }
+
+    @Test
+    public void cancelledQueryIsError() {
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null, signal);
+        signal.cancel();
+        try {
+            cursor.getCount();
+            fail("Cancelled query read");
+        } catch (OperationCanceledException expected) {
+            // The load stopped
+        } finally {
+            cursor.close();
+        }
+
+        Bundle query = metric(metrics(false, false), "query", BOOKS_PATTERN);
+        assertEquals(1, query.getLong(BookContract.EXTRA_COUNT));
+        assertEquals(1, query.getLong(BookContract.EXTRA_ERRORS));
+        assertEquals(0, query.getLong(BookContract.EXTRA_ROWS));
+    }
+
+    @Test
+    public void slowQueryIsKeptWithItsArguments() {
+        // A join of the books with themselves, far slower than the slow call threshold
+        String selection = "(SELECT COUNT(*) FROM " + BookEntry.TABLE_NAME + " a, " + BookEntry.TABLE_NAME
+                + " b, " + BookEntry.TABLE_NAME + " c WHERE a." + BookEntry.COLUMN_BOOK_QUANTITY + " + b."
+                + BookEntry.COLUMN_BOOK_QUANTITY + " + c." + BookEntry.COLUMN_BOOK_QUANTITY + " > ?) >= 0";
+        String sortOrder = BookEntry.COLUMN_BOOK_NAME + " DESC";
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, selection,
+                new String[]{"30"}, sortOrder);
+        ProviderBenchmark.readAll(cursor);
+
+        Bundle result = metrics(true, true);
+        ArrayList<Bundle> slowCalls = result.getParcelableArrayList(BookContract.EXTRA_SLOW_CALLS);
+        assertEquals(1, slowCalls.size());
+        Bundle call = slowCalls.get(0);
+        assertEquals("query", call.getString(BookContract.EXTRA_OPERATION));
+        assertEquals(BookEntry.CONTENT_URI.toString(), call.getString(BookContract.EXTRA_URI));
+        assertEquals(selection, call.getString(BookContract.EXTRA_SELECTION));
+        assertEquals(sortOrder, call.getString(BookContract.EXTRA_SORT_ORDER));
+        assertTrue(call.getLong(BookContract.EXTRA_DURATION_US) >= 50000);
+
+        // Read with a reset, so nothing is left
+        result = metrics(true, false);
+        assertTrue(result.getParcelableArrayList(BookContract.EXTRA_METRICS).isEmpty());
+        assertTrue(result.getParcelableArrayList(BookContract.EXTRA_SLOW_CALLS).isEmpty());
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    private Bundle metrics(boolean includeSlowCalls, boolean reset) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(BookContract.EXTRA_INCLUDE_SLOW_CALLS, includeSlowCalls);
+        extras.putBoolean(BookContract.EXTRA_RESET, reset);
+        return mProvider.call(BookContract.METHOD_METRICS, null, extras);
+    }
+
+    /**
+     * Returns the metrics of an operation on a URI pattern, or null if it wasn't called.
+     */
+    private static Bundle metric(Bundle result, String operation, String uriPattern) {
+        ArrayList<Bundle> metrics = result.getParcelableArrayList(BookContract.EXTRA_METRICS);
+        for (Bundle metric : metrics) {
+            if (operation.equals(metric.getString(BookContract.EXTRA_OPERATION))
+                    && uriPattern.equals(metric.getString(BookContract.EXTRA_URI))) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
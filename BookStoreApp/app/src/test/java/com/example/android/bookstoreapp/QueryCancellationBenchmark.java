@@ -0,0 +1,75 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time the list query takes to run to the end, and to stop once it is cancelled, on a store
+ * of {@link #ROWS} books. The query sorts the whole store on a column without an index, so it
+ * would run for seconds to the end.
+ * <p>
+ * Robolectric's SQLite only cancels a statement once it has finished, so the cancelled scan
+ * runs through sqlite4java, as in {@link QueryCancellationTest#cancelStopsRunningScan()}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class QueryCancellationBenchmark {
+
+    private static final int ROWS = QueryCancellationTest.SCAN_ROWS;
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("QueryCancellationBenchmark");
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void cancelScan() throws Exception {
+        final File database = QueryCancellationTest.seedScanStore(ROWS);
+
+        sRecorder.measure("full_scan", ROWS, 0, 3, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ProviderBenchmark.readAll(mProvider.query(BookEntry.CONTENT_URI,
+                        QueryCancellationTest.LIST_PROJECTION, null, null, QueryCancellationTest.UNINDEXED_SORT_ORDER));
+            }
+        });
+
+        // Includes the time before the cancel, QueryCancellationTest.CANCEL_AFTER_MS
+        sRecorder.measure("cancelled_scan", ROWS, 1, 10, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                long latencyMs;
+                try {
+                    latencyMs = QueryCancellationTest.scanUntilCancelled(database);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                assertTrue("Cancelled scan ran for " + latencyMs + " ms after the cancel",
+                        latencyMs < QueryCancellationTest.MAX_CANCEL_LATENCY_MS);
+            }
+        });
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.StatsEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+import com.example.android.bookstoreapp.data.BookProvider;
+import com.example.android.bookstoreapp.data.CatalogImporter;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteInterruptedException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a cancelled query, load or import stops instead of running to the end.
+ * <p>
+ * Robolectric runs every SQLite call on a single thread and queues the cancel of a statement
+ * behind the statement itself, so a query through the provider always runs to the end on the
+ * host once it has started. {@link #cancelStopsRunningScan()} therefore scans through
+ * sqlite4java, the SQLite build Robolectric wraps, and cancels it the way the framework's
+ * SQLiteConnection does: by interrupting SQLite from the thread that cancels the signal.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class QueryCancellationTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    /**
+     * Number of books of the store the cancelled scan runs over
+     */
+    static final int SCAN_ROWS = 1000000;
+
+    /**
+     * Time after the scan starts when it is cancelled
+     */
+    static final long CANCEL_AFTER_MS = 50;
+
+    /**
+     * Longest time a cancelled scan may keep running
+     */
+    static final long MAX_CANCEL_LATENCY_MS = 500;
+
+    /**
+     * Columns of the list of books
+     */
+    static final String[] LIST_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY
+    };
+
+    /**
+     * Sort order no index can serve, so the first row only comes out after every row is read
+     */
+    static final String UNINDEXED_SORT_ORDER = BookEntry.COLUMN_BOOK_PRICE + " * "
+            + BookEntry.COLUMN_BOOK_QUANTITY + " DESC";
+
+    /**
+     * Provider whose book queries wait until the test lets them go on
+     */
+    public static class BlockingBookProvider extends BookProvider {
+
+        final CountDownLatch mQueryStarted = new CountDownLatch(1);
+        final CountDownLatch mProceed = new CountDownLatch(1);
+        volatile CancellationSignal mSignal;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder, CancellationSignal cancellationSignal) {
+            mSignal = cancellationSignal;
+            mQueryStarted.countDown();
+            try {
+                mProceed.await(TIMEOUT_S, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        }
+    }
+
+    @Test
+    public void cancelledSignalStopsEveryQuery() {
+        BookProvider provider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(provider, 0, 100);
+
+        // The signal reaches SQLite, or the cache, for every kind of query
+        Uri[] uris = {
+                BookEntry.CONTENT_URI,
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1),
+                Uri.withAppendedPath(BookEntry.CONTENT_ISBN_URI, BenchmarkData.isbn(1)),
+                Uri.withAppendedPath(BookEntry.CONTENT_SEARCH_URI, "Author 1"),
+                StatsEntry.CONTENT_URI
+        };
+        for (Uri uri : uris) {
+            // Once without the signal, so a single book is in the cache
+            ProviderBenchmark.readAll(provider.query(uri, null, null, null, null));
+
+            CancellationSignal signal = new CancellationSignal();
+            signal.cancel();
+            try {
+                ProviderBenchmark.readAll(provider.query(uri, null, null, null, null, signal));
+                fail("Cancelled query of " + uri + " ran");
+            } catch (OperationCanceledException expected) {
+                // The query didn't start
+            }
+        }
+    }
+
+    @Test
+    public void loaderCancelAbortsQuery() throws Exception {
+        BlockingBookProvider provider = Robolectric.buildContentProvider(BlockingBookProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY)
+                .get();
+        final BookPagingLoader loader = new BookPagingLoader(RuntimeEnvironment.application);
+
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread load = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loader.loadInBackground();
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        load.start();
+
+        // Cancel while the query of the first page is running
+        assertTrue(provider.mQueryStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+        loader.cancelLoadInBackground();
+        provider.mProceed.countDown();
+        load.join(TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+
+        assertTrue("The query didn't get the signal of the load", provider.mSignal.isCanceled());
+        assertTrue("The load ended with " + thrown.get(), thrown.get() instanceof OperationCanceledException);
+    }
+
+    @Test
+    public void importStopsBetweenChunks() throws Exception {
+        BookProvider provider = BenchmarkData.setupProvider();
+        int rows = 4 * CatalogImporter.CHUNK_SIZE;
+        StringBuilder feed = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            feed.append("{\"name\":\"Book ").append(i).append("\",\"price\":\"9.99\",\"isbn\":\"")
+                    .append(BenchmarkData.isbn(i)).append("\"}\n");
+        }
+        byte[] bytes = feed.toString().getBytes(Charset.forName("UTF-8"));
+
+        // Cancel once the first chunk is in
+        final CancellationSignal signal = new CancellationSignal();
+        CatalogImporter importer = new CatalogImporter(RuntimeEnvironment.application, "feed",
+                CatalogImporter.Format.JSON);
+        importer.setProgressListener(new CatalogImporter.ProgressListener() {
+            @Override
+            public void onProgress(long rowsImported, long bytesRead, float rowsPerSecond) {
+                signal.cancel();
+            }
+        });
+        try {
+            importer.importFrom(new ByteArrayInputStream(bytes), signal);
+            fail("Cancelled import ran to the end");
+        } catch (OperationCanceledException expected) {
+            // The import stopped before the second chunk
+        }
+        assertEquals(CatalogImporter.CHUNK_SIZE, countBooks(provider));
+
+        // The next import goes on after the first chunk
+        importer.setProgressListener(null);
+        assertEquals(rows - CatalogImporter.CHUNK_SIZE, importer.importFrom(new ByteArrayInputStream(bytes)));
+        assertEquals(rows, countBooks(provider));
+    }
+
+    @Test
+    public void cancelStopsRunningScan() throws Exception {
+        File database = seedScanStore(SCAN_ROWS);
+        long latencyMs = scanUntilCancelled(database);
+        assertTrue("Cancelled scan ran for " + latencyMs + " ms after the cancel",
+                latencyMs < MAX_CANCEL_LATENCY_MS);
+    }
+
+    /**
+     * Creates the store of the provider with the given number of books, and returns its file.
+     * The books go in with SQL rather than through the provider, so filling a million of them
+     * takes seconds; the triggers of the search index and the statistics still run.
+     */
+    static File seedScanStore(int rows) {
+        BookDbHelper dbHelper = new BookDbHelper(RuntimeEnvironment.application);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            db.execSQL("CREATE TEMP TABLE digits(d INTEGER PRIMARY KEY);");
+            for (int d = 0; d < 1000; d++) {
+                db.execSQL("INSERT INTO digits VALUES (" + d + ");");
+            }
+            db.execSQL("INSERT INTO " + BookEntry.TABLE_NAME + "(" + BookEntry.COLUMN_BOOK_NAME + ", "
+                    + BookEntry.COLUMN_BOOK_PRICE + ", " + BookEntry.COLUMN_BOOK_QUANTITY
+                    + ") SELECT 'Book ' || n, 500 + n % 5000, n % 20 FROM (SELECT a.d * 1000 + b.d AS n"
+                    + " FROM digits a, digits b) WHERE n < " + rows + ";");
+            db.execSQL("DROP TABLE temp.digits;");
+            return new File(db.getPath());
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * Runs the list query of the provider on the given store, sorted on
+     * {@link #UNINDEXED_SORT_ORDER}, and cancels it {@link #CANCEL_AFTER_MS} after it started.
+     * Fails if the scan ended before it was cancelled or ran to the end.
+     *
+     * @return the time in milliseconds the scan took to stop once it was cancelled.
+     */
+    static long scanUntilCancelled(final File database) throws Exception {
+        final String sql = SQLiteQueryBuilder.buildQueryString(false,
+                (String) ReflectionHelpers.getStaticField(BookDbHelper.class, "BOOKS_VIEW_NAME"),
+                LIST_PROJECTION, null, null, null, UNINDEXED_SORT_ORDER, null);
+        final CancellationSignal signal = new CancellationSignal();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread scan = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // A sqlite4java connection is only used on the thread that opened it
+                final SQLiteConnection connection = new SQLiteConnection(database);
+                try {
+                    connection.openReadonly();
+                    signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                        @Override
+                        public void onCancel() {
+                            try {
+                                connection.interrupt();
+                            } catch (SQLiteException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    });
+                    SQLiteStatement statement = connection.prepare(sql);
+                    started.countDown();
+                    try {
+                        while (statement.step()) {
+                            statement.columnLong(0);
+                        }
+                    } finally {
+                        statement.dispose();
+                    }
+                } catch (SQLiteInterruptedException e) {
+                    // What the framework turns an interrupted statement into
+                    thrown.set(new OperationCanceledException());
+                } catch (SQLiteException e) {
+                    thrown.set(e);
+                } finally {
+                    started.countDown();
+                    connection.dispose();
+                }
+            }
+        });
+        scan.start();
+
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        Thread.sleep(CANCEL_AFTER_MS);
+        assertTrue("The scan ended before it was cancelled", scan.isAlive());
+        long cancelledAt = System.nanoTime();
+        signal.cancel();
+        scan.join(TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelledAt);
+
+        assertTrue("The scan is still running", !scan.isAlive());
+        assertTrue("The scan ended with " + thrown.get(), thrown.get() instanceof OperationCanceledException);
+        return latencyMs;
+    }
+
+    private static int countBooks(BookProvider provider) {
+        Cursor cursor = provider.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.SupplierEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the hot queries of the app are answered from the
+ * indexes of the books table instead of a full scan.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class QueryPlanTest {
+
+    /**
+     * View of the books that the provider queries
+     */
+    private static final String BOOKS_VIEW = "books_view";
+
+    private static final String LIST_COLUMNS = BookEntry._ID + ", " + BookEntry.COLUMN_BOOK_NAME + ", "
+            + BookEntry.COLUMN_BOOK_PRICE + ", " + BookEntry.COLUMN_BOOK_QUANTITY;
+
+    private BookDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        // Enough books for the planner to tell an index from a scan
+        BenchmarkData.insertBooks(BenchmarkData.setupProvider(), 0, 1000);
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application);
+        mDb = mDbHelper.getReadableDatabase();
+        mDb.execSQL("ANALYZE;");
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void listSortedByNameUsesListIndex() {
+        String plan = plan("SELECT " + LIST_COLUMNS + " FROM " + BOOKS_VIEW + " ORDER BY "
+                + BookEntry.COLUMN_BOOK_NAME);
+        assertUses(plan, "books_list_index");
+        assertNotSorted(plan);
+    }
+
+    @Test
+    public void nextPageSeeksById() {
+        String plan = plan("SELECT " + LIST_COLUMNS + " FROM " + BOOKS_VIEW + " WHERE " + BookEntry._ID
+                + " > ? ORDER BY " + BookEntry._ID + " LIMIT 50", "500");
+        assertUses(plan, "PRIMARY KEY");
+        assertNotSorted(plan);
+    }
+
+    @Test
+    public void authorLookupUsesAuthorIndex() {
+        assertUses(plan("SELECT " + LIST_COLUMNS + " FROM " + BOOKS_VIEW + " WHERE "
+                + BookEntry.COLUMN_AUTHOR_NAME + " = ?", "Author 1"), "books_author_index");
+    }
+
+    @Test
+    public void supplierLookupsUseIndexes() {
+        // Books of a supplier. The view joins the suppliers to the books, so the books are
+        // found by the _ID of the supplier rather than by the name the view adds.
+        assertUses(plan("SELECT " + LIST_COLUMNS + " FROM " + BOOKS_VIEW + " WHERE "
+                + BookEntry.COLUMN_BOOK_SUPPLIER_ID + " = (SELECT " + SupplierEntry._ID + " FROM "
+                + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry.COLUMN_SUPPLIER_NAME + " = ?)",
+                "Supplier 1"), "books_supplier_index");
+
+        // The supplier of a new book, looked up by name on every insert
+        assertUses(plan("SELECT " + SupplierEntry._ID + " FROM " + SupplierEntry.TABLE_NAME + " WHERE "
+                + SupplierEntry.COLUMN_SUPPLIER_NAME + " = ?", "Supplier 1"), "INDEX");
+    }
+
+    @Test
+    public void isbnLookupUsesIsbnIndex() {
+        assertUses(plan("SELECT " + LIST_COLUMNS + " FROM " + BOOKS_VIEW + " WHERE "
+                + BookEntry.COLUMN_BOOK_ISBN + " = ?", BenchmarkData.isbn(1)), "books_isbn_index");
+    }
+
+    /**
+     * Returns the steps of the query plan, one per line.
+     */
+    private String plan(String sql, String... args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertUses(String plan, String index) {
+        assertTrue("Plan without " + index + ":\n" + plan, plan.contains(index));
+        assertFalse("Plan scans the books:\n" + plan, plan.matches("(?s).*SCAN TABLE " + BookEntry.TABLE_NAME
+                + "(?! USING (COVERING )?INDEX).*"));
+    }
+
+    private static void assertNotSorted(String plan) {
+        assertFalse("Plan sorts the rows:\n" + plan, plan.contains("TEMP B-TREE"));
+    }
+}
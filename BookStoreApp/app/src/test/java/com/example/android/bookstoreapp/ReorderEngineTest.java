@@ -0,0 +1,170 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.os.Build;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.ReorderEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a sustained stream of quantity changes through {@link ReorderEngine} and checks the
+ * suggestions it ends up with.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ReorderEngineTest {
+
+    private static final int BOOKS = 10000;
+
+    /**
+     * Quantity changes made between two runs of the engine thread
+     */
+    private static final int CHANGES_PER_BURST = 1000;
+
+    /**
+     * Time the engine thread is run for after each burst, half a batch
+     */
+    private static final long BURST_INTERVAL_MS = ReorderEngine.BATCH_DELAY_MS / 2;
+
+    private ContentResolver mResolver;
+    private ReorderEngine mEngine;
+
+    /* Last suggestions handed to the listener and how often it was called */
+    private LongSparseArray<List<ReorderEngine.Suggestion>> mSuggestions;
+    private int mCalls;
+    private int mNewlyLow;
+
+    private final ReorderEngine.Listener mListener = new ReorderEngine.Listener() {
+        @Override
+        public void onSuggestionsChanged(LongSparseArray<List<ReorderEngine.Suggestion>> suggestions, int newlyLow) {
+            mSuggestions = suggestions;
+            mCalls++;
+            mNewlyLow += newlyLow;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        BenchmarkData.insertBooks(BenchmarkData.setupProvider(), 0, BOOKS);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        // The engine thread runs on the clock of the main thread, so its batches are only
+        // run when the test moves that clock on
+        RoboSettings.setUseGlobalScheduler(true);
+        mEngine = ReorderEngine.getInstance(RuntimeEnvironment.application);
+        mEngine.setListener(mListener);
+        runEngine(ReorderEngine.BATCH_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.setListener(null);
+        RoboSettings.setUseGlobalScheduler(false);
+        // Every test gets its own application, and so its own engine
+        ReflectionHelpers.setStaticField(ReorderEngine.class, "sInstance", null);
+    }
+
+    @Test
+    public void startsWithLowStockBooks() {
+        assertEquals(1, mCalls);
+        int expected = 0;
+        for (int i = 0; i < BOOKS; i++) {
+            if (i % 20 <= i % 4) {
+                expected++;
+            }
+        }
+        assertEquals(expected, countSuggestions());
+        assertEquals(expected, mNewlyLow);
+    }
+
+    @Test
+    public void keepsUpWithSustainedSales() {
+        int initialCalls = mCalls;
+
+        // Every book changes once: even ones run out, odd ones are restocked
+        ContentValues soldOut = new ContentValues();
+        soldOut.put(BookEntry.COLUMN_BOOK_QUANTITY, 0);
+        ContentValues restocked = new ContentValues();
+        restocked.put(BookEntry.COLUMN_BOOK_QUANTITY, 100);
+        long start = System.nanoTime();
+        for (int burstStart = 0; burstStart < BOOKS; burstStart += CHANGES_PER_BURST) {
+            for (int i = burstStart; i < burstStart + CHANGES_PER_BURST; i++) {
+                long id = i + 1;
+                assertEquals(1, mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id),
+                        id % 2 == 0 ? soldOut : restocked, null, null));
+            }
+            runEngine(BURST_INTERVAL_MS);
+        }
+        runEngine(ReorderEngine.BATCH_DELAY_MS);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The changes were read back in batches, not one by one
+        int batches = mCalls - initialCalls;
+        assertTrue("Listener called " + batches + " times",
+                batches <= BOOKS / CHANGES_PER_BURST * BURST_INTERVAL_MS / ReorderEngine.BATCH_DELAY_MS + 1);
+
+        assertEquals(BOOKS / 2, countSuggestions());
+        for (int i = 0; i < mSuggestions.size(); i++) {
+            for (ReorderEngine.Suggestion suggestion : mSuggestions.valueAt(i)) {
+                assertEquals(0, suggestion.bookId % 2);
+                assertEquals(0, suggestion.quantity);
+                assertEquals(Math.max(1, 2 * suggestion.reorderLevel), suggestion.orderQuantity);
+            }
+        }
+        System.out.println("ReorderEngineTest: " + BOOKS + " quantity changes in " + elapsedMs + " ms, "
+                + batches + " batches");
+    }
+
+    @Test
+    public void ignoresUnwatchedColumns() {
+        int initialCalls = mCalls;
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 999);
+        for (long id = 1; id <= CHANGES_PER_BURST; id++) {
+            mResolver.update(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id), values, null, null);
+        }
+        runEngine(ReorderEngine.BATCH_DELAY_MS);
+
+        assertEquals(initialCalls, mCalls);
+    }
+
+    /**
+     * Moves the clock on by the given time, running what the engine thread and the main
+     * thread had to do meanwhile.
+     */
+    private void runEngine(long ms) {
+        ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+    }
+
+    private int countSuggestions() {
+        assertNotNull(mSuggestions);
+        int count = 0;
+        for (int i = 0; i < mSuggestions.size(); i++) {
+            count += mSuggestions.valueAt(i).size();
+        }
+        return count;
+    }
+}
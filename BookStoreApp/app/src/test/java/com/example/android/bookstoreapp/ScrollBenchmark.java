@@ -0,0 +1,97 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.os.Build;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frame times of scrolling through a list of {@link #ROWS} books in {@link BookAdapter}. A
+ * frame is one step of a fling: the list moves by {@link #FRAME_SCROLL_PX}, and the rows that
+ * come into view are laid out and bound from recycled view holders. Drawing is left out, as
+ * Robolectric doesn't render.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class ScrollBenchmark {
+
+    private static final int ROWS = 10000;
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5000;
+
+    /**
+     * Size of the list on a common phone screen, in pixels
+     */
+    private static final int WIDTH_PX = 1080;
+    private static final int HEIGHT_PX = 1920;
+
+    /**
+     * Distance moved per frame, about a fast fling at 60 frames per second
+     */
+    private static final int FRAME_SCROLL_PX = 120;
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("ScrollBenchmark");
+
+    private RecyclerView mList;
+
+    @Before
+    public void setUp() {
+        BenchmarkData.setupProvider();
+        BookAdapter adapter = new BookAdapter(RuntimeEnvironment.application, new BookAdapter.OnBookClickListener() {
+            @Override
+            public void onBookClick(long id) {
+            }
+        });
+
+        List<Book> books = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            books.add(new Book(i + 1, "Book " + i, 500 + i * 37, i % 20));
+        }
+        // The first list is applied right away, without a diff
+        adapter.setBooks(books);
+
+        // Set up as in InventoryActivity
+        mList = new RecyclerView(RuntimeEnvironment.application);
+        mList.setLayoutManager(new LinearLayoutManager(RuntimeEnvironment.application));
+        mList.addItemDecoration(new DividerItemDecoration(RuntimeEnvironment.application,
+                DividerItemDecoration.VERTICAL));
+        mList.setAdapter(adapter);
+        mList.measure(View.MeasureSpec.makeMeasureSpec(WIDTH_PX, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT_PX, View.MeasureSpec.EXACTLY));
+        mList.layout(0, 0, WIDTH_PX, HEIGHT_PX);
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void scroll() {
+        sRecorder.measure("scroll_frame", ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                // Back to the top once the end is reached, which is a frame like any other
+                if (!mList.canScrollVertically(1)) {
+                    mList.scrollToPosition(0);
+                    mList.layout(0, 0, WIDTH_PX, HEIGHT_PX);
+                } else {
+                    mList.scrollBy(0, FRAME_SCROLL_PX);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.StatsEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that deleted books disappear from every query of {@link BookProvider} at once, can be
+ * brought back within the undo window, and are removed for good by the compactor after it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class SoftDeleteTest {
+
+    /**
+     * More books than the compactor removes in one transaction
+     */
+    private static final int BOOKS = 1200;
+
+    /**
+     * Books without copies: 0, 20, 40 and so on
+     */
+    private static final String OUT_OF_STOCK = BookEntry.COLUMN_BOOK_QUANTITY + " = 0";
+
+    private static final Uri SEARCH_URI = Uri.withAppendedPath(BookEntry.CONTENT_SEARCH_URI, "Book");
+
+    private BookProvider mProvider;
+    private BookDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        // The compactor thread runs on the clock of the main thread, so the test decides
+        // when the undo window is over
+        RoboSettings.setUseGlobalScheduler(true);
+        mProvider = BenchmarkData.setupProvider();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void deletedBooksDisappearAtOnce() {
+        assertEquals(BOOKS / 20, mProvider.delete(BookEntry.CONTENT_URI, OUT_OF_STOCK, null));
+
+        assertEquals(0, count(BookEntry.CONTENT_URI, OUT_OF_STOCK));
+        assertEquals(BOOKS - BOOKS / 20, count(BookEntry.CONTENT_URI, null));
+        // Book 20 has _ID 21
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 21), null));
+        // Every book is called "Book n", so the search for it finds every book left
+        assertEquals(BOOKS - BOOKS / 20, count(SEARCH_URI, null));
+        assertEquals(0, count(Uri.withAppendedPath(BookEntry.CONTENT_ISBN_URI, BenchmarkData.isbn(20)), null));
+        assertEquals(BOOKS - BOOKS / 20, totalBookCount());
+
+        // The books are still in the table until the compactor comes
+        assertEquals(BOOKS, DatabaseUtils.queryNumEntries(mDb, BookEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void deleteAllCanBeUndone() {
+        assertEquals(BOOKS, mProvider.delete(BookEntry.CONTENT_URI, null, null));
+        assertEquals(0, count(BookEntry.CONTENT_URI, null));
+        assertEquals(0, count(SEARCH_URI, null));
+        assertEquals(0, totalBookCount());
+
+        assertEquals(BOOKS, mProvider.call(BookContract.METHOD_UNDO_DELETE, null, null)
+                .getInt(BookContract.EXTRA_RESTORED));
+        assertEquals(BOOKS, count(BookEntry.CONTENT_URI, null));
+        assertEquals(BOOKS, count(SEARCH_URI, null));
+        assertEquals(BOOKS, totalBookCount());
+    }
+
+    @Test
+    public void undoBringsBackOnlyLastDelete() {
+        mProvider.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1), null, null);
+        mProvider.delete(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 2), null, null);
+
+        assertEquals(1, mProvider.call(BookContract.METHOD_UNDO_DELETE, null, null)
+                .getInt(BookContract.EXTRA_RESTORED));
+        assertEquals(0, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1), null));
+        assertEquals(1, count(ContentUris.withAppendedId(BookEntry.CONTENT_URI, 2), null));
+    }
+
+    @Test
+    public void compactorRemovesBooksAfterUndoWindow() {
+        mProvider.delete(BookEntry.CONTENT_URI, null, null);
+        endUndoWindow();
+
+        // Nothing left to bring back
+        assertEquals(0, mProvider.call(BookContract.METHOD_UNDO_DELETE, null, null)
+                .getInt(BookContract.EXTRA_RESTORED));
+
+        RuntimeEnvironment.getMasterScheduler().advanceBy(BookEntry.UNDO_DELETE_WINDOW_MS);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, BookEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, BookEntry.SEARCH_TABLE_NAME));
+        // The database is in incremental auto-vacuum mode, so the freed pages went back
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null));
+    }
+
+    @Test
+    public void existingDatabaseSwitchesToIncrementalVacuum() throws Exception {
+        // A database created before the switch. The helper would switch it back as it opens
+        // it, so it is changed without the helper.
+        File database = new File(mDb.getPath());
+        mDbHelper.close();
+        SQLiteConnection connection = new SQLiteConnection(database);
+        try {
+            connection.open(false);
+            connection.exec("PRAGMA auto_vacuum = NONE");
+            connection.exec("VACUUM");
+        } finally {
+            connection.dispose();
+        }
+
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application);
+        mDb = mDbHelper.getWritableDatabase();
+        // 2 is INCREMENTAL
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+        assertEquals("wal", DatabaseUtils.stringForQuery(mDb, "PRAGMA journal_mode", null));
+        assertEquals(BOOKS, DatabaseUtils.queryNumEntries(mDb, BookEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void compactorWaitsForUndoWindow() {
+        mProvider.delete(BookEntry.CONTENT_URI, OUT_OF_STOCK, null);
+
+        // The compactor runs, but the books were deleted just now
+        RuntimeEnvironment.getMasterScheduler().advanceBy(BookEntry.UNDO_DELETE_WINDOW_MS);
+        assertEquals(BOOKS, DatabaseUtils.queryNumEntries(mDb, BookEntry.TABLE_NAME));
+        assertEquals(BOOKS / 20, mProvider.call(BookContract.METHOD_UNDO_DELETE, null, null)
+                .getInt(BookContract.EXTRA_RESTORED));
+    }
+
+    /**
+     * Moves the deleted_at times of the deleted books back by the undo window. The provider
+     * and the compactor read the wall clock, which the test can't move.
+     */
+    private void endUndoWindow() {
+        mDb.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_BOOK_DELETED_AT + " = "
+                + BookEntry.COLUMN_BOOK_DELETED_AT + " - " + (BookEntry.UNDO_DELETE_WINDOW_MS + 1)
+                + " WHERE " + BookEntry.COLUMN_BOOK_DELETED_AT + " IS NOT NULL");
+    }
+
+    private int count(Uri uri, String selection) {
+        Cursor cursor = mProvider.query(uri, new String[]{BookEntry._ID}, selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of books in the statistics of the whole inventory.
+     */
+    private int totalBookCount() {
+        Cursor cursor = mProvider.query(StatsEntry.CONTENT_URI, new String[]{StatsEntry.COLUMN_BOOK_COUNT},
+                StatsEntry.COLUMN_SCOPE + " = " + StatsEntry.SCOPE_ALL, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that batched stock changes keep the guard of a single sale.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class StockAdjustmentTest {
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = BenchmarkData.setupProvider();
+        // Book n has n % 20 copies, so _IDs 2 and 3 have 1 and 2 copies
+        BenchmarkData.insertBooks(mProvider, 0, 20);
+    }
+
+    @Test
+    public void rejectsChangesBelowZero() {
+        Bundle result = adjust(1, new long[]{2, 3, 4}, new int[]{-2, -2, 5});
+
+        assertArrayEquals(new long[]{2}, result.getLongArray(BookContract.EXTRA_REJECTED_IDS));
+        assertEquals(1, quantity(2));
+        assertEquals(0, quantity(3));
+        assertEquals(8, quantity(4));
+        assertEquals(1, result.getLong(BookContract.EXTRA_SEQUENCE));
+    }
+
+    @Test
+    public void refusesBatchesAppliedBefore() {
+        adjust(5, new long[]{10}, new int[]{-1});
+        try {
+            adjust(5, new long[]{10}, new int[]{-1});
+            fail("Batch applied twice");
+        } catch (IllegalArgumentException expected) {
+            // The sender has to find out whether it went in
+        }
+        try {
+            adjust(3, new long[]{10}, new int[]{-1});
+            fail("Batch numbered before the last one applied");
+        } catch (IllegalArgumentException expected) {
+            // Its sales would be lost otherwise
+        }
+
+        assertEquals(8, quantity(10));
+        // Without books, the call just returns the last applied sequence number
+        assertEquals(5, adjust(0, new long[0], new int[0]).getLong(BookContract.EXTRA_SEQUENCE));
+    }
+
+    @Test
+    public void rejectsMissingBooks() {
+        Bundle result = adjust(1, new long[]{1000}, new int[]{1});
+
+        assertArrayEquals(new long[]{1000}, result.getLongArray(BookContract.EXTRA_REJECTED_IDS));
+    }
+
+    private Bundle adjust(long sequence, long[] ids, int[] deltas) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookContract.EXTRA_IDS, ids);
+        extras.putIntArray(BookContract.EXTRA_DELTAS, deltas);
+        extras.putLong(BookContract.EXTRA_SEQUENCE, sequence);
+        return mProvider.call(BookContract.METHOD_ADJUST_STOCK, null, extras);
+    }
+
+    private int quantity(long id) {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry.COLUMN_BOOK_QUANTITY},
+                BookEntry._ID + " = ?", new String[]{String.valueOf(id)}, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
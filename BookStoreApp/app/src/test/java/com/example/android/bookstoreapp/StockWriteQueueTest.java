@@ -0,0 +1,319 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookProvider;
+import com.example.android.bookstoreapp.data.StockWriteQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link StockWriteQueue} coalesces sales per book, writes them after
+ * {@link StockWriteQueue#FLUSH_EVENTS} sales or {@link StockWriteQueue#FLUSH_DELAY_MS}, and
+ * neither loses nor repeats sales when the provider fails or the process restarts.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class StockWriteQueueTest {
+
+    /**
+     * Book n has n % 20 copies and the _ID n + 1, so _ID 6 has 5 copies and _ID 7 has 6
+     */
+    private static final int BOOKS = 20;
+
+    /**
+     * Time the queue waits before retrying, plus some slack
+     */
+    private static final long RETRY_WAIT_MS = 2500;
+
+    /**
+     * Provider that records the stock writes it applies, and fails calls on request.
+     */
+    public static class StockProvider extends BookProvider {
+
+        /* Applied writes, each as the _IDs, the deltas and the sequence number */
+        final List<Object[]> mWrites = new ArrayList<>();
+        /* Number of reads of the last applied sequence number still to fail */
+        volatile int mFailedReads;
+        /* Whether writes fail before they are applied */
+        volatile boolean mFailWrites;
+        /* Number of writes still to fail after they were applied */
+        volatile int mFailedWritesAfterApplying;
+
+        @Override
+        public Bundle call(String method, String arg, Bundle extras) {
+            if (!BookContract.METHOD_ADJUST_STOCK.equals(method)) {
+                return super.call(method, arg, extras);
+            }
+            if (extras == null) {
+                if (mFailedReads > 0) {
+                    mFailedReads--;
+                    throw new IllegalStateException("Provider not ready");
+                }
+                return super.call(method, arg, extras);
+            }
+            if (mFailWrites) {
+                throw new IllegalStateException("Write failed");
+            }
+            Bundle result = super.call(method, arg, extras);
+            synchronized (mWrites) {
+                mWrites.add(new Object[]{extras.getLongArray(BookContract.EXTRA_IDS),
+                        extras.getIntArray(BookContract.EXTRA_DELTAS), extras.getLong(BookContract.EXTRA_SEQUENCE)});
+            }
+            if (mFailedWritesAfterApplying > 0) {
+                mFailedWritesAfterApplying--;
+                throw new IllegalStateException("Result lost");
+            }
+            return result;
+        }
+    }
+
+    private StockProvider mProvider;
+    private StockWriteQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(StockProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY)
+                .get();
+        BenchmarkData.insertBooks(mProvider, 0, BOOKS);
+        ReflectionHelpers.setStaticField(StockWriteQueue.class, "sInstance", null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mQueue != null) {
+            stop(mQueue);
+        }
+        ReflectionHelpers.setStaticField(StockWriteQueue.class, "sInstance", null);
+    }
+
+    @Test
+    public void salesOfBookAreCoalesced() throws Exception {
+        start();
+        sell(6, 3);
+        sell(7, 2);
+        assertEquals(-3, mQueue.getPendingDelta(6));
+
+        Thread.sleep(StockWriteQueue.FLUSH_DELAY_MS + 100);
+        drain();
+        assertEquals(1, mProvider.mWrites.size());
+        assertWrite(0, new long[]{6, 7}, new int[]{-3, -2});
+        assertEquals(2, quantity(6));
+        assertEquals(4, quantity(7));
+        assertEquals(0, mQueue.getPendingDelta(6));
+    }
+
+    @Test
+    public void writesOnceEnoughSalesAreQueued() throws Exception {
+        start();
+        // Books with _IDs 11 to 20 have 10 to 19 copies
+        for (int i = 0; i < 2 * StockWriteQueue.FLUSH_EVENTS + 5; i++) {
+            sell(11 + i % 10, 1);
+        }
+        drain();
+
+        // Without waiting for the delay, two full batches are written
+        assertTrue(mProvider.mWrites.size() >= 2);
+        assertEquals(-StockWriteQueue.FLUSH_EVENTS, sum(0));
+        assertEquals(-StockWriteQueue.FLUSH_EVENTS, sum(1));
+
+        Thread.sleep(StockWriteQueue.FLUSH_DELAY_MS + 100);
+        drain();
+        assertEquals(3, mProvider.mWrites.size());
+        assertEquals(-5, sum(2));
+        // Every tenth sale was of _ID 11
+        assertEquals(5, quantity(11));
+    }
+
+    @Test
+    public void journalIsReplayedAfterRestart() throws Exception {
+        start();
+        mProvider.mFailWrites = true;
+        sell(6, 3);
+        Thread.sleep(StockWriteQueue.FLUSH_DELAY_MS + 100);
+        drain();
+        assertEquals(5, quantity(6));
+
+        // The process dies before the retry
+        stop(mQueue);
+        ReflectionHelpers.setStaticField(StockWriteQueue.class, "sInstance", null);
+        mProvider.mFailWrites = false;
+        start();
+        drain();
+
+        assertEquals(1, mProvider.mWrites.size());
+        assertWrite(0, new long[]{6}, new int[]{-3});
+        assertEquals(2, quantity(6));
+        assertEquals(0, mQueue.getPendingDelta(6));
+    }
+
+    @Test
+    public void replaySkipsAppliedSales() throws Exception {
+        // The first two sales were applied, the process died before the journal was emptied
+        adjust(2, new long[]{6}, new int[]{-2});
+        File journal = new File(RuntimeEnvironment.application.getFilesDir(),
+                (String) ReflectionHelpers.getStaticField(StockWriteQueue.class, "JOURNAL_NAME"));
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+        try {
+            writeSale(out, 1, 6, -1);
+            writeSale(out, 2, 6, -1);
+            writeSale(out, 3, 7, -1);
+        } finally {
+            out.close();
+        }
+
+        start();
+        drain();
+        assertEquals(3, quantity(6));
+        assertEquals(5, quantity(7));
+        assertEquals(2, mProvider.mWrites.size());
+        assertWrite(1, new long[]{7}, new int[]{-1});
+        assertEquals(3L, mProvider.mWrites.get(1)[2]);
+    }
+
+    @Test
+    public void salesWaitForAppliedSequence() throws Exception {
+        // Sales journaled before were applied up to sequence number 50
+        adjust(50, new long[]{1}, new int[]{0});
+        mProvider.mFailedReads = 1;
+
+        start();
+        sell(6, 2);
+        Thread.sleep(StockWriteQueue.FLUSH_DELAY_MS + 100);
+        drain();
+        // Numbered from 0, the sales would be refused as applied already
+        assertEquals(1, mProvider.mWrites.size());
+        assertEquals(-2, mQueue.getPendingDelta(6));
+
+        Thread.sleep(RETRY_WAIT_MS);
+        drain();
+        assertEquals(2, mProvider.mWrites.size());
+        assertWrite(1, new long[]{6}, new int[]{-2});
+        // Held sales are journaled with one number per book
+        assertEquals(51L, mProvider.mWrites.get(1)[2]);
+        assertEquals(3, quantity(6));
+        assertEquals(0, mQueue.getPendingDelta(6));
+    }
+
+    @Test
+    public void writeAppliedBeforeFailingIsNotSentAgain() throws Exception {
+        start();
+        mProvider.mFailedWritesAfterApplying = 1;
+        sell(6, 2);
+        Thread.sleep(StockWriteQueue.FLUSH_DELAY_MS + 100);
+        drain();
+        assertEquals(3, quantity(6));
+        assertEquals(-2, mQueue.getPendingDelta(6));
+
+        // A sale made before the retry goes out with it
+        sell(7, 1);
+        Thread.sleep(RETRY_WAIT_MS);
+        drain();
+        assertEquals(2, mProvider.mWrites.size());
+        assertWrite(1, new long[]{7}, new int[]{-1});
+        assertEquals(3, quantity(6));
+        assertEquals(5, quantity(7));
+        assertEquals(0, mQueue.getPendingDelta(6));
+        assertEquals(0, mQueue.getPendingDelta(7));
+    }
+
+    private void start() {
+        mQueue = StockWriteQueue.getInstance(RuntimeEnvironment.application);
+    }
+
+    /**
+     * Stops the thread of a queue, as the process dying would.
+     */
+    private static void stop(StockWriteQueue queue) throws InterruptedException {
+        ScheduledExecutorService executor = ReflectionHelpers.getField(queue, "mExecutor");
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Waits for the work the queue has due so far.
+     */
+    private void drain() throws Exception {
+        ScheduledExecutorService executor = ReflectionHelpers.getField(mQueue, "mExecutor");
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Everything due before runs first
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private void sell(long id, int copies) {
+        for (int i = 0; i < copies; i++) {
+            mQueue.sell(id);
+        }
+    }
+
+    private void adjust(long sequence, long[] ids, int[] deltas) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookContract.EXTRA_IDS, ids);
+        extras.putIntArray(BookContract.EXTRA_DELTAS, deltas);
+        extras.putLong(BookContract.EXTRA_SEQUENCE, sequence);
+        mProvider.call(BookContract.METHOD_ADJUST_STOCK, null, extras);
+    }
+
+    private static void writeSale(DataOutputStream out, long sequence, long id, int delta) throws Exception {
+        out.writeLong(sequence);
+        out.writeLong(id);
+        out.writeInt(delta);
+    }
+
+    private void assertWrite(int index, long[] ids, int[] deltas) {
+        Object[] write = mProvider.mWrites.get(index);
+        assertArrayEquals(ids, (long[]) write[0]);
+        assertArrayEquals(deltas, (int[]) write[1]);
+    }
+
+    /**
+     * Returns the sum of the quantity changes of a write.
+     */
+    private int sum(int index) {
+        int sum = 0;
+        for (int delta : (int[]) mProvider.mWrites.get(index)[1]) {
+            sum += delta;
+        }
+        return sum;
+    }
+
+    private int quantity(long id) {
+        Cursor cursor = mProvider.query(BookEntry.CONTENT_URI, new String[]{BookEntry.COLUMN_BOOK_QUANTITY},
+                BookEntry._ID + " = ?", new String[]{String.valueOf(id)}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
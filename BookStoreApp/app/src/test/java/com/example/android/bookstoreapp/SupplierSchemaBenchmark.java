@@ -0,0 +1,198 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookContract.SupplierEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Size of the database and time of grouping the books by supplier on {@link #ROWS} books,
+ * before and after version 6 of the schema moved the suppliers into their own table. The
+ * database is built at version 5 and then upgraded by the migration of the app, so both
+ * sides hold the same books with the same indexes, search index and statistics.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class SupplierSchemaBenchmark {
+
+    private static final int ROWS = 200000;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 10;
+
+    /**
+     * Number of books inserted per transaction while seeding
+     */
+    private static final int SEED_BATCH = 10000;
+
+    /**
+     * Version of the schema that kept the supplier on every book
+     */
+    private static final int VERSION_INLINE_SUPPLIERS = 5;
+
+    /**
+     * Version of the schema that moved the suppliers into their own table
+     */
+    private static final int VERSION_SUPPLIER_TABLE = 6;
+
+    /**
+     * Books table as the first version of the app created it
+     */
+    private static final String SQL_CREATE_BOOKS_TABLE_V1 = "CREATE TABLE " + BookEntry.TABLE_NAME + "("
+            + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
+            + BookEntry.COLUMN_AUTHOR_NAME + " TEXT NOT NULL DEFAULT 'Anonymous', "
+            + BookEntry.COLUMN_BOOK_PRICE + " REAL NOT NULL, "
+            + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL, "
+            + BookEntry.COLUMN_BOOK_SUPPLIER + " TEXT, "
+            + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER + " TEXT);";
+
+    private static final String SQL_GROUP_BY_SUPPLIER_NAME = "SELECT "
+            + BookEntry.COLUMN_BOOK_SUPPLIER + ", COUNT(*), SUM(" + BookEntry.COLUMN_BOOK_QUANTITY + ") FROM "
+            + BookEntry.TABLE_NAME + " GROUP BY " + BookEntry.COLUMN_BOOK_SUPPLIER;
+
+    private static final String SQL_GROUP_BY_SUPPLIER_ID = "SELECT s."
+            + SupplierEntry.COLUMN_SUPPLIER_NAME + ", g.books, g.quantity FROM (SELECT "
+            + BookEntry.COLUMN_BOOK_SUPPLIER_ID + ", COUNT(*) AS books, SUM("
+            + BookEntry.COLUMN_BOOK_QUANTITY + ") AS quantity FROM " + BookEntry.TABLE_NAME + " GROUP BY "
+            + BookEntry.COLUMN_BOOK_SUPPLIER_ID + ") g LEFT JOIN " + SupplierEntry.TABLE_NAME + " s ON s."
+            + SupplierEntry._ID + " = g." + BookEntry.COLUMN_BOOK_SUPPLIER_ID;
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("SupplierSchemaBenchmark");
+
+    private File mFile;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mFile = RuntimeEnvironment.application.getDatabasePath("supplier_schema_benchmark.db");
+        assertTrue(mFile.getParentFile().isDirectory() || mFile.getParentFile().mkdirs());
+        SQLiteDatabase.deleteDatabase(mFile);
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void normalizeSuppliers() {
+        mDb.execSQL(SQL_CREATE_BOOKS_TABLE_V1);
+        migrate(1, VERSION_INLINE_SUPPLIERS);
+        seedInlineSuppliers();
+
+        mDb.execSQL("VACUUM;");
+        sRecorder.recordSize("database_size_v5", ROWS, databaseSize());
+        measureGroupBy("group_by_supplier_v5", SQL_GROUP_BY_SUPPLIER_NAME);
+
+        // The migration runs once, so it gets no warm-up
+        sRecorder.measure("migrate_v5_to_v6", ROWS, 0, 1, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                migrate(VERSION_INLINE_SUPPLIERS, VERSION_SUPPLIER_TABLE);
+            }
+        });
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(mDb, BookEntry.TABLE_NAME));
+
+        mDb.execSQL("VACUUM;");
+        sRecorder.recordSize("database_size_v6", ROWS, databaseSize());
+        measureGroupBy("group_by_supplier_v6", SQL_GROUP_BY_SUPPLIER_ID);
+    }
+
+    /**
+     * Fills the version 5 books table, supplier name and phone number on every book.
+     */
+    private void seedInlineSuppliers() {
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + BookEntry.TABLE_NAME + "("
+                + BookEntry.COLUMN_BOOK_NAME + ", " + BookEntry.COLUMN_AUTHOR_NAME + ", "
+                + BookEntry.COLUMN_BOOK_PRICE + ", " + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookEntry.COLUMN_BOOK_SUPPLIER + ", " + BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER
+                + ") VALUES (?, ?, ?, ?, ?, ?)");
+        try {
+            for (int batchStart = 0; batchStart < ROWS; batchStart += SEED_BATCH) {
+                mDb.beginTransaction();
+                try {
+                    for (int i = batchStart; i < Math.min(ROWS, batchStart + SEED_BATCH); i++) {
+                        ContentValues book = BenchmarkData.book(i);
+                        insert.bindString(1, book.getAsString(BookEntry.COLUMN_BOOK_NAME));
+                        insert.bindString(2, book.getAsString(BookEntry.COLUMN_AUTHOR_NAME));
+                        // Version 5 kept prices in dollars
+                        insert.bindDouble(3, book.getAsLong(BookEntry.COLUMN_BOOK_PRICE) / 100.0);
+                        insert.bindLong(4, book.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY));
+                        insert.bindString(5, book.getAsString(BookEntry.COLUMN_BOOK_SUPPLIER));
+                        insert.bindString(6, book.getAsString(BookEntry.COLUMN_BOOK_SUPPLIER_PHONE_NUMBER));
+                        insert.executeInsert();
+                    }
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Runs the migrations of {@link BookDbHelper} from oldVersion to newVersion in a
+     * transaction, as the helper does on an upgrade.
+     */
+    private void migrate(int oldVersion, int newVersion) {
+        mDb.beginTransaction();
+        try {
+            ReflectionHelpers.callStaticMethod(BookDbHelper.class, "migrate",
+                    ClassParameter.from(SQLiteDatabase.class, mDb),
+                    ClassParameter.from(int.class, oldVersion),
+                    ClassParameter.from(int.class, newVersion));
+            mDb.setVersion(newVersion);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void measureGroupBy(String name, final String sql) {
+        sRecorder.measure(name, ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+            @Override
+            public void run(int iteration) {
+                ProviderBenchmark.readAll(mDb.rawQuery(sql, null));
+            }
+        });
+    }
+
+    /**
+     * Returns the size of the database in bytes, without the pages on its free list.
+     */
+    private long databaseSize() {
+        return DatabaseUtils.longForQuery(mDb, "PRAGMA page_count;", null)
+                * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size;", null);
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.sync.MockSyncServer;
+import com.example.android.bookstoreapp.sync.SyncEngine;
+import com.example.android.bookstoreapp.sync.SyncPayload;
+import com.example.android.bookstoreapp.sync.SyncServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link SyncEngine} against a {@link MockSyncServer}, with a second store played by
+ * requests built here.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class SyncEngineTest {
+
+    private static final String OTHER_STORE = "other-store";
+
+    /**
+     * Server that keeps the requests and responses of this store
+     */
+    private static class RecordingServer implements SyncServer {
+
+        final MockSyncServer mServer;
+        final List<JSONObject> mRequests = new ArrayList<>();
+        final List<JSONObject> mResponses = new ArrayList<>();
+
+        RecordingServer(MockSyncServer server) {
+            mServer = server;
+        }
+
+        @Override
+        public byte[] exchange(byte[] request) throws IOException {
+            mRequests.add(SyncPayload.decode(request));
+            byte[] response = mServer.exchange(request);
+            mResponses.add(SyncPayload.decode(response));
+            return response;
+        }
+
+        void clear() {
+            mRequests.clear();
+            mResponses.clear();
+        }
+    }
+
+    private ContentResolver mResolver;
+    private MockSyncServer mServer;
+    private RecordingServer mRecorder;
+    private SyncEngine mEngine;
+
+    @Before
+    public void setUp() {
+        BenchmarkData.setupProvider();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new MockSyncServer();
+        mRecorder = new RecordingServer(mServer);
+
+        // The engine thread runs on the clock of the main thread, so a sync requested by the
+        // test runs right away and the next one when the test moves the clock on
+        RoboSettings.setUseGlobalScheduler(true);
+        mEngine = new SyncEngine(RuntimeEnvironment.application, mRecorder);
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+        RoboSettings.setUseGlobalScheduler(false);
+    }
+
+    @Test
+    public void pullsOnlyBooksChangedOnServer() throws Exception {
+        pushFromOtherStore(otherStoreBook("g1", "Book 1", 5), otherStoreBook("g2", "Book 2", 5),
+                otherStoreBook("g3", "Book 3", 5));
+        mEngine.requestSync();
+        for (String globalId : new String[]{"g1", "g2", "g3"}) {
+            assertEquals(5, readBook(globalId).getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY).intValue());
+        }
+
+        pushFromOtherStore(otherStoreBook("g2", "Renamed", 5));
+        mRecorder.clear();
+        mEngine.requestSync();
+
+        assertEquals("Renamed", readBook("g2").getAsString(BookEntry.COLUMN_BOOK_NAME));
+        assertEquals(singleton("g2"), receivedBooks());
+        // The books written by the engine are not sent back
+        assertEquals(0, sentBooks().size());
+    }
+
+    @Test
+    public void mergesStockCountsOfStores() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, "Local book");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 1500);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 10);
+        Uri uri = mResolver.insert(BookEntry.CONTENT_URI, values);
+        mEngine.requestSync();
+        String globalId = readBook(ContentUris.parseId(uri)).getAsString(BookEntry.COLUMN_BOOK_GLOBAL_ID);
+        assertEquals(10, mServer.getBook(globalId).getInt(SyncPayload.KEY_QUANTITY));
+
+        // Both stores sell at the same time
+        JSONObject sale = new JSONObject();
+        sale.put(SyncPayload.KEY_GLOBAL_ID, globalId);
+        sale.put(SyncPayload.KEY_STOCK_DELTA, -3);
+        pushFromOtherStore(sale);
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookEntry.COLUMN_BOOK_QUANTITY, 8);
+        mResolver.update(uri, quantity, null, null);
+        mEngine.requestSync();
+
+        ContentValues book = readBook(ContentUris.parseId(uri));
+        assertEquals(5, book.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY).intValue());
+        assertEquals(5, book.getAsInteger(BookEntry.COLUMN_BOOK_SYNCED_QUANTITY).intValue());
+        // The total change of this store is what the server counts for it
+        assertEquals(8, book.getAsInteger(BookEntry.COLUMN_BOOK_SYNCED_DELTA).intValue());
+        assertEquals(5, mServer.getBook(globalId).getInt(SyncPayload.KEY_QUANTITY));
+    }
+
+    @Test
+    public void doesNotSendBackDeletesOfServer() throws Exception {
+        pushFromOtherStore(otherStoreBook("g1", "Book 1", 5));
+        mEngine.requestSync();
+        assertNotNull(readBook("g1"));
+
+        JSONObject deleted = new JSONObject();
+        deleted.put(SyncPayload.KEY_GLOBAL_ID, "g1");
+        deleted.put(SyncPayload.KEY_DELETED, true);
+        pushFromOtherStore(deleted);
+        mEngine.requestSync();
+        assertNull(readBook("g1"));
+
+        mRecorder.clear();
+        mEngine.requestSync();
+        assertEquals(0, sentBooks().size());
+    }
+
+    @Test
+    public void backsOffAfterFailures() {
+        mServer.failNextExchanges(2);
+        mEngine.requestSync();
+
+        // Each retry waits between half and all of a delay that doubles
+        long firstDelay = runNextSync();
+        assertTrue("First retry after " + firstDelay, firstDelay >= SyncEngine.INITIAL_BACKOFF_MS / 2
+                && firstDelay <= SyncEngine.INITIAL_BACKOFF_MS);
+        long secondDelay = runNextSync();
+        assertTrue("Second retry after " + secondDelay, secondDelay >= SyncEngine.INITIAL_BACKOFF_MS
+                && secondDelay <= 2 * SyncEngine.INITIAL_BACKOFF_MS);
+
+        // The second retry went through, so the sync after it comes at the usual interval
+        assertEquals(SyncEngine.SYNC_INTERVAL_MS, runNextSync());
+        assertEquals(4, mServer.getExchangeCount());
+    }
+
+    /**
+     * Moves the clock on to the next sync, runs it and returns how long it was waited for.
+     */
+    private static long runNextSync() {
+        Scheduler scheduler = RuntimeEnvironment.getMasterScheduler();
+        long before = scheduler.getCurrentTime();
+        assertTrue(scheduler.advanceToNextPostedRunnable());
+        return scheduler.getCurrentTime() - before;
+    }
+
+    private void pushFromOtherStore(JSONObject... books) throws Exception {
+        JSONObject request = new JSONObject();
+        request.put(SyncPayload.KEY_DEVICE_ID, OTHER_STORE);
+        request.put(SyncPayload.KEY_SINCE, 0);
+        JSONArray array = new JSONArray();
+        for (JSONObject book : books) {
+            array.put(book);
+        }
+        request.put(SyncPayload.KEY_BOOKS, array);
+        mServer.exchange(SyncPayload.encode(request));
+    }
+
+    private static JSONObject otherStoreBook(String globalId, String name, int stockDelta) throws JSONException {
+        JSONObject book = new JSONObject();
+        book.put(SyncPayload.KEY_GLOBAL_ID, globalId);
+        book.put(BookEntry.COLUMN_BOOK_NAME, name);
+        book.put(BookEntry.COLUMN_BOOK_PRICE, 1000);
+        book.put(BookEntry.COLUMN_BOOK_REORDER_LEVEL, 0);
+        book.put(SyncPayload.KEY_STOCK_DELTA, stockDelta);
+        return book;
+    }
+
+    /**
+     * Returns the global IDs of the books this store sent since the recorder was cleared.
+     */
+    private Set<String> sentBooks() throws JSONException {
+        return globalIds(mRecorder.mRequests);
+    }
+
+    /**
+     * Returns the global IDs of the books this store received since the recorder was cleared.
+     */
+    private Set<String> receivedBooks() throws JSONException {
+        return globalIds(mRecorder.mResponses);
+    }
+
+    private static Set<String> globalIds(List<JSONObject> payloads) throws JSONException {
+        Set<String> globalIds = new HashSet<>();
+        for (JSONObject payload : payloads) {
+            JSONArray books = payload.getJSONArray(SyncPayload.KEY_BOOKS);
+            for (int i = 0; i < books.length(); i++) {
+                globalIds.add(books.getJSONObject(i).getString(SyncPayload.KEY_GLOBAL_ID));
+            }
+        }
+        return globalIds;
+    }
+
+    private static Set<String> singleton(String globalId) {
+        Set<String> set = new HashSet<>();
+        set.add(globalId);
+        return set;
+    }
+
+    private ContentValues readBook(String globalId) {
+        return readBook(BookEntry.COLUMN_BOOK_GLOBAL_ID + "=?", globalId);
+    }
+
+    private ContentValues readBook(long id) {
+        return readBook(BookEntry._ID + "=?", String.valueOf(id));
+    }
+
+    /**
+     * Returns the first book matching the selection, or null if there is none.
+     */
+    private ContentValues readBook(String selection, String arg) {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, null, selection, new String[]{arg}, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, values);
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+}
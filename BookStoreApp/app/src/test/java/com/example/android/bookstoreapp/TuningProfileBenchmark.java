@@ -0,0 +1,252 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.content.pm.ProviderInfo;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.bookstoreapp.data.BookContract;
+import com.example.android.bookstoreapp.data.BookContract.BookEntry;
+import com.example.android.bookstoreapp.data.BookDbHelper;
+import com.example.android.bookstoreapp.data.BookProvider;
+import com.example.android.bookstoreapp.data.TuningProfile;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the reads of single books while a writer thread keeps changing quantities, under each
+ * {@link TuningProfile} in WAL mode and, as the baseline, in rollback journal mode, on a store
+ * of {@link #ROWS} books. The reads and the writes are also timed alone.
+ * <p>
+ * Robolectric runs every SQLite call of the framework on one thread, so a reader and a writer
+ * going through the provider would only take turns. The provider creates and fills the
+ * database with the profile, then the readers and the writer each get a sqlite4java
+ * connection of their own with the settings of the profile, as in the framework's pool.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class TuningProfileBenchmark {
+
+    private static final int ROWS = 10000;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Time a connection waits for the lock of another one before it fails, as on a device
+     */
+    private static final int BUSY_TIMEOUT_MS = 30000;
+
+    /**
+     * Pause of the writer thread after every change. Without it, a writer in rollback journal
+     * mode holds the lock nearly all the time and the readers time out.
+     */
+    private static final long WRITE_INTERVAL_MS = 1;
+
+    private static final String JOURNAL_MODE_WAL = "WAL";
+
+    /**
+     * Journal mode of SQLite without WAL, where a commit keeps readers out
+     */
+    private static final String JOURNAL_MODE_DELETE = "DELETE";
+
+    private static final String READ_SQL = "SELECT " + BookEntry._ID + ", " + BookEntry.COLUMN_BOOK_NAME + ", "
+            + BookEntry.COLUMN_BOOK_PRICE + ", " + BookEntry.COLUMN_BOOK_QUANTITY + " FROM "
+            + ReflectionHelpers.getStaticField(BookDbHelper.class, "BOOKS_VIEW_NAME") + " WHERE "
+            + BookEntry._ID + " = ?";
+
+    private static final String WRITE_SQL = "UPDATE " + BookEntry.TABLE_NAME + " SET "
+            + BookEntry.COLUMN_BOOK_QUANTITY + " = ? WHERE " + BookEntry._ID + " = ?";
+
+    private static final BenchmarkRecorder sRecorder = new BenchmarkRecorder("TuningProfileBenchmark");
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        sRecorder.write();
+    }
+
+    @Test
+    public void defaultProfile() throws Exception {
+        measure(TuningProfile.NAME_DEFAULT, JOURNAL_MODE_WAL);
+    }
+
+    @Test
+    public void durableProfile() throws Exception {
+        measure(TuningProfile.NAME_DURABLE, JOURNAL_MODE_WAL);
+    }
+
+    @Test
+    public void rollbackJournal() throws Exception {
+        measure(TuningProfile.NAME_DEFAULT, JOURNAL_MODE_DELETE);
+    }
+
+    private static void measure(String profileName, final String journalMode) throws Exception {
+        final TuningProfile profile = TuningProfile.forName(profileName);
+        final File database = seed(profileName);
+        String label = journalMode.toLowerCase() + "_" + profileName;
+
+        SQLiteConnection reader = open(database, profile, journalMode);
+        SQLiteConnection writer = open(database, profile, journalMode);
+        try {
+            final SQLiteStatement read = reader.prepare(READ_SQL);
+            final SQLiteStatement write = writer.prepare(WRITE_SQL);
+            sRecorder.measure("read_" + label, ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+                @Override
+                public void run(int iteration) {
+                    readBook(read, iteration);
+                }
+            });
+            sRecorder.measure("write_" + label, ROWS, WARMUP, ITERATIONS, new BenchmarkRecorder.Operation() {
+                @Override
+                public void run(int iteration) {
+                    changeQuantity(write, iteration);
+                }
+            });
+
+            // The writer keeps committing changes while the reads are timed
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final CountDownLatch writing = new CountDownLatch(1);
+            Thread writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteConnection connection = null;
+                    try {
+                        // A sqlite4java connection is only used on the thread that opened it
+                        connection = open(database, profile, journalMode);
+                        SQLiteStatement statement = connection.prepare(WRITE_SQL);
+                        for (int i = 0; !stop.get(); i++) {
+                            changeQuantity(statement, i);
+                            writing.countDown();
+                            Thread.sleep(WRITE_INTERVAL_MS);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        writing.countDown();
+                        if (connection != null) {
+                            connection.dispose();
+                        }
+                    }
+                }
+            });
+            writerThread.start();
+            try {
+                assertTrue(writing.await(BUSY_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                sRecorder.measure("read_with_writer_" + label, ROWS, WARMUP, ITERATIONS,
+                        new BenchmarkRecorder.Operation() {
+                            @Override
+                            public void run(int iteration) {
+                                readBook(read, iteration);
+                            }
+                        });
+            } finally {
+                stop.set(true);
+                writerThread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError("Writer failed", failure.get());
+            }
+        } finally {
+            reader.dispose();
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Creates the database with the given profile through the provider, fills it and closes
+     * the provider's connections, so the journal mode can be changed.
+     *
+     * @return the database file.
+     */
+    private static File seed(String profileName) {
+        BookProvider provider = setupProvider(profileName);
+        BenchmarkData.insertBooks(provider, 0, ROWS);
+        BookDbHelper dbHelper = ReflectionHelpers.getField(provider, "mDbHelper");
+        dbHelper.close();
+        return RuntimeEnvironment.application.getDatabasePath(dbHelper.getDatabaseName());
+    }
+
+    /**
+     * Opens a connection with the settings of the profile, the way the framework configures
+     * the connections of its pool.
+     */
+    private static SQLiteConnection open(File database, TuningProfile profile, String journalMode)
+            throws SQLiteException {
+        SQLiteConnection connection = new SQLiteConnection(database);
+        connection.open(false);
+        connection.setBusyTimeout(BUSY_TIMEOUT_MS);
+        connection.exec("PRAGMA journal_mode = " + journalMode);
+        connection.exec("PRAGMA synchronous = " + profile.synchronous);
+        connection.exec("PRAGMA cache_size = -" + profile.cacheSizeKb);
+        connection.exec("PRAGMA wal_autocheckpoint = " + profile.walAutoCheckpointPages);
+        return connection;
+    }
+
+    /**
+     * Reads a book, a different one on every call.
+     */
+    private static void readBook(SQLiteStatement read, int iteration) {
+        try {
+            try {
+                read.bind(1, 1 + (iteration * 7919L) % ROWS);
+                while (read.step()) {
+                    read.columnString(1);
+                }
+            } finally {
+                read.reset();
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the quantity of a book, a different one on every call.
+     */
+    private static void changeQuantity(SQLiteStatement write, int iteration) {
+        try {
+            try {
+                write.bind(1, iteration % 50);
+                write.bind(2, 1 + (iteration * 104729L) % ROWS);
+                write.step();
+            } finally {
+                write.reset();
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the book provider with the given profile in its meta-data, as the manifest
+     * would give it.
+     */
+    private static BookProvider setupProvider(String profile) {
+        ProviderInfo info = new ProviderInfo();
+        info.authority = BookContract.CONTENT_AUTHORITY;
+        info.metaData = new Bundle();
+        info.metaData.putString(BookContract.META_DATA_TUNING_PROFILE, profile);
+        return Robolectric.buildContentProvider(BookProvider.class)
+                .create(info)
+                .get();
+    }
+}
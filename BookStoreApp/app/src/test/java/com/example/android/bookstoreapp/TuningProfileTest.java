@@ -0,0 +1,59 @@
+package com.example.android.bookstoreapp;
+
+import android.app.Application;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import com.example.android.bookstoreapp.data.BookDbHelper;
+import com.example.android.bookstoreapp.data.TuningProfile;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link BookDbHelper} opens the database in WAL mode with the settings of its
+ * {@link TuningProfile}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.O_MR1, application = Application.class)
+public class TuningProfileTest {
+
+    private static final TuningProfile LARGE_PAGES =
+            new TuningProfile(TuningProfile.SYNCHRONOUS_FULL, 8192, 2048, 1000);
+
+    @Test
+    public void newDatabaseGetsPageSizeOfProfile() {
+        BookDbHelper dbHelper = new BookDbHelper(RuntimeEnvironment.application, LARGE_PAGES);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            assertEquals(8192, DatabaseUtils.longForQuery(db, "PRAGMA page_size", null));
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+            // FULL is 2
+            assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void existingDatabaseKeepsPageSize() {
+        BookDbHelper dbHelper = new BookDbHelper(RuntimeEnvironment.application);
+        dbHelper.getWritableDatabase();
+        dbHelper.close();
+
+        dbHelper = new BookDbHelper(RuntimeEnvironment.application, LARGE_PAGES);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            assertEquals(TuningProfile.DEFAULT.pageSize, DatabaseUtils.longForQuery(db, "PRAGMA page_size", null));
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+}